@@ -0,0 +1,71 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.oauth2.sdk.auth.PrivateKeyJWT;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the SMART Backend Services client assertion, with the signer built once by {@link
+ * BackendCredentials} and with the key parsed again for every assertion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class BackendAssertionBenchmark {
+
+    private static final String CLIENT_ID = "backend-client";
+
+    private static final String TOKEN_URL = "https://ehr.example.org/auth/token";
+
+    private String rsaJwk;
+
+    private String ecJwk;
+
+    private BackendCredentials rsaCredentials;
+
+    private BackendCredentials ecCredentials;
+
+    @Setup
+    public void setUp() throws Exception {
+        rsaJwk = new RSAKeyGenerator(2048).keyID("rsa").generate().toJSONString();
+        ecJwk = new ECKeyGenerator(Curve.P_384).keyID("ec").generate().toJSONString();
+        rsaCredentials = BackendCredentials.fromJwk(CLIENT_ID, rsaJwk);
+        ecCredentials = BackendCredentials.fromJwk(CLIENT_ID, ecJwk);
+    }
+
+    @Benchmark
+    public PrivateKeyJWT rs384Precomputed() throws Exception {
+        return rsaCredentials.createAssertion(TOKEN_URL);
+    }
+
+    @Benchmark
+    public PrivateKeyJWT es384Precomputed() throws Exception {
+        return ecCredentials.createAssertion(TOKEN_URL);
+    }
+
+    @Benchmark
+    public PrivateKeyJWT rs384ParsedEachTime() throws Exception {
+        return BackendCredentials.fromJwk(CLIENT_ID, rsaJwk).createAssertion(TOKEN_URL);
+    }
+
+    @Benchmark
+    public PrivateKeyJWT es384ParsedEachTime() throws Exception {
+        return BackendCredentials.fromJwk(CLIENT_ID, ecJwk).createAssertion(TOKEN_URL);
+    }
+}
@@ -0,0 +1,41 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building a fresh R4 context, as {@code FhirContext.forR4()} used to be called on every
+ * FHIR interaction. The model scan is lazy, so the cost of the first parse is measured as well.
+ * Single shot, since the interesting number is the cold cost, not the steady state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(3)
+public class FhirContextBenchmark {
+
+    private final String patient = Fixtures.read("patient");
+
+    @Benchmark
+    public FhirContext forR4() {
+        return FhirContext.forR4();
+    }
+
+    @Benchmark
+    public IBaseResource forR4ThenParsePatient() {
+        return FhirContext.forR4().newJsonParser().parseResource(patient);
+    }
+}
@@ -0,0 +1,127 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * The launch {@code state} round-trip: issued into the authorize URL by {@link
+ * OidcClient#buildAuthorizationUrl} and resolved again on every callback and FHIR page by {@link
+ * FhirClient#decodeState}, for each {@link LaunchStateStore.Mode}.
+ *
+ * <p>The {@code base64Json} benchmarks measure the former encoding, the whole {@link AppState} as
+ * Base64 JSON, as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class LaunchStateBenchmark {
+
+    private static final String FHIR_SERVER_URL = "https://ehr.example.org/fhir";
+
+    @Param({"OPAQUE", "SIGNED"})
+    private LaunchStateStore.Mode mode;
+
+    private ObjectMapper mapper;
+
+    private OidcClient oidcClient;
+
+    private FhirClient fhirClient;
+
+    private AppState appState;
+
+    private String issuedState;
+
+    private String base64JsonState;
+
+    @Setup
+    public void setUp() throws Exception {
+        mapper = new ObjectMapper();
+
+        InMemoryStateBackend stateBackend = new InMemoryStateBackend();
+        ReflectionTestUtils.setField(stateBackend, "maxSize", 100_000);
+
+        LaunchStateStore launchStateStore = new LaunchStateStore();
+        ReflectionTestUtils.setField(launchStateStore, "stateBackend", stateBackend);
+        ReflectionTestUtils.setField(launchStateStore, "mode", mode);
+        ReflectionTestUtils.setField(launchStateStore, "ttl", Duration.ofHours(8));
+        ReflectionTestUtils.setField(launchStateStore, "hmacKey", "");
+        launchStateStore.init();
+
+        oidcClient = new OidcClient();
+        ReflectionTestUtils.setField(
+                oidcClient,
+                "environment",
+                new MockEnvironment().withProperty("local.server.port", "8080"));
+        ReflectionTestUtils.setField(oidcClient, "launchStateStore", launchStateStore);
+
+        fhirClient = new FhirClient();
+        ReflectionTestUtils.setField(fhirClient, "launchStateStore", launchStateStore);
+
+        appState = new AppState();
+        appState.setTokenUrl("https://ehr.example.org/auth/token");
+        appState.setOtherDetails("local_details");
+        appState.setClientId("smart-on-fhir-tutorial");
+        appState.setFhirServerUrl(FHIR_SERVER_URL);
+
+        issuedState = stateParameter(buildAuthorizationUrl());
+        base64JsonState = base64JsonEncode();
+    }
+
+    @Benchmark
+    public URI buildAuthorizationUrl() throws Exception {
+        return oidcClient.buildAuthorizationUrl(
+                FHIR_SERVER_URL,
+                "https://ehr.example.org/auth/authorize",
+                "smart-on-fhir-tutorial",
+                Set.of("openid", "fhirUser", "launch/patient", "patient/*.r"),
+                appState);
+    }
+
+    @Benchmark
+    public AppState decodeState() throws Exception {
+        return fhirClient.decodeState(issuedState);
+    }
+
+    @Benchmark
+    public String base64JsonEncode() throws Exception {
+        return new String(Base64.getEncoder().encode(mapper.writeValueAsBytes(appState)));
+    }
+
+    @Benchmark
+    public AppState base64JsonDecode() throws Exception {
+        return mapper.readValue(Base64.getDecoder().decode(base64JsonState), AppState.class);
+    }
+
+    private static String stateParameter(URI authorizationUrl) {
+        for (String parameter : authorizationUrl.getRawQuery().split("&")) {
+            if (parameter.startsWith("state=")) {
+                return URLDecoder.decode(
+                        parameter.substring("state=".length()), StandardCharsets.UTF_8);
+            }
+        }
+        throw new IllegalStateException("No state in " + authorizationUrl);
+    }
+}
@@ -0,0 +1,51 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * {@link FhirClient#convertResourceToString} with the shared context, on the resources the views
+ * display.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ResourceEncodingBenchmark {
+
+    @Param({"patient", "bundle", "capability-statement"})
+    private String fixture;
+
+    private FhirClient fhirClient;
+
+    private IBaseResource resource;
+
+    @Setup
+    public void setUp() {
+        FhirContext fhirContext = FhirContext.forR4();
+        fhirClient = new FhirClient();
+        ReflectionTestUtils.setField(fhirClient, "fhirContext", fhirContext);
+        resource = fhirContext.newJsonParser().parseResource(Fixtures.read(fixture));
+    }
+
+    @Benchmark
+    public String convertResourceToString() {
+        return fhirClient.convertResourceToString(resource);
+    }
+}
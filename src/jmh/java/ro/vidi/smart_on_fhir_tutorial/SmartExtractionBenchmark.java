@@ -0,0 +1,78 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.UriType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of the SMART URLs from a CapabilityStatement with about 75 resource types: the
+ * streaming {@link SmartExtensionExtractor} against the HAPI object model path it replaced (parse,
+ * walk the extensions, re-encode for the metadata panel).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class SmartExtractionBenchmark {
+
+    private FhirContext fhirContext;
+
+    private String capabilityStatement;
+
+    @Setup
+    public void setUp() {
+        fhirContext = FhirContext.forR4();
+        capabilityStatement = Fixtures.read("capability-statement");
+    }
+
+    @Benchmark
+    public SmartMetadata streaming() throws IOException {
+        SmartMetadata smartMetadata = SmartExtensionExtractor.extract(capabilityStatement);
+        smartMetadata.setJsonResponse(capabilityStatement);
+        return smartMetadata;
+    }
+
+    @Benchmark
+    public SmartMetadata objectModel() {
+        CapabilityStatement statement =
+                fhirContext
+                        .newJsonParser()
+                        .parseResource(CapabilityStatement.class, capabilityStatement);
+
+        SmartMetadata smartMetadata = new SmartMetadata();
+        smartMetadata.setJsonResponse(
+                fhirContext.newJsonParser().encodeResourceToString(statement));
+        for (CapabilityStatement.CapabilityStatementRestComponent rest : statement.getRest()) {
+            for (Extension extension : rest.getSecurity().getExtension()) {
+                if (!SmartExtensionExtractor.OAUTH_URIS_EXTENSION_URL.equals(extension.getUrl())) {
+                    continue;
+                }
+                for (Extension smartExtension : extension.getExtension()) {
+                    if ("authorize".equals(smartExtension.getUrl())) {
+                        smartMetadata.setAuthorizeUrl(
+                                ((UriType) smartExtension.getValue()).getValue());
+                    } else if ("token".equals(smartExtension.getUrl())) {
+                        smartMetadata.setTokenUrl(((UriType) smartExtension.getValue()).getValue());
+                    }
+                }
+            }
+        }
+        return smartMetadata;
+    }
+}
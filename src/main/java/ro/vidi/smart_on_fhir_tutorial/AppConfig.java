@@ -1,9 +1,36 @@
 /* (C)2024 */
 package ro.vidi.smart_on_fhir_tutorial;
 
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.exporter.otlp.http.trace.OtlpHttpSpanExporter;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
@@ -12,6 +39,7 @@
 @Configuration
 @EnableWebSecurity
 @EnableConfigurationProperties
+@Slf4j
 public class AppConfig {
 
     /**
@@ -24,4 +52,180 @@ public SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
                 .csrf(AbstractHttpConfigurer::disable);
         return http.build();
     }
+
+    /**
+     * Single R4 context shared by the whole application. Creating a context scans the R4 model
+     * classes, so it is done once at startup instead of on every FHIR call. Its clients use the
+     * pooled {@link HttpTransport}.
+     *
+     * @param eagerScan scan every resource definition at startup instead of lazily on first use
+     * @param warmupResourceTypes resource types to parse once at startup, so their parser paths
+     *     are initialized before the first user request
+     */
+    @Bean
+    public FhirContext fhirContext(
+            HttpTransport httpTransport,
+            @Value("${fhir.context.eager-scan:true}") boolean eagerScan,
+            @Value("${fhir.context.warmup-resource-types:}") List<String> warmupResourceTypes) {
+        long start = System.nanoTime();
+        FhirContext fhirContext = FhirContext.forR4();
+        fhirContext.getRestfulClientFactory().setHttpClient(httpTransport.getHttpClient());
+        long created = System.nanoTime();
+
+        if (eagerScan) {
+            fhirContext.getResourceTypes().forEach(fhirContext::getResourceDefinition);
+        }
+        long scanned = System.nanoTime();
+
+        for (String resourceType : warmupResourceTypes) {
+            fhirContext
+                    .newJsonParser()
+                    .parseResource("{\"resourceType\":\"" + resourceType.trim() + "\"}");
+        }
+        long end = System.nanoTime();
+
+        log.info(
+                "FhirContext ready in {} ms (create {} ms, model scan {} ms, warm-up of {} {}"
+                        + " ms)",
+                TimeUnit.NANOSECONDS.toMillis(end - start),
+                TimeUnit.NANOSECONDS.toMillis(created - start),
+                TimeUnit.NANOSECONDS.toMillis(scanned - created),
+                warmupResourceTypes,
+                TimeUnit.NANOSECONDS.toMillis(end - scanned));
+        return fhirContext;
+    }
+
+    /**
+     * Executor running the blocking calls to the EHRs (discovery, token exchange, FHIR reads) off
+     * the Vaadin request threads. With {@code spring.threads.virtual.enabled} on Java 21+, a
+     * virtual thread is used per task, like Tomcat does for the requests; otherwise a bounded pool
+     * of platform threads. The tasks run in the trace context of the code submitting them.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService outboundExecutor(
+            @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads,
+            @Value("${app.outbound.threads:64}") int threads) {
+        ExecutorService executor =
+                virtualThreads ? VirtualThreads.newVirtualThreadPerTaskExecutor() : null;
+        if (executor != null) {
+            log.info("Outbound calls run on virtual threads");
+            return Context.taskWrapping(executor);
+        }
+        log.info("Outbound calls run on {} platform threads", threads);
+        return Context.taskWrapping(
+                Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("outbound-")));
+    }
+
+    /**
+     * Database of the {@link JdbcStateBackend}, only with {@code app.state.backend=jdbc}: the
+     * auto-configured {@code DataSource} is disabled, so that the default in-memory backend does
+     * not start an embedded database. The {@code JdbcTemplate} is then auto-configured on it.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "app.state.backend", havingValue = "jdbc")
+    public DataSource stateDataSource(
+            @Value("${spring.datasource.url:jdbc:h2:mem:state;DB_CLOSE_DELAY=-1}") String url,
+            @Value("${spring.datasource.username:sa}") String username,
+            @Value("${spring.datasource.password:}") String password) {
+        return DataSourceBuilder.create().url(url).username(username).password(password).build();
+    }
+
+    /**
+     * OpenTelemetry tracing the launches, see {@link LaunchTracing}. With {@code
+     * app.tracing.exporter=NONE} no span is recorded and no trace context is sent to the EHRs.
+     *
+     * @param otlpEndpoint OTLP/HTTP traces endpoint of the collector
+     * @param samplingRatio share of the launches traced, the calls of a launch follow its decision
+     */
+    @Bean
+    public OpenTelemetry openTelemetry(
+            @Value("${app.tracing.exporter:NONE}") LaunchTracing.Exporter exporter,
+            @Value("${app.tracing.otlp.endpoint:http://localhost:4318/v1/traces}")
+                    String otlpEndpoint,
+            @Value("${app.tracing.sampling-ratio:1.0}") double samplingRatio,
+            @Value("${spring.application.name}") String serviceName) {
+        if (exporter == LaunchTracing.Exporter.NONE) {
+            log.info("Launch tracing disabled");
+            return OpenTelemetry.noop();
+        }
+
+        Resource resource =
+                Resource.getDefault()
+                        .merge(
+                                Resource.create(
+                                        Attributes.of(
+                                                AttributeKey.stringKey("service.name"),
+                                                serviceName)));
+        SdkTracerProvider tracerProvider =
+                SdkTracerProvider.builder()
+                        .setResource(resource)
+                        .setSampler(Sampler.parentBased(Sampler.traceIdRatioBased(samplingRatio)))
+                        .addSpanProcessor(
+                                BatchSpanProcessor.builder(
+                                                OtlpHttpSpanExporter.builder()
+                                                        .setEndpoint(otlpEndpoint)
+                                                        .build())
+                                        .build())
+                        .build();
+        log.info("Tracing {} of the launches to {}", samplingRatio, otlpEndpoint);
+        return OpenTelemetrySdk.builder()
+                .setTracerProvider(tracerProvider)
+                .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+                .build();
+    }
+
+    /**
+     * Bounds the hosts tagged in the {@link EhrCalls} metrics.
+     */
+    @Bean
+    public MeterFilter ehrHostTagLimit(@Value("${ehr.metrics.max-hosts:50}") int maxHosts) {
+        return EhrCalls.hostTagLimit(maxHosts);
+    }
+
+    /**
+     * Exposes the connection pool of the {@link HttpTransport} and the {@link FhirResourceCache}
+     * statistics next to the {@link EhrCalls} metrics.
+     */
+    @Bean
+    public MeterBinder ehrClientMetrics(
+            HttpTransport httpTransport, FhirResourceCache resourceCache) {
+        return registry -> {
+            Gauge.builder(
+                            "http.client.connections",
+                            httpTransport,
+                            t -> t.getPoolStats().getLeased())
+                    .tag("state", "leased")
+                    .register(registry);
+            Gauge.builder(
+                            "http.client.connections",
+                            httpTransport,
+                            t -> t.getPoolStats().getAvailable())
+                    .tag("state", "available")
+                    .register(registry);
+            Gauge.builder(
+                            "http.client.connections",
+                            httpTransport,
+                            t -> t.getPoolStats().getPending())
+                    .tag("state", "pending")
+                    .description("Requests waiting for a pooled connection")
+                    .register(registry);
+
+            FunctionCounter.builder("fhir.cache.requests", resourceCache, c -> c.getStats().hits())
+                    .tag("result", "hit")
+                    .register(registry);
+            FunctionCounter.builder(
+                            "fhir.cache.requests", resourceCache, c -> c.getStats().misses())
+                    .tag("result", "miss")
+                    .register(registry);
+            FunctionCounter.builder(
+                            "fhir.cache.bytes.saved",
+                            resourceCache,
+                            c -> c.getStats().bytesSaved())
+                    .baseUnit("bytes")
+                    .register(registry);
+            Gauge.builder("fhir.cache.size", resourceCache, c -> c.getStats().bytes())
+                    .baseUnit("bytes")
+                    .register(registry);
+        };
+    }
 }
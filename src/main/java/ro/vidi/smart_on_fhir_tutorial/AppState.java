@@ -13,4 +13,9 @@ public class AppState {
     private String clientId;
 
     private String fhirServerUrl;
+
+    /**
+     * W3C {@code traceparent} of the launch, see {@link LaunchTracing}.
+     */
+    private String traceParent;
 }
@@ -0,0 +1,93 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.auth.JWTAuthenticationClaimsSet;
+import com.nimbusds.oauth2.sdk.auth.PrivateKeyJWT;
+import com.nimbusds.oauth2.sdk.id.Audience;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import lombok.Getter;
+
+/**
+ * Client registered for <a
+ * href="https://www.hl7.org/fhir/smart-app-launch/backend-services.html">SMART Backend
+ * Services</a>, authenticating with a {@code private_key_jwt} assertion.
+ *
+ * <p>The signer and the JWS header are built once from the private key, so creating an assertion
+ * only costs the signature itself.
+ */
+public class BackendCredentials {
+
+    @Getter private final ClientID clientId;
+
+    private final JWSHeader header;
+
+    private final JWSSigner signer;
+
+    private BackendCredentials(ClientID clientId, JWSHeader header, JWSSigner signer) {
+        this.clientId = clientId;
+        this.header = header;
+        this.signer = signer;
+    }
+
+    /**
+     * @param jwk private key registered for the client, an RSA key signing with RS384 or a P-384
+     *     EC key signing with ES384
+     */
+    public static BackendCredentials fromJwk(String clientId, String jwk)
+            throws java.text.ParseException, JOSEException {
+        JWK key = JWK.parse(jwk);
+
+        JWSAlgorithm algorithm;
+        JWSSigner signer;
+        if (key instanceof RSAKey rsaKey) {
+            algorithm = JWSAlgorithm.RS384;
+            signer = new RSASSASigner(rsaKey);
+        } else if (key instanceof ECKey ecKey && Curve.P_384.equals(ecKey.getCurve())) {
+            algorithm = JWSAlgorithm.ES384;
+            signer = new ECDSASigner(ecKey);
+        } else {
+            // the key itself is private, only its type and curve are reported
+            String type =
+                    key instanceof ECKey otherEcKey
+                            ? key.getKeyType() + " " + otherEcKey.getCurve()
+                            : String.valueOf(key.getKeyType());
+            throw new JOSEException("Only RSA and P-384 EC keys are supported, got " + type);
+        }
+
+        JWSHeader header =
+                new JWSHeader.Builder(algorithm)
+                        .type(JOSEObjectType.JWT)
+                        .keyID(key.getKeyID())
+                        .build();
+        return new BackendCredentials(new ClientID(clientId), header, signer);
+    }
+
+    /**
+     * @return a new signed assertion for the token endpoint, valid for 5 minutes and with a unique
+     *     {@code jti}
+     */
+    public PrivateKeyJWT createAssertion(String tokenUrl) throws JOSEException, ParseException {
+        JWTAuthenticationClaimsSet claims =
+                new JWTAuthenticationClaimsSet(clientId, new Audience(tokenUrl));
+        SignedJWT assertion = new SignedJWT(header, claims.toJWTClaimsSet());
+        assertion.sign(signer);
+        return new PrivateKeyJWT(assertion);
+    }
+
+    public JWSAlgorithm getAlgorithm() {
+        return header.getAlgorithm();
+    }
+}
@@ -0,0 +1,160 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import jakarta.annotation.PostConstruct;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches the SMART Backend Services access tokens per token URL, client and scopes, so batch jobs
+ * do not request a token for every call.
+ *
+ * <p>A token is renewed by the first caller asking for it {@code smart.backend.refresh-before} its
+ * expiry. The other callers keep using the current token meanwhile, and only wait for the renewal
+ * once the token expired.
+ */
+@Component
+@Slf4j
+public class BackendTokenCache {
+
+    @Autowired private OidcClient oidcClient;
+
+    @Value("${smart.backend.refresh-before:PT1M}")
+    private Duration refreshBefore;
+
+    @Value("${smart.backend.client-id:}")
+    private String defaultClientId;
+
+    /**
+     * File with the private JWK of {@code smart.backend.client-id}.
+     */
+    @Value("${smart.backend.jwk-file:}")
+    private String defaultJwkFile;
+
+    private BackendCredentials defaultCredentials;
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() throws Exception {
+        if (StringUtils.isNoneBlank(defaultClientId, defaultJwkFile)) {
+            defaultCredentials =
+                    BackendCredentials.fromJwk(
+                            defaultClientId, Files.readString(Path.of(defaultJwkFile)));
+            log.info(
+                    "Backend services client {} signs with {}",
+                    defaultClientId,
+                    defaultCredentials.getAlgorithm());
+        }
+    }
+
+    /**
+     * @return an access token of the {@code smart.backend.client-id} client
+     * @throws IllegalStateException when no backend services client is configured, or a token
+     *     cannot be obtained
+     */
+    public String getAccessToken(String tokenUrl, Set<String> scopes) {
+        if (defaultCredentials == null) {
+            throw new IllegalStateException(
+                    "smart.backend.client-id and smart.backend.jwk-file are not configured");
+        }
+        return getAccessToken(tokenUrl, defaultCredentials, scopes);
+    }
+
+    /**
+     * @return a valid access token of the client for the scopes, requesting a new one first when
+     *     the cached one is about to expire
+     * @throws IllegalStateException when a token cannot be obtained
+     */
+    public String getAccessToken(
+            String tokenUrl, BackendCredentials credentials, Set<String> scopes) {
+        Key key = new Key(tokenUrl, credentials.getClientId().getValue(), Set.copyOf(scopes));
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+
+        Instant now = Instant.now();
+        StoredToken token = entry.token;
+        if (token != null && !token.expiresWithin(refreshBefore, now)) {
+            return token.getAccessToken();
+        }
+
+        while (true) {
+            CompletableFuture<StoredToken> running = entry.renewing.get();
+            if (running != null) {
+                if (token != null && !token.expiresWithin(Duration.ZERO, now)) {
+                    return token.getAccessToken();
+                }
+                try {
+                    return running.join().getAccessToken();
+                } catch (CompletionException e) {
+                    throw (IllegalStateException) Futures.unwrap(e);
+                }
+            }
+            CompletableFuture<StoredToken> renewing = new CompletableFuture<>();
+            if (entry.renewing.compareAndSet(null, renewing)) {
+                // renewed by another caller since the token was read
+                StoredToken current = entry.token;
+                if (current != null && !current.expiresWithin(refreshBefore, Instant.now())) {
+                    entry.renewing.set(null);
+                    renewing.complete(current);
+                    return current.getAccessToken();
+                }
+                return renew(key, entry, credentials, renewing).getAccessToken();
+            }
+        }
+    }
+
+    private StoredToken renew(
+            Key key,
+            Entry entry,
+            BackendCredentials credentials,
+            CompletableFuture<StoredToken> renewing) {
+        try {
+            StoredToken renewed =
+                    StoredToken.from(
+                            oidcClient.getBackendAccessToken(
+                                    key.tokenUrl(), credentials, key.scopes()),
+                            key.tokenUrl(),
+                            key.clientId(),
+                            Instant.now());
+            entry.token = renewed;
+            log.debug(
+                    "Obtained backend services token for {} {}, expires at {}",
+                    key.clientId(),
+                    key.scopes(),
+                    renewed.getExpiresAt());
+            renewing.complete(renewed);
+            return renewed;
+        } catch (Exception e) {
+            IllegalStateException exception =
+                    new IllegalStateException(
+                            "Cannot obtain backend services token from " + key.tokenUrl(), e);
+            renewing.completeExceptionally(exception);
+            throw exception;
+        } finally {
+            entry.renewing.set(null);
+        }
+    }
+
+    private record Key(String tokenUrl, String clientId, Set<String> scopes) {}
+
+    private static class Entry {
+
+        private volatile StoredToken token;
+
+        private final AtomicReference<CompletableFuture<StoredToken>> renewing =
+                new AtomicReference<>();
+    }
+}
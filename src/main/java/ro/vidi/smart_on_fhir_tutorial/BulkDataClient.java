@@ -0,0 +1,469 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Client of the FHIR Bulk Data Access {@code $export} operation.
+ *
+ * <p>An export is kicked off asynchronously, its status URL is polled (honouring {@code
+ * Retry-After}) until the manifest is ready, then the NDJSON files of the manifest are downloaded
+ * in parallel. Each file is parsed line by line as it arrives, so a file is never held in memory,
+ * and a broken download is resumed with a {@code Range} request from the last complete line.
+ */
+@Component
+@Slf4j
+public class BulkDataClient {
+
+    public enum ExportLevel {
+        /**
+         * All the data of the server.
+         */
+        SYSTEM,
+        /**
+         * The data of the patients of a Group.
+         */
+        GROUP,
+        /**
+         * The data of all the patients.
+         */
+        PATIENT
+    }
+
+    private static final String CT_NDJSON = "application/fhir+ndjson";
+
+    @Autowired private FhirContext fhirContext;
+
+    @Autowired private ObjectMapper mapper;
+
+    @Autowired private HttpTransport httpTransport;
+
+    @Autowired private ExecutorService outboundExecutor;
+
+    @Autowired private TokenStore tokenStore;
+
+    @Autowired private EhrCalls ehrCalls;
+
+    /**
+     * Polling interval used when the server does not send {@code Retry-After}.
+     */
+    @Value("${bulk.export.poll-interval:PT5S}")
+    private Duration pollInterval;
+
+    @Value("${bulk.export.max-wait:PT1H}")
+    private Duration maxWait;
+
+    @Value("${bulk.export.parallel-downloads:4}")
+    private int parallelDownloads;
+
+    /**
+     * Times a broken file download is resumed before giving up.
+     */
+    @Value("${bulk.export.max-resumes:3}")
+    private int maxResumes;
+
+    /**
+     * Exports data with the access token of a launch, see {@link #export(String, ExportLevel,
+     * String, List, Supplier, Consumer)}.
+     */
+    public BulkExportReport export(
+            String fhirServerUrl,
+            ExportLevel level,
+            String groupId,
+            List<String> resourceTypes,
+            String launchId,
+            Consumer<IBaseResource> consumer)
+            throws IOException, InterruptedException {
+        return export(
+                fhirServerUrl,
+                level,
+                groupId,
+                resourceTypes,
+                () -> tokenStore.getAccessToken(launchId),
+                consumer);
+    }
+
+    /**
+     * Runs an export end to end: kick-off, polling and download of the output files.
+     *
+     * @param groupId id of the Group, for {@link ExportLevel#GROUP} exports
+     * @param resourceTypes types to export, all of them when empty
+     * @param accessToken bearer token sent with each request, asked for again on every request so
+     *     it can be renewed during long exports
+     * @param consumer receives each exported resource, called concurrently from the download
+     *     threads
+     */
+    public BulkExportReport export(
+            String fhirServerUrl,
+            ExportLevel level,
+            String groupId,
+            List<String> resourceTypes,
+            Supplier<String> accessToken,
+            Consumer<IBaseResource> consumer)
+            throws IOException, InterruptedException {
+        String statusUrl = kickOff(fhirServerUrl, level, groupId, resourceTypes, accessToken);
+        BulkExportManifest manifest = awaitManifest(statusUrl, accessToken);
+        BulkExportReport report = download(manifest, accessToken, consumer);
+        log.info("Bulk export of {} done: {}", fhirServerUrl, report);
+
+        // let the server delete the files
+        HttpDelete delete = new HttpDelete(statusUrl);
+        authorize(delete, accessToken);
+        try (CloseableHttpResponse response = httpTransport.getHttpClient().execute(delete)) {
+            EntityUtils.consume(response.getEntity());
+        } catch (IOException e) {
+            log.debug("Cannot delete export {}: {}", statusUrl, e.getMessage());
+        }
+        return report;
+    }
+
+    /**
+     * @return the status URL of the started export
+     */
+    public String kickOff(
+            String fhirServerUrl,
+            ExportLevel level,
+            String groupId,
+            List<String> resourceTypes,
+            Supplier<String> accessToken)
+            throws IOException {
+        String url =
+                StringUtils.removeEnd(fhirServerUrl, "/")
+                        + switch (level) {
+                            case SYSTEM -> "/$export";
+                            case GROUP -> "/Group/" + groupId + "/$export";
+                            case PATIENT -> "/Patient/$export";
+                        };
+        if (resourceTypes != null && !resourceTypes.isEmpty()) {
+            url += "?_type=" + String.join(",", resourceTypes);
+        }
+
+        HttpGet kickOff = new HttpGet(url);
+        kickOff.setHeader(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW);
+        kickOff.setHeader(Constants.HEADER_PREFER, "respond-async");
+        authorize(kickOff, accessToken);
+        try (EhrCalls.Call call = ehrCalls.start(fhirServerUrl, "bulk-kick-off", null);
+                CloseableHttpResponse response = httpTransport.getHttpClient().execute(kickOff)) {
+            byte[] body = toByteArray(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            EhrCalls.recordExchange(System.nanoTime() - call.getStart(), 0, body.length, status);
+            Header location = response.getFirstHeader(Constants.HEADER_CONTENT_LOCATION);
+            if (status != 202 || location == null) {
+                throw new HttpResponseException(
+                        status,
+                        "Export kick-off failed: " + new String(body, StandardCharsets.UTF_8));
+            }
+            log.debug("Export started at {}, status at {}", url, location.getValue());
+            return call.success(location.getValue());
+        }
+    }
+
+    /**
+     * Polls the status of an export until it completes.
+     *
+     * @throws IOException when the export failed or did not complete within {@code
+     *     bulk.export.max-wait}
+     */
+    public BulkExportManifest awaitManifest(String statusUrl, Supplier<String> accessToken)
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        while (true) {
+            HttpGet poll = new HttpGet(statusUrl);
+            poll.setHeader(Constants.HEADER_ACCEPT, "application/json");
+            authorize(poll, accessToken);
+
+            Duration delay;
+            try (EhrCalls.Call call = ehrCalls.start(statusUrl, "bulk-status", null);
+                    CloseableHttpResponse response = httpTransport.getHttpClient().execute(poll)) {
+                byte[] body = toByteArray(response.getEntity());
+                int status = response.getStatusLine().getStatusCode();
+                EhrCalls.recordExchange(
+                        System.nanoTime() - call.getStart(), 0, body.length, status);
+                if (status == 200) {
+                    return call.success(mapper.readValue(body, BulkExportManifest.class));
+                }
+                if (status != 202) {
+                    throw new HttpResponseException(
+                            status, "Export failed: " + new String(body, StandardCharsets.UTF_8));
+                }
+                call.success(status);
+                delay = retryAfter(response);
+                Header progress = response.getFirstHeader("X-Progress");
+                log.debug(
+                        "Export {} in progress ({}), polling again in {}",
+                        statusUrl,
+                        progress != null ? progress.getValue() : "no progress reported",
+                        delay);
+            }
+
+            if (System.nanoTime() + delay.toNanos() > deadline) {
+                throw new IOException("Export " + statusUrl + " not done after " + maxWait);
+            }
+            TimeUnit.MILLISECONDS.sleep(delay.toMillis());
+        }
+    }
+
+    /**
+     * Downloads the output files of an export, at most {@code bulk.export.parallel-downloads} at a
+     * time. The files are downloaded by as many chains of outbound tasks, each starting the next
+     * file once its previous one is done, so no outbound thread waits for another.
+     */
+    public BulkExportReport download(
+            BulkExportManifest manifest,
+            Supplier<String> accessToken,
+            Consumer<IBaseResource> consumer)
+            throws IOException {
+        long start = System.nanoTime();
+        Supplier<String> fileToken = manifest.isRequiresAccessToken() ? accessToken : null;
+
+        Queue<BulkExportManifest.OutputFile> files =
+                new ConcurrentLinkedQueue<>(manifest.getOutput());
+        List<CompletableFuture<BulkExportReport>> chains = new ArrayList<>();
+        for (int chain = 0; chain < Math.min(parallelDownloads, files.size()); chain++) {
+            chains.add(downloadNext(files, fileToken, consumer, new BulkExportReport()));
+        }
+
+        BulkExportReport report = new BulkExportReport();
+        try {
+            for (CompletableFuture<BulkExportReport> chain : chains) {
+                add(report, chain.join());
+            }
+        } catch (RuntimeException e) {
+            // the other chains stop after their current file
+            files.clear();
+            Throwable cause = Futures.unwrap(e);
+            throw cause instanceof IOException ioException
+                    ? ioException
+                    : new IOException("Export download failed", cause);
+        }
+        report.setDurationMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return report;
+    }
+
+    /**
+     * Downloads the files left one after the other, adding them to the report of the chain.
+     */
+    private CompletableFuture<BulkExportReport> downloadNext(
+            Queue<BulkExportManifest.OutputFile> files,
+            Supplier<String> accessToken,
+            Consumer<IBaseResource> consumer,
+            BulkExportReport report) {
+        BulkExportManifest.OutputFile file = files.poll();
+        if (file == null) {
+            return CompletableFuture.completedFuture(report);
+        }
+        return Futures.supplyAsync(
+                        () -> downloadFile(file.getUrl(), accessToken, consumer),
+                        outboundExecutor)
+                .whenComplete(
+                        (fileReport, e) -> {
+                            if (e != null) {
+                                files.clear();
+                            }
+                        })
+                .thenCompose(
+                        fileReport -> {
+                            add(report, fileReport);
+                            return downloadNext(files, accessToken, consumer, report);
+                        });
+    }
+
+    private static void add(BulkExportReport report, BulkExportReport fileReport) {
+        report.setFiles(report.getFiles() + fileReport.getFiles());
+        report.setResources(report.getResources() + fileReport.getResources());
+        report.setBytes(report.getBytes() + fileReport.getBytes());
+        report.setResumes(report.getResumes() + fileReport.getResumes());
+    }
+
+    private BulkExportReport downloadFile(
+            String url, Supplier<String> accessToken, Consumer<IBaseResource> consumer)
+            throws IOException {
+        IParser parser = fhirContext.newJsonParser();
+        BulkExportReport report = new BulkExportReport();
+        report.setFiles(1);
+
+        // bytes of the complete lines already handed to the consumer
+        long offset = 0;
+        while (true) {
+            HttpGet get = new HttpGet(url);
+            get.setHeader(Constants.HEADER_ACCEPT, CT_NDJSON);
+            if (accessToken != null) {
+                authorize(get, accessToken);
+            }
+            if (offset > 0) {
+                // the offset counts decoded bytes, while a range of a compressed response would
+                // count compressed ones
+                get.setHeader(Constants.HEADER_ACCEPT_ENCODING, "identity");
+                get.setHeader("Range", "bytes=" + offset + "-");
+            }
+
+            try (EhrCalls.Call call = ehrCalls.start(url, "bulk-download", null);
+                    CloseableHttpResponse response = httpTransport.getHttpClient().execute(get)) {
+                int status = response.getStatusLine().getStatusCode();
+                // the file is streamed, reading it overlaps the parsing and counts as parse time
+                long headersNanos = System.nanoTime() - call.getStart();
+                long startOffset = offset;
+                if (status != 200 && status != 206) {
+                    EhrCalls.recordExchange(headersNanos, 0, -1, status);
+                    throw new HttpResponseException(
+                            status,
+                            "Download of " + url + " failed: " + toString(response.getEntity()));
+                }
+
+                InputStream content = response.getEntity().getContent();
+                if (status == 200 && offset > 0) {
+                    // range not supported, skip what was already read
+                    content.skipNBytes(offset);
+                }
+
+                NdjsonReader reader = new NdjsonReader(content);
+                ByteArrayOutputStream line = new ByteArrayOutputStream(4096);
+                int read;
+                while ((read = reader.readLine(line)) >= 0) {
+                    String json = line.toString(StandardCharsets.UTF_8);
+                    if (StringUtils.isNotBlank(json)) {
+                        consumer.accept(parser.parseResource(json));
+                        report.setResources(report.getResources() + 1);
+                    }
+                    offset += read;
+                }
+                report.setBytes(offset);
+                EhrCalls.recordExchange(headersNanos, 0, offset - startOffset, status);
+                return call.success(report);
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() < 500 || report.getResumes() >= maxResumes) {
+                    throw e;
+                }
+                resuming(url, offset, report, e);
+            } catch (IOException e) {
+                if (report.getResumes() >= maxResumes) {
+                    throw e;
+                }
+                resuming(url, offset, report, e);
+            }
+        }
+    }
+
+    private static void resuming(String url, long offset, BulkExportReport report, Exception e) {
+        report.setResumes(report.getResumes() + 1);
+        log.warn(
+                "Download of {} broke at byte {} ({}), resuming, attempt {}",
+                url,
+                offset,
+                e.getMessage(),
+                report.getResumes());
+    }
+
+    private Duration retryAfter(CloseableHttpResponse response) {
+        Header retryAfter = response.getFirstHeader(Constants.HEADER_RETRY_AFTER);
+        if (retryAfter == null) {
+            return pollInterval;
+        }
+        String value = retryAfter.getValue().trim();
+        if (StringUtils.isNumeric(value)) {
+            return Duration.ofSeconds(Long.parseLong(value));
+        }
+        Date date = DateUtils.parseDate(value);
+        if (date == null) {
+            return pollInterval;
+        }
+        long millis = date.getTime() - System.currentTimeMillis();
+        return Duration.ofMillis(Math.max(millis, 0));
+    }
+
+    private static void authorize(HttpRequestBase request, Supplier<String> accessToken) {
+        request.setHeader(
+                Constants.HEADER_AUTHORIZATION,
+                Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER + accessToken.get());
+    }
+
+    private static String toString(HttpEntity entity) throws IOException {
+        return entity == null ? "" : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] toByteArray(HttpEntity entity) throws IOException {
+        return entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+    }
+
+    /**
+     * Splits a stream in lines without decoding it, so the byte offset of each line is known.
+     */
+    private static class NdjsonReader {
+
+        private final InputStream in;
+
+        private final byte[] buffer = new byte[64 * 1024];
+
+        private int position;
+
+        private int limit;
+
+        private NdjsonReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads the next line, without its line terminator, into {@code line}.
+         *
+         * @return the bytes consumed, line terminator included, or -1 at the end of the stream
+         */
+        private int readLine(ByteArrayOutputStream line) throws IOException {
+            line.reset();
+            int consumed = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return consumed == 0 ? -1 : consumed;
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                line.write(buffer, start, position - start);
+                consumed += position - start;
+                if (position < limit) {
+                    // skip the line feed
+                    position++;
+                    return consumed + 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+
+/**
+ * Response of a completed bulk data export, listing the NDJSON files to download.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BulkExportManifest {
+
+    private String transactionTime;
+
+    private String request;
+
+    /**
+     * Whether the files must be downloaded with the access token used for the export.
+     */
+    private boolean requiresAccessToken;
+
+    private List<OutputFile> output = new ArrayList<>();
+
+    /**
+     * Files of OperationOutcome resources describing the errors of the export.
+     */
+    private List<OutputFile> error = new ArrayList<>();
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class OutputFile {
+
+        private String type;
+
+        private String url;
+
+        /**
+         * Number of resources in the file, when reported by the server.
+         */
+        private Long count;
+    }
+}
@@ -0,0 +1,45 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import lombok.Data;
+
+/**
+ * Throughput of the download of a bulk data export.
+ */
+@Data
+public class BulkExportReport {
+
+    private int files;
+
+    private long resources;
+
+    private long bytes;
+
+    /**
+     * Downloads resumed after the connection broke.
+     */
+    private int resumes;
+
+    private long durationMillis;
+
+    public double getResourcesPerSecond() {
+        return durationMillis == 0 ? 0 : resources * 1000.0 / durationMillis;
+    }
+
+    public double getMegabytesPerSecond() {
+        return durationMillis == 0 ? 0 : bytes / (1024.0 * 1024.0) * 1000.0 / durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "%d resources (%.1f/s), %.2f MB (%.2f MB/s) from %d files in %d ms, %d resumes"
+                .formatted(
+                        resources,
+                        getResourcesPerSecond(),
+                        bytes / (1024.0 * 1024.0),
+                        getMegabytesPerSecond(),
+                        files,
+                        durationMillis,
+                        resumes);
+    }
+}
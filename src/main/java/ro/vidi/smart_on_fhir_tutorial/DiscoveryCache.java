@@ -0,0 +1,159 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import io.opentelemetry.context.Context;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Caches SMART discovery results per FHIR server URL and discovery method.
+ *
+ * <ul>
+ *   <li>entries younger than {@code smart.discovery.cache.ttl} are returned as is
+ *   <li>entries younger than ttl + {@code smart.discovery.cache.stale-ttl} are returned as is and
+ *       refreshed in the background, in the trace context of the read
+ *   <li>older entries, and misses, are loaded on the calling thread
+ * </ul>
+ *
+ * Concurrent loads of the same key are de-duplicated, and the least recently used entries are
+ * evicted once {@code smart.discovery.cache.max-size} is reached.
+ */
+@Component
+@Slf4j
+public class DiscoveryCache {
+
+    @Value("${smart.discovery.cache.ttl:PT5M}")
+    private Duration ttl;
+
+    @Value("${smart.discovery.cache.stale-ttl:PT1H}")
+    private Duration staleTtl;
+
+    @Value("${smart.discovery.cache.max-size:256}")
+    private int maxSize;
+
+    private final Map<Key, Entry> entries =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+
+    private final Map<Key, CompletableFuture<SmartMetadata>> inFlight = new ConcurrentHashMap<>();
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    private ExecutorService refreshExecutor;
+
+    @PostConstruct
+    public void init() {
+        refreshExecutor =
+                Context.taskWrapping(
+                        VirtualThreads.newCachedExecutor(virtualThreads, "discovery-refresh-"));
+    }
+
+    public SmartMetadata get(String fhirServerUrl, DiscoveryMethod method, Loader loader)
+            throws IOException, ParseException {
+        Key key = new Key(fhirServerUrl, method);
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if (entry != null) {
+            long age = System.nanoTime() - entry.loadedAt();
+            if (age < ttl.toNanos()) {
+                return entry.metadata();
+            }
+            if (age < ttl.plus(staleTtl).toNanos()) {
+                if (!inFlight.containsKey(key)) {
+                    refreshExecutor.execute(() -> load(key, loader));
+                }
+                return entry.metadata();
+            }
+        }
+
+        return await(load(key, loader));
+    }
+
+    /**
+     * Loads the key on the current thread, unless a load of the same key is already running, in
+     * which case the running load is returned.
+     */
+    private CompletableFuture<SmartMetadata> load(Key key, Loader loader) {
+        CompletableFuture<SmartMetadata> future = new CompletableFuture<>();
+        CompletableFuture<SmartMetadata> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            return running;
+        }
+
+        try {
+            SmartMetadata metadata = loader.load();
+            synchronized (entries) {
+                entries.put(key, new Entry(metadata, System.nanoTime()));
+            }
+            future.complete(metadata);
+        } catch (InterruptedIOException e) {
+            // shutting down, not a failure of the EHR
+            log.debug(
+                    "SMART discovery of {} using {} interrupted",
+                    key.fhirServerUrl(),
+                    key.method());
+            future.completeExceptionally(e);
+        } catch (Exception e) {
+            log.warn("SMART discovery of {} using {} failed", key.fhirServerUrl(), key.method(), e);
+            future.completeExceptionally(e);
+        } finally {
+            inFlight.remove(key, future);
+        }
+        return future;
+    }
+
+    private static SmartMetadata await(CompletableFuture<SmartMetadata> future)
+            throws IOException, ParseException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof ParseException parseException) {
+                throw parseException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
+    @FunctionalInterface
+    public interface Loader {
+        SmartMetadata load() throws IOException, ParseException;
+    }
+
+    private record Key(String fhirServerUrl, DiscoveryMethod method) {}
+
+    private record Entry(SmartMetadata metadata, long loadedAt) {}
+}
@@ -0,0 +1,24 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+/**
+ * Source used to discover the SMART authorize and token URLs of a FHIR server.
+ */
+public enum DiscoveryMethod {
+    /**
+     * The oauth-uris extension of the FHIR {@code CapabilityStatement}.
+     */
+    FHIR_METADATA,
+    /**
+     * The OIDC {@code .well-known/openid-configuration} document.
+     */
+    OIDC_CONFIGURATION,
+    /**
+     * The SMART {@code .well-known/smart-configuration} document.
+     */
+    SMART_CONFIGURATION,
+    /**
+     * All the other sources queried concurrently, the first valid answer wins.
+     */
+    AUTO
+}
@@ -0,0 +1,335 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Scope;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Metrics of the calls to the EHRs (discovery, token requests, FHIR interactions), tagged by
+ * server host, operation, resource type and outcome:
+ *
+ * <ul>
+ *   <li>{@code ehr.calls}: duration of the whole call
+ *   <li>{@code ehr.calls.network}: time spent sending the requests and receiving the responses
+ *   <li>{@code ehr.calls.parse}: the rest of the call, mostly parsing the responses
+ *   <li>{@code ehr.calls.request.size}, {@code ehr.calls.response.size}: bytes exchanged, the
+ *       responses once decompressed
+ *   <li>{@code ehr.calls.response.wire.size}: bytes of the responses as received, compressed or
+ *       not, see {@link HttpTransport}
+ * </ul>
+ *
+ * A call is measured from {@link #start} until the returned {@link Call} is closed. The HTTP
+ * exchanges made meanwhile on the same thread, through {@link HttpTransport} or a FHIR client with
+ * the {@link #getFhirInterceptor() interceptor}, are added to the call.
+ *
+ * <p>Each call is also traced as a client span, child of the current span, usually a step of a
+ * launch, see {@link LaunchTracing}.
+ *
+ * <p>The FHIR server URL can be typed by the users, so the {@code host} tag of the {@code
+ * ehr.calls} metrics is bounded by {@link #hostTagLimit}: the hosts after the first {@code
+ * ehr.metrics.max-hosts} are all tagged {@code other}.
+ */
+@Component
+@Slf4j
+public class EhrCalls {
+
+    private static final ThreadLocal<Call> CURRENT_CALL = new ThreadLocal<>();
+
+    @Autowired private MeterRegistry meterRegistry;
+
+    @Autowired private OpenTelemetry openTelemetry = OpenTelemetry.noop();
+
+    /**
+     * Starts measuring a call, to be used as
+     *
+     * <pre>
+     * try (EhrCalls.Call call = ehrCalls.start(serverUrl, "read", "Patient")) {
+     *     ...
+     *     return call.success(result);
+     * }
+     * </pre>
+     *
+     * A call closed without {@link Call#success} is recorded as failed.
+     *
+     * @param resourceType FHIR resource type the call is about, or null
+     */
+    public Call start(String serverUrl, String operation, String resourceType) {
+        Span span =
+                openTelemetry
+                        .getTracer(LaunchTracing.INSTRUMENTATION)
+                        .spanBuilder("ehr." + operation)
+                        .setSpanKind(SpanKind.CLIENT)
+                        .setAttribute("server.address", host(serverUrl))
+                        .setAttribute("fhir.resource_type", resourceType)
+                        .startSpan();
+        Call call = new Call(serverUrl, operation, resourceType, CURRENT_CALL.get(), span);
+        CURRENT_CALL.set(call);
+        return call;
+    }
+
+    /**
+     * Adds an HTTP exchange to the call running on the current thread, if any.
+     *
+     * @param requestBytes size of the request body, -1 if unknown
+     * @param responseBytes size of the response body, -1 if unknown
+     */
+    static void recordExchange(
+            long networkNanos, long requestBytes, long responseBytes, int status) {
+        Call call = CURRENT_CALL.get();
+        if (call != null) {
+            call.exchanges++;
+            call.networkNanos += networkNanos;
+            call.requestBytes += Math.max(requestBytes, 0);
+            call.responseBytes += Math.max(responseBytes, 0);
+            call.lastStatus = status;
+        }
+    }
+
+    /**
+     * Adds the bytes of a response body received on the current thread, before their
+     * decompression, to the running call if any.
+     */
+    static void recordWireBytes(long bytes) {
+        Call call = CURRENT_CALL.get();
+        if (call != null) {
+            call.wireBytes += bytes;
+        }
+    }
+
+    /**
+     * Measures the HTTP exchanges of a HAPI client. The response is read fully before being handed
+     * to the parser, so that reading it counts as network time.
+     */
+    public IClientInterceptor getFhirInterceptor() {
+        return new IClientInterceptor() {
+
+            private final ThreadLocal<long[]> request = new ThreadLocal<>();
+
+            @Override
+            public void interceptRequest(IHttpRequest theRequest) {
+                long requestBytes = -1;
+                if (!"GET".equals(theRequest.getHttpVerbName())) {
+                    try {
+                        String body = theRequest.getRequestBodyFromStream();
+                        if (body != null) {
+                            requestBytes = body.getBytes(StandardCharsets.UTF_8).length;
+                        }
+                    } catch (IOException e) {
+                        log.debug("Cannot measure the request body: {}", e.getMessage());
+                    }
+                }
+                request.set(new long[] {System.nanoTime(), requestBytes});
+            }
+
+            @Override
+            public void interceptResponse(IHttpResponse theResponse) throws IOException {
+                long[] started = request.get();
+                request.remove();
+                if (started == null) {
+                    return;
+                }
+                theResponse.bufferEntity();
+
+                recordExchange(
+                        System.nanoTime() - started[0],
+                        started[1],
+                        HttpTransport.getBodySize(theResponse),
+                        theResponse.getStatus());
+            }
+        };
+    }
+
+    /**
+     * Keeps the first {@code maxHosts} values of the {@code host} tag of the {@code ehr.calls*}
+     * meters, including {@code ehr.calls.retries} and {@code ehr.calls.timeout}, and replaces the
+     * next ones by {@code other}, so that the number of time series stays bounded.
+     */
+    public static MeterFilter hostTagLimit(int maxHosts) {
+        Set<String> hosts = ConcurrentHashMap.newKeySet();
+        return new MeterFilter() {
+            @Override
+            public Meter.Id map(Meter.Id id) {
+                String host = id.getTag("host");
+                if (host == null || !id.getName().startsWith("ehr.calls") || hosts.contains(host)) {
+                    return id;
+                }
+                // a few more hosts may be admitted when raced
+                if (hosts.size() < maxHosts && hosts.add(host)) {
+                    return id;
+                }
+                return id.replaceTags(Tags.of(id.getTagsAsIterable()).and("host", "other"));
+            }
+        };
+    }
+
+    static String host(String serverUrl) {
+        try {
+            String host = URI.create(serverUrl).getHost();
+            return host != null ? host : "unknown";
+        } catch (IllegalArgumentException e) {
+            return "unknown";
+        }
+    }
+
+    public class Call implements AutoCloseable {
+
+        private final String serverUrl;
+
+        private final String operation;
+
+        private final String resourceType;
+
+        private final Call parent;
+
+        private final Span span;
+
+        private final Scope scope;
+
+        private final long start = System.nanoTime();
+
+        private boolean succeeded;
+
+        private int exchanges;
+
+        private long networkNanos;
+
+        private long requestBytes;
+
+        private long responseBytes;
+
+        private long wireBytes;
+
+        private int lastStatus;
+
+        private Call(
+                String serverUrl, String operation, String resourceType, Call parent, Span span) {
+            this.serverUrl = serverUrl;
+            this.operation = operation;
+            this.resourceType = resourceType;
+            this.parent = parent;
+            this.span = span;
+            this.scope = span.makeCurrent();
+        }
+
+        /**
+         * @return {@link System#nanoTime()} when the call started
+         */
+        long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the status of the last HTTP exchange of the call, 0 if none
+         */
+        int getLastStatus() {
+            return lastStatus;
+        }
+
+        /**
+         * Marks the call as successful.
+         *
+         * @return the result, for chaining
+         */
+        public <T> T success(T result) {
+            succeeded = true;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            long total = System.nanoTime() - start;
+            if (parent != null) {
+                CURRENT_CALL.set(parent);
+            } else {
+                CURRENT_CALL.remove();
+            }
+            scope.close();
+            if (lastStatus > 0) {
+                span.setAttribute("http.response.status_code", lastStatus);
+            }
+            if (!succeeded) {
+                span.setStatus(StatusCode.ERROR, outcome());
+            }
+            span.end();
+
+            Tags tags =
+                    Tags.of(
+                            "host", host(serverUrl),
+                            "operation", operation,
+                            "resource_type", resourceType != null ? resourceType : "none",
+                            "outcome", outcome());
+            Timer.builder("ehr.calls")
+                    .description("Calls to the EHRs")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(total, TimeUnit.NANOSECONDS);
+            if (exchanges == 0) {
+                return;
+            }
+            Timer.builder("ehr.calls.network")
+                    .description("Time spent exchanging the requests and responses of a call")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(networkNanos, TimeUnit.NANOSECONDS);
+            Timer.builder("ehr.calls.parse")
+                    .description("Time of a call not spent on the network, mostly parsing")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(Math.max(total - networkNanos, 0), TimeUnit.NANOSECONDS);
+            DistributionSummary.builder("ehr.calls.request.size")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .register(meterRegistry)
+                    .record(requestBytes);
+            DistributionSummary.builder("ehr.calls.response.size")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(responseBytes);
+            DistributionSummary.builder("ehr.calls.response.wire.size")
+                    .baseUnit("bytes")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(wireBytes);
+        }
+
+        private String outcome() {
+            if (succeeded) {
+                return "SUCCESS";
+            }
+            if (lastStatus >= 500) {
+                return "SERVER_ERROR";
+            }
+            if (lastStatus >= 400) {
+                return "CLIENT_ERROR";
+            }
+            return "ERROR";
+        }
+    }
+}
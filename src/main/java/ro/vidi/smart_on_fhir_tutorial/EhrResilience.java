@@ -0,0 +1,436 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.core.IntervalFunction;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps a slow or failing EHR from holding the threads serving the users of the other EHRs. Each
+ * server host has its own:
+ *
+ * <ul>
+ *   <li>bulkhead: at most {@code ehr.resilience.max-concurrent-calls} calls at a time, the others
+ *       wait up to {@code ehr.resilience.max-wait} and are then rejected
+ *   <li>circuit breaker: once {@code ehr.resilience.failure-rate-threshold} percent of the last
+ *       {@code ehr.resilience.sliding-window-size} calls failed, the calls are rejected at once
+ *       for {@code ehr.resilience.open-duration}, then a few trial calls decide whether to resume
+ *   <li>adaptive read timeout, per operation: the smoothed latency plus four times its deviation,
+ *       as TCP does (RFC 6298), between {@code ehr.resilience.timeout.min} and {@code
+ *       http.client.read-timeout}, doubled after each timeout
+ * </ul>
+ *
+ * Idempotent calls ({@link #fetch}, {@link #read}) failing for a network error, a {@code 5xx} or
+ * a {@code 429} are retried up to {@code ehr.resilience.retry.max-attempts} times, with an
+ * exponential backoff and jitter. The others, like the code exchange, are never retried. A call
+ * failing because of a call it made itself, like a FHIR read renewing its token, is neither
+ * retried nor counted by the circuit breaker of its host.
+ *
+ * <p>Each attempt is measured as a call by {@link EhrCalls}. The breakers and bulkheads are
+ * exported as the {@code resilience4j.circuitbreaker.*} and {@code resilience4j.bulkhead.*}
+ * metrics, tagged by host.
+ */
+@Component
+@Slf4j
+public class EhrResilience {
+
+    /**
+     * An attempt of a call to an EHR, measured by the given {@link EhrCalls.Call}.
+     */
+    @FunctionalInterface
+    public interface EhrCall<T> {
+
+        T call(EhrCalls.Call call) throws IOException, ParseException;
+    }
+
+    /**
+     * Thrown without calling the EHR when its circuit breaker is open or its bulkhead full.
+     */
+    public static class CallRejectedException extends IOException {
+
+        public CallRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    @Autowired private EhrCalls ehrCalls;
+
+    @Autowired private MeterRegistry meterRegistry;
+
+    @Value("${ehr.resilience.max-concurrent-calls:20}")
+    private int maxConcurrentCalls;
+
+    @Value("${ehr.resilience.max-wait:PT1S}")
+    private Duration maxWait;
+
+    @Value("${ehr.resilience.failure-rate-threshold:50}")
+    private float failureRateThreshold;
+
+    @Value("${ehr.resilience.sliding-window-size:20}")
+    private int slidingWindowSize;
+
+    @Value("${ehr.resilience.open-duration:PT30S}")
+    private Duration openDuration;
+
+    @Value("${ehr.resilience.retry.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${ehr.resilience.retry.initial-backoff:PT0.2S}")
+    private Duration initialBackoff;
+
+    @Value("${ehr.resilience.timeout.min:PT2S}")
+    private Duration minTimeout;
+
+    @Value("${http.client.read-timeout:PT30S}")
+    private Duration maxTimeout;
+
+    private CircuitBreakerRegistry circuitBreakers;
+
+    private BulkheadRegistry bulkheads;
+
+    private IntervalFunction backoff;
+
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        circuitBreakers =
+                CircuitBreakerRegistry.of(
+                        CircuitBreakerConfig.custom()
+                                .slidingWindowType(
+                                        CircuitBreakerConfig.SlidingWindowType.COUNT_BASED)
+                                .slidingWindowSize(slidingWindowSize)
+                                .minimumNumberOfCalls(slidingWindowSize)
+                                .failureRateThreshold(failureRateThreshold)
+                                .waitDurationInOpenState(openDuration)
+                                .permittedNumberOfCallsInHalfOpenState(3)
+                                .build());
+        bulkheads =
+                BulkheadRegistry.of(
+                        BulkheadConfig.custom()
+                                .maxConcurrentCalls(maxConcurrentCalls)
+                                .maxWaitDuration(maxWait)
+                                .build());
+        backoff = IntervalFunction.ofExponentialRandomBackoff(initialBackoff, 2, 0.5);
+
+        TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(circuitBreakers)
+                .bindTo(meterRegistry);
+        TaggedBulkheadMetrics.ofBulkheadRegistry(bulkheads).bindTo(meterRegistry);
+    }
+
+    /**
+     * Sends an idempotent request, retried on failure.
+     *
+     * @param resourceType FHIR resource type the call is about, or null
+     */
+    public <T> T fetch(
+            String serverUrl, String operation, String resourceType, EhrCall<T> call)
+            throws IOException, ParseException {
+        return execute(serverUrl, operation, resourceType, maxAttempts, call);
+    }
+
+    /**
+     * Sends a request that must not be repeated, like the exchange of an authorization code.
+     */
+    public <T> T send(String serverUrl, String operation, String resourceType, EhrCall<T> call)
+            throws IOException, ParseException {
+        return execute(serverUrl, operation, resourceType, 1, call);
+    }
+
+    /**
+     * Sends an idempotent request through a HAPI FHIR client, retried on failure. The HAPI
+     * exceptions are thrown as is, a rejected call as an {@link UncheckedIOException}.
+     */
+    public <T> T read(
+            String serverUrl,
+            String operation,
+            String resourceType,
+            Function<EhrCalls.Call, T> read) {
+        try {
+            return execute(serverUrl, operation, resourceType, maxAttempts, read::apply);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ParseException e) {
+            // not thrown by the HAPI clients
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T> T execute(
+            String serverUrl, String operation, String resourceType, int attempts, EhrCall<T> call)
+            throws IOException, ParseException {
+        String host = EhrCalls.host(serverUrl);
+        CircuitBreaker circuitBreaker = circuitBreakers.circuitBreaker(host);
+        Bulkhead bulkhead = bulkheads.bulkhead(host);
+        Latency latency =
+                latencies.computeIfAbsent(
+                        host + " " + operation, key -> newLatency(host, operation));
+
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return attempt(
+                            serverUrl,
+                            operation,
+                            resourceType,
+                            circuitBreaker,
+                            bulkhead,
+                            latency,
+                            call);
+                } catch (RetryableException e) {
+                    if (attempt >= attempts || !backOff(host, operation, attempt)) {
+                        throw e.rethrow();
+                    }
+                }
+            }
+        } catch (IOException | ParseException | RuntimeException e) {
+            e.addSuppressed(new FailedCall(host, operation));
+            throw e;
+        }
+    }
+
+    private <T> T attempt(
+            String serverUrl,
+            String operation,
+            String resourceType,
+            CircuitBreaker circuitBreaker,
+            Bulkhead bulkhead,
+            Latency latency,
+            EhrCall<T> call)
+            throws IOException, ParseException, RetryableException {
+        if (!bulkhead.tryAcquirePermission()) {
+            throw new CallRejectedException(
+                    "Too many concurrent calls to " + bulkhead.getName() + ", call rejected");
+        }
+        try {
+            if (!circuitBreaker.tryAcquirePermission()) {
+                throw new CallRejectedException(
+                        "Calls to "
+                                + circuitBreaker.getName()
+                                + " suspended, circuit breaker "
+                                + circuitBreaker.getState());
+            }
+
+            Duration previousTimeout = HttpTransport.setReadTimeout(latency.getTimeout());
+            EhrCalls.Call ehrCall = ehrCalls.start(serverUrl, operation, resourceType);
+            long start = System.nanoTime();
+            try {
+                T result = call.call(ehrCall);
+                long duration = System.nanoTime() - start;
+                circuitBreaker.onSuccess(duration, TimeUnit.NANOSECONDS);
+                latency.record(duration);
+                return result;
+            } catch (IOException | ParseException | RuntimeException e) {
+                long duration = System.nanoTime() - start;
+                if (isNestedCallFailure(e)) {
+                    // already handled by the call that failed, this one was not sent
+                    circuitBreaker.releasePermission();
+                    throw e;
+                }
+                if (!isEhrFailure(e, ehrCall.getLastStatus())) {
+                    // the EHR answered, the request was wrong
+                    circuitBreaker.onSuccess(duration, TimeUnit.NANOSECONDS);
+                    throw e;
+                }
+                circuitBreaker.onError(duration, TimeUnit.NANOSECONDS, e);
+                if (ExceptionUtils.indexOfType(e, SocketTimeoutException.class) >= 0) {
+                    latency.timedOut();
+                }
+                throw new RetryableException(e);
+            } finally {
+                ehrCall.close();
+                HttpTransport.setReadTimeout(previousTimeout);
+            }
+        } finally {
+            bulkhead.onComplete();
+        }
+    }
+
+    /**
+     * @return whether the exception comes from a call made by this one, like the token refresh of
+     *     a FHIR read. It was counted and retried, or not, by its own {@link #execute}: the outer
+     *     call must neither count it against its host nor repeat it.
+     */
+    private static boolean isNestedCallFailure(Exception e) {
+        for (Throwable throwable : ExceptionUtils.getThrowableList(e)) {
+            for (Throwable suppressed : throwable.getSuppressed()) {
+                if (suppressed instanceof FailedCall) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Network errors, including timeouts, and the answers of an EHR unable to serve the request.
+     */
+    private static boolean isEhrFailure(Exception e, int status) {
+        if (status > 0) {
+            return status >= 500 || status == 429;
+        }
+        return ExceptionUtils.indexOfType(e, IOException.class) >= 0;
+    }
+
+    /**
+     * Waits before the next attempt, outside the bulkhead.
+     *
+     * @return false if the attempts should stop
+     */
+    private boolean backOff(String host, String operation, int attempt) {
+        long delay = backoff.apply(attempt);
+        log.debug(
+                "Attempt {} of {} on {} failed, retrying in {} ms",
+                attempt,
+                operation,
+                host,
+                delay);
+        Counter.builder("ehr.calls.retries")
+                .description("Calls to the EHRs retried after a failure")
+                .tags("host", host, "operation", operation)
+                .register(meterRegistry)
+                .increment();
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Latency newLatency(String host, String operation) {
+        Latency latency = new Latency(minTimeout.toNanos(), maxTimeout.toNanos());
+        TimeGauge.builder(
+                        "ehr.calls.timeout",
+                        latency,
+                        TimeUnit.NANOSECONDS,
+                        l -> l.getTimeout().toNanos())
+                .description("Adaptive read timeout of the calls to the EHRs")
+                .tags("host", host, "operation", operation)
+                .register(meterRegistry);
+        return latency;
+    }
+
+    /**
+     * @return the read timeout of the next calls
+     */
+    Duration getTimeout(String serverUrl, String operation) {
+        Latency latency = latencies.get(EhrCalls.host(serverUrl) + " " + operation);
+        return latency != null ? latency.getTimeout() : maxTimeout;
+    }
+
+    /**
+     * Latency of an operation on a host, smoothed as the TCP round-trip time.
+     */
+    private static class Latency {
+
+        private final long minTimeout;
+
+        private final long maxTimeout;
+
+        /**
+         * Guards the estimates, updated after each call.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private long smoothed = -1;
+
+        private long deviation;
+
+        private volatile long timeout;
+
+        private Latency(long minTimeout, long maxTimeout) {
+            this.minTimeout = minTimeout;
+            this.maxTimeout = maxTimeout;
+            this.timeout = maxTimeout;
+        }
+
+        private void record(long duration) {
+            lock.lock();
+            try {
+                if (smoothed < 0) {
+                    smoothed = duration;
+                    deviation = duration / 2;
+                } else {
+                    deviation = (3 * deviation + Math.abs(smoothed - duration)) / 4;
+                    smoothed = (7 * smoothed + duration) / 8;
+                }
+                timeout = Math.min(Math.max(smoothed + 4 * deviation, minTimeout), maxTimeout);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void timedOut() {
+            lock.lock();
+            try {
+                timeout = Math.min(timeout * 2, maxTimeout);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Duration getTimeout() {
+            return Duration.ofNanos(timeout);
+        }
+    }
+
+    /**
+     * Marks the exceptions thrown by {@link #execute}, see {@link #isNestedCallFailure}.
+     */
+    private static class FailedCall extends Exception {
+
+        private FailedCall(String host, String operation) {
+            super(operation + " on " + host + " failed", null, false, false);
+        }
+    }
+
+    /**
+     * A failed attempt, carrying the exception to throw if it is not retried.
+     */
+    private static class RetryableException extends Exception {
+
+        private RetryableException(Exception cause) {
+            super(null, cause, false, false);
+        }
+
+        /**
+         * Throws the cause, or returns it when unchecked.
+         */
+        private RuntimeException rethrow() throws IOException, ParseException {
+            if (getCause() instanceof IOException e) {
+                throw e;
+            }
+            if (getCause() instanceof ParseException e) {
+                throw e;
+            }
+            return (RuntimeException) getCause();
+        }
+    }
+}
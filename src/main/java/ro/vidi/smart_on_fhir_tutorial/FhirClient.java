@@ -2,98 +2,522 @@
 package ro.vidi.smart_on_fhir_tutorial;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.rest.annotation.IdParam;
-import ca.uhn.fhir.rest.annotation.Read;
-import ca.uhn.fhir.rest.client.api.IBasicClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.IRestfulClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.UrlUtil;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import lombok.Getter;
-import org.apache.commons.codec.binary.Base64;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.model.CapabilityStatement;
-import org.hl7.fhir.r4.model.Extension;
-import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.UriType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
-import org.springframework.util.CollectionUtils;
 
 @Component
+@Slf4j
 public class FhirClient {
 
+    /**
+     * Launch of the FHIR call running on the current thread. The cached client proxies are shared
+     * between users, so the launch token cannot be registered on the proxy itself.
+     */
+    private static final ThreadLocal<String> CURRENT_LAUNCH = new ThreadLocal<>();
+
+    /**
+     * Responses to a batch meaning that the server does not support them: no route for a POST to
+     * the base URL, or no such operation. Any other error, an invalid request included, fails the
+     * summary, and the next one tries a batch again.
+     */
+    private static final Set<Integer> BATCH_UNSUPPORTED_STATUSES = Set.of(404, 405, 501);
+
     @Getter
     @Value("${fhir.server.url}")
     private String defaultFhirServerUrl;
 
     @Autowired private Environment environment;
 
-    @Autowired private ObjectMapper mapper;
-
-    public SmartMetadata getMetadataSmartUrls(String fhirServerUrl) {
-        IBasicClient client =
-                FhirContext.forR4().newRestfulClient(IBasicClient.class, fhirServerUrl);
-
-        CapabilityStatement capabilityStatement =
-                (CapabilityStatement) client.getServerConformanceStatement();
-
-        SmartMetadata smartMetadata = new SmartMetadata();
-        smartMetadata.setJsonResponse(convertResourceToString(capabilityStatement));
-        for (CapabilityStatement.CapabilityStatementRestComponent rest :
-                capabilityStatement.getRest()) {
-            if (rest.getSecurity() != null) {
-                for (Extension extension : rest.getSecurity().getExtension()) {
-                    if (extension
-                                    .getUrl()
-                                    .equals(
-                                            "http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris")
-                            && !CollectionUtils.isEmpty(extension.getExtension())) {
-                        for (Extension smartExtension : extension.getExtension()) {
-                            switch (smartExtension.getUrl()) {
-                                case "authorize":
-                                    smartMetadata.setAuthorizeUrl(
-                                            ((UriType) smartExtension.getValue()).getValue());
-                                    break;
-                                case "token":
-                                    smartMetadata.setTokenUrl(
-                                            ((UriType) smartExtension.getValue()).getValue());
-                                    break;
-                                default:
-                                    break;
-                            }
-                        }
-                    }
-                }
+    @Autowired private FhirContext fhirContext;
+
+    @Autowired private HttpTransport httpTransport;
+
+    @Autowired private ExecutorService outboundExecutor;
+
+    @Autowired private TokenStore tokenStore;
+
+    @Autowired private LaunchStateStore launchStateStore;
+
+    @Autowired private FhirResourceCache resourceCache;
+
+    @Autowired private EhrCalls ehrCalls;
+
+    @Autowired private EhrResilience ehrResilience;
+
+    /**
+     * Resource types loaded by {@link #getPatientSummary}.
+     */
+    @Value(
+            "${fhir.summary.resource-types:Observation,Condition,MedicationRequest,Encounter,AllergyIntolerance}")
+    private List<String> summaryResourceTypes;
+
+    /**
+     * Maximum concurrent searches of {@link #getPatientSummary} when the server has no batch
+     * support.
+     */
+    @Value("${fhir.summary.max-parallel-searches:5}")
+    private int summaryMaxParallelSearches;
+
+    /**
+     * How long the summaries of a server that rejected a batch are searched one resource type at
+     * a time, before trying a batch again.
+     */
+    @Value("${fhir.summary.batch-retry-interval:PT1H}")
+    private Duration summaryBatchRetryInterval;
+
+    @Value("${fhir.search.page-size:50}")
+    private int searchPageSize;
+
+    /**
+     * Pages of each paged search kept in memory.
+     */
+    @Value("${fhir.search.cached-pages:3}")
+    private int searchCachedPages;
+
+    private final Map<String, IGenericClient> genericClients = new ConcurrentHashMap<>();
+
+    /**
+     * Servers that rejected a batch, with the {@link System#nanoTime()} until which they are
+     * searched one resource type at a time.
+     */
+    private final Map<String, Long> batchUnsupported = new ConcurrentHashMap<>();
+
+    /**
+     * Reads the SMART URLs from the oauth-uris extension of the server {@code CapabilityStatement}.
+     * The statement is not parsed into the HAPI model: the URLs are picked from the JSON tokens
+     * by {@link SmartExtensionExtractor} and the raw response is kept as the metadata content.
+     */
+    public SmartMetadata getMetadataSmartUrls(String fhirServerUrl)
+            throws IOException, ParseException {
+        HTTPRequest request =
+                new HTTPRequest(
+                        HTTPRequest.Method.GET,
+                        new URL(StringUtils.removeEnd(fhirServerUrl, "/") + "/metadata"));
+        request.setAccept(Constants.CT_FHIR_JSON_NEW);
+
+        return ehrResilience.fetch(
+                fhirServerUrl,
+                "metadata",
+                "CapabilityStatement",
+                call -> {
+                    HTTPResponse response = httpTransport.send(request);
+                    response.ensureStatusCode(HTTPResponse.SC_OK);
+
+                    String capabilityStatement = response.getContent();
+                    SmartMetadata smartMetadata =
+                            SmartExtensionExtractor.extract(capabilityStatement);
+                    smartMetadata.setJsonResponse(capabilityStatement);
+                    return call.success(smartMetadata);
+                });
+    }
+
+    /**
+     * @throws IOException when the state was not issued by the {@link LaunchStateStore}, or expired
+     */
+    public AppState decodeState(String stateEncoded) throws IOException {
+        return launchStateStore.resolve(stateEncoded);
+    }
+
+    /**
+     * Reads a patient with the access token stored for the launch in the {@link TokenStore}. A
+     * patient read before is revalidated and served from the {@link FhirResourceCache}.
+     */
+    public Patient getPatient(String fhirServerUrl, String launchId, String patientId) {
+        return getPatient(fhirServerUrl, launchId, patientId, Projection.FULL);
+    }
+
+    /**
+     * Reads the given part of a patient, see {@link #getPatient(String, String, String)}.
+     */
+    public Patient getPatient(
+            String fhirServerUrl, String launchId, String patientId, Projection projection) {
+        IGenericClient client =
+                getOrCreateClient(
+                        genericClients, fhirServerUrl, fhirContext::newRestfulGenericClient);
+
+        return ehrResilience.read(
+                fhirServerUrl,
+                "read",
+                "Patient",
+                call ->
+                        call.success(
+                                withLaunch(
+                                        launchId,
+                                        () ->
+                                                resourceCache.read(
+                                                        client,
+                                                        launchId,
+                                                        Patient.class,
+                                                        patientId,
+                                                        projection))));
+    }
+
+    public CompletableFuture<Patient> getPatientAsync(
+            String fhirServerUrl, String launchId, String patientId) {
+        return getPatientAsync(fhirServerUrl, launchId, patientId, Projection.FULL);
+    }
+
+    public CompletableFuture<Patient> getPatientAsync(
+            String fhirServerUrl, String launchId, String patientId, Projection projection) {
+        return CompletableFuture.supplyAsync(
+                () -> getPatient(fhirServerUrl, launchId, patientId, projection),
+                outboundExecutor);
+    }
+
+    /**
+     * Loads the {@code fhir.summary.resource-types} resources of a patient, see {@link
+     * #getPatientSummaryAsync}. Blocks the calling thread, which must not be one of the outbound
+     * executor.
+     */
+    public PatientSummary getPatientSummary(
+            String fhirServerUrl, String launchId, String patientId) {
+        try {
+            return getPatientSummaryAsync(fhirServerUrl, launchId, patientId).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
             }
+            throw e;
         }
-        return smartMetadata;
     }
 
-    public AppState decodeState(String stateEncoded) throws IOException {
-        return mapper.readValue(Base64.decodeBase64(stateEncoded.getBytes()), AppState.class);
+    /**
+     * Loads the {@code fhir.summary.resource-types} resources of a patient. The searches are sent
+     * as a single {@code batch} Bundle, or as concurrent searches when the server does not support
+     * batches. No outbound thread waits for another outbound task: the searches are chained, not
+     * joined.
+     */
+    public CompletableFuture<PatientSummary> getPatientSummaryAsync(
+            String fhirServerUrl, String launchId, String patientId) {
+        IGenericClient client =
+                getOrCreateClient(
+                        genericClients, fhirServerUrl, fhirContext::newRestfulGenericClient);
+
+        long start = System.nanoTime();
+        CompletableFuture<PatientSummary> batch =
+                isBatchUnsupported(fhirServerUrl)
+                        ? CompletableFuture.completedFuture(null)
+                        : CompletableFuture.supplyAsync(
+                                () ->
+                                        searchInBatchIfSupported(
+                                                fhirServerUrl, client, launchId, patientId),
+                                outboundExecutor);
+        return batch.thenCompose(
+                        summary ->
+                                summary != null
+                                        ? CompletableFuture.completedFuture(summary)
+                                        : searchInParallel(client, launchId, patientId))
+                .thenApply(
+                        summary -> {
+                            summary.setDurationMillis(
+                                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                            return summary;
+                        });
+    }
+
+    /**
+     * Searches the resources of a patient. Nothing is requested until the first rows are fetched,
+     * or prefetched, from the returned {@link PagedSearch}.
+     */
+    public PagedSearch searchPaged(
+            String fhirServerUrl, String launchId, String resourceType, String patientId) {
+        IGenericClient client =
+                getOrCreateClient(
+                        genericClients, fhirServerUrl, fhirContext::newRestfulGenericClient);
+
+        return new PagedSearch(
+                patientSearchUrl(resourceType, patientId),
+                searchPageSize,
+                searchCachedPages,
+                pageUrl ->
+                        ehrResilience.read(
+                                fhirServerUrl,
+                                "search-page",
+                                resourceType,
+                                call ->
+                                        call.success(
+                                                withLaunch(
+                                                        launchId,
+                                                        () ->
+                                                                client.search()
+                                                                        .byUrl(pageUrl)
+                                                                        .returnBundle(Bundle.class)
+                                                                        .execute()))));
+    }
+
+    /**
+     * Loads the page of the search holding the row at {@code offset} in the background, see {@link
+     * PagedSearch#prefetch}.
+     */
+    public CompletableFuture<Void> prefetchAsync(PagedSearch pagedSearch, int offset) {
+        return CompletableFuture.runAsync(() -> pagedSearch.prefetch(offset), outboundExecutor);
     }
 
-    public Patient getPatient(String fhirServerUrl, String accessToken, String patientId) {
-        IPatientClient client =
-                FhirContext.forR4().newRestfulClient(IPatientClient.class, fhirServerUrl);
-        BearerTokenAuthInterceptor authInterceptor = new BearerTokenAuthInterceptor(accessToken);
-        client.registerInterceptor(authInterceptor);
+    private boolean isBatchUnsupported(String fhirServerUrl) {
+        Long until = batchUnsupported.get(fhirServerUrl);
+        if (until == null) {
+            return false;
+        }
+        if (System.nanoTime() - until < 0) {
+            return true;
+        }
+        batchUnsupported.remove(fhirServerUrl, until);
+        return false;
+    }
+
+    /**
+     * @return null when the server does not support batches, remembered for the next summaries
+     *     during {@code fhir.summary.batch-retry-interval}
+     */
+    private PatientSummary searchInBatchIfSupported(
+            String fhirServerUrl, IGenericClient client, String launchId, String patientId) {
+        try {
+            return searchInBatch(client, launchId, patientId);
+        } catch (BaseServerResponseException e) {
+            if (!BATCH_UNSUPPORTED_STATUSES.contains(e.getStatusCode())) {
+                throw e;
+            }
+            log.info(
+                    "{} rejected the batch ({}), searching one resource type at a time for {}",
+                    fhirServerUrl,
+                    e.getStatusCode(),
+                    summaryBatchRetryInterval);
+            batchUnsupported.put(
+                    fhirServerUrl, System.nanoTime() + summaryBatchRetryInterval.toNanos());
+            return null;
+        }
+    }
+
+    private PatientSummary searchInBatch(IGenericClient client, String launchId, String patientId) {
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        for (String resourceType : summaryResourceTypes) {
+            batch.addEntry()
+                    .getRequest()
+                    .setMethod(Bundle.HTTPVerb.GET)
+                    .setUrl(patientSearchUrl(resourceType, patientId));
+        }
+
+        // a POST, but of searches only, so it can be retried like them
+        Bundle response =
+                ehrResilience.read(
+                        client.getServerBase(),
+                        "batch",
+                        null,
+                        call ->
+                                call.success(
+                                        withLaunch(
+                                                launchId,
+                                                () ->
+                                                        client.transaction()
+                                                                .withBundle(batch)
+                                                                .execute())));
+
+        PatientSummary summary = new PatientSummary();
+        summary.setFetchMode(PatientSummary.FetchMode.BATCH);
+        summary.setResponseBytes(Math.max(0, FhirResourceCache.getLastResponseSize()));
+        for (int i = 0; i < summaryResourceTypes.size(); i++) {
+            PatientSummary.Section section = new PatientSummary.Section();
+            section.setResourceType(summaryResourceTypes.get(i));
+
+            Bundle.BundleEntryComponent entry =
+                    i < response.getEntry().size() ? response.getEntry().get(i) : null;
+            if (entry != null && entry.getResource() instanceof Bundle searchSet) {
+                addResources(section, searchSet);
+            } else {
+                section.setError(
+                        entry == null ? "No response" : entry.getResponse().getStatus());
+            }
+            summary.getSections().add(section);
+        }
+        return summary;
+    }
+
+    /**
+     * Runs the searches in at most {@code fhir.summary.max-parallel-searches} chains, each chain
+     * starting its next search on the outbound executor once the previous one is done.
+     */
+    private CompletableFuture<PatientSummary> searchInParallel(
+            IGenericClient client, String launchId, String patientId) {
+        int count = summaryResourceTypes.size();
+        int chainCount = Math.max(1, Math.min(summaryMaxParallelSearches, count));
+        PatientSummary.Section[] sections = new PatientSummary.Section[count];
+        List<CompletableFuture<Void>> chains = new ArrayList<>();
+        for (int first = 0; first < chainCount; first++) {
+            CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+            for (int i = first; i < count; i += chainCount) {
+                int index = i;
+                chain =
+                        chain.thenRunAsync(
+                                () ->
+                                        sections[index] =
+                                                search(
+                                                        client,
+                                                        launchId,
+                                                        summaryResourceTypes.get(index),
+                                                        patientId),
+                                outboundExecutor);
+            }
+            chains.add(chain);
+        }
+
+        return CompletableFuture.allOf(chains.toArray(CompletableFuture[]::new))
+                .thenApply(
+                        done -> {
+                            PatientSummary summary = new PatientSummary();
+                            summary.setFetchMode(PatientSummary.FetchMode.PARALLEL);
+                            summary.getSections().addAll(List.of(sections));
+                            summary.setResponseBytes(
+                                    Stream.of(sections)
+                                            .mapToLong(PatientSummary.Section::getResponseBytes)
+                                            .sum());
+                            return summary;
+                        });
+    }
 
-        return client.readPatient(new IdType(patientId));
+    private PatientSummary.Section search(
+            IGenericClient client, String launchId, String resourceType, String patientId) {
+        PatientSummary.Section section = new PatientSummary.Section();
+        section.setResourceType(resourceType);
+
+        long start = System.nanoTime();
+        String searchUrl = patientSearchUrl(resourceType, patientId);
+        try {
+            Bundle searchSet =
+                    ehrResilience.read(
+                            client.getServerBase(),
+                            "search",
+                            resourceType,
+                            call ->
+                                    call.success(
+                                            withLaunch(
+                                                    launchId,
+                                                    () ->
+                                                            client.search()
+                                                                    .byUrl(searchUrl)
+                                                                    .returnBundle(Bundle.class)
+                                                                    .execute())));
+            section.setResponseBytes(Math.max(0, FhirResourceCache.getLastResponseSize()));
+            addResources(section, searchSet);
+        } catch (BaseServerResponseException e) {
+            section.setError(e.getStatusCode() + " " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            section.setError(e.getCause().getMessage());
+        }
+        section.setDurationMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return section;
+    }
+
+    private static String patientSearchUrl(String resourceType, String patientId) {
+        return resourceType + "?patient=" + UrlUtil.escapeUrlParam(patientId);
+    }
+
+    private static void addResources(PatientSummary.Section section, Bundle searchSet) {
+        if (searchSet.hasTotal()) {
+            section.setTotal(searchSet.getTotal());
+        }
+        for (Bundle.BundleEntryComponent entry : searchSet.getEntry()) {
+            if (entry.hasResource()) {
+                section.getResources().add(entry.getResource());
+            }
+        }
+    }
+
+    private static <T> T withLaunch(String launchId, Supplier<T> call) {
+        CURRENT_LAUNCH.set(launchId);
+        try {
+            return call.get();
+        } finally {
+            CURRENT_LAUNCH.remove();
+        }
+    }
+
+    /**
+     * Builds the client proxy of a server ahead of its first call, see {@link TenantRegistry}.
+     */
+    public void prepareClient(String fhirServerUrl) {
+        getOrCreateClient(genericClients, fhirServerUrl, fhirContext::newRestfulGenericClient);
     }
 
     public String convertResourceToString(IBaseResource resource) {
-        return FhirContext.forR4().newJsonParser().encodeResourceToString(resource);
+        return fhirContext.newJsonParser().encodeResourceToString(resource);
+    }
+
+    /**
+     * Client proxies are immutable once built, so one proxy per server base URL is reused for all
+     * calls instead of building a new one on every click.
+     */
+    private <T extends IRestfulClient> T getOrCreateClient(
+            Map<String, T> clients, String fhirServerUrl, Function<String, T> clientFactory) {
+        return clients.computeIfAbsent(
+                fhirServerUrl,
+                serverUrl -> {
+                    long start = System.nanoTime();
+                    T client = clientFactory.apply(serverUrl);
+                    client.registerInterceptor(new AccessTokenInterceptor());
+                    client.registerInterceptor(resourceCache.getResponseSizeInterceptor());
+                    client.registerInterceptor(ehrCalls.getFhirInterceptor());
+                    log.info(
+                            "Created FHIR client for {} in {} ms",
+                            serverUrl,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    return client;
+                });
     }
 
-    private interface IPatientClient extends IBasicClient {
-        /**
-         * Read a patient from a server by ID
-         */
-        @Read
-        Patient readPatient(@IdParam IdType theId);
+    /**
+     * Adds the bearer token of the current launch, if any, to the outgoing request. The token is
+     * read from the {@link TokenStore} on every request, so renewed tokens are picked up.
+     */
+    private class AccessTokenInterceptor implements IClientInterceptor {
+
+        @Override
+        public void interceptRequest(IHttpRequest theRequest) {
+            String launchId = CURRENT_LAUNCH.get();
+            if (launchId != null) {
+                theRequest.addHeader(
+                        Constants.HEADER_AUTHORIZATION,
+                        Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER
+                                + tokenStore.getAccessToken(launchId));
+            }
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse theResponse) {}
     }
 }
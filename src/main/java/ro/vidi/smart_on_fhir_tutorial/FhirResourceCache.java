@@ -0,0 +1,225 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.utils.DateUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Base;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of the resources read by {@link FhirClient}, per launch, server, resource type, id and
+ * {@link Projection}.
+ *
+ * <p>A cached resource is revalidated on every read with a conditional request: {@code
+ * If-None-Match} with its version and {@code If-Modified-Since} with its last update. A {@code 304
+ * Not Modified} answer is served from the cache without transferring or parsing the resource
+ * again. Entries are scoped to the launch, so a resource is never served to a launch whose token
+ * was not allowed to read it.
+ *
+ * <p>The cache holds at most {@code fhir.cache.max-bytes} of resources, measured by their response
+ * size, evicting the least recently used first.
+ */
+@Component
+@Slf4j
+public class FhirResourceCache {
+
+    /**
+     * Size of the last response received on the current thread, -1 if unknown.
+     */
+    private static final ThreadLocal<Long> RESPONSE_BYTES = ThreadLocal.withInitial(() -> -1L);
+
+    /**
+     * User data of the resources read, the size of the response they were parsed from.
+     */
+    private static final String RESPONSE_SIZE = FhirResourceCache.class.getName() + ".responseSize";
+
+    @Autowired private FhirContext fhirContext;
+
+    @Value("${fhir.cache.max-bytes:33554432}")
+    private long maxBytes;
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public record Stats(long hits, long misses, long bytesSaved, int entries, long bytes) {}
+
+    /**
+     * Reads a whole resource, see {@link #read(IGenericClient, String, Class, String, Projection)}.
+     */
+    public <T extends IBaseResource> T read(
+            IGenericClient client, String launchId, Class<T> resourceType, String id) {
+        return read(client, launchId, resourceType, id, Projection.FULL);
+    }
+
+    /**
+     * Reads a resource, revalidating the cached copy if any. The returned resource may be shared
+     * with other reads and must not be modified.
+     *
+     * @param launchId launch whose token is used for the read
+     * @param projection part of the resource to read, cached apart from the other parts
+     */
+    public <T extends IBaseResource> T read(
+            IGenericClient client,
+            String launchId,
+            Class<T> resourceType,
+            String id,
+            Projection projection) {
+        Key key =
+                new Key(
+                        launchId,
+                        client.getServerBase(),
+                        fhirContext.getResourceType(resourceType),
+                        id,
+                        projection);
+        Entry cached = get(key);
+
+        IReadExecutable<T> read =
+                projection.applyTo(client.read().resource(resourceType).withId(id));
+        if (cached != null && cached.versionId() != null) {
+            read = read.ifVersionMatches(cached.versionId()).returnNull();
+        }
+        if (cached != null && cached.lastModified() != null) {
+            read.withAdditionalHeader(
+                    Constants.HEADER_IF_MODIFIED_SINCE,
+                    DateUtils.formatDate(cached.lastModified()));
+        }
+
+        T resource;
+        RESPONSE_BYTES.set(-1L);
+        try {
+            resource = read.execute();
+        } catch (NotModifiedException e) {
+            resource = null;
+        }
+
+        if (resource == null && cached != null) {
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(cached.size());
+            log.debug("{} not modified, served from the cache", key);
+            return resourceType.cast(cached.resource());
+        }
+
+        misses.incrementAndGet();
+        long size = RESPONSE_BYTES.get();
+        if (size < 0) {
+            size =
+                    fhirContext
+                            .newJsonParser()
+                            .encodeResourceToString(resource)
+                            .getBytes(StandardCharsets.UTF_8)
+                            .length;
+        }
+        if (resource instanceof Base base) {
+            base.setUserData(RESPONSE_SIZE, size);
+        }
+        put(
+                key,
+                new Entry(
+                        resource,
+                        resource.getIdElement().getVersionIdPart(),
+                        resource.getMeta().getLastUpdated(),
+                        size));
+        return resource;
+    }
+
+    public Stats getStats() {
+        synchronized (entries) {
+            return new Stats(hits.get(), misses.get(), bytesSaved.get(), entries.size(), bytes);
+        }
+    }
+
+    /**
+     * @return size of the response a resource returned by {@link #read} was parsed from, -1 if
+     *     unknown
+     */
+    public static long getResponseSize(IBaseResource resource) {
+        return resource instanceof Base base && base.getUserData(RESPONSE_SIZE) instanceof Long size
+                ? size
+                : -1;
+    }
+
+    /**
+     * @return size of the last response received on the current thread by a client with the
+     *     {@link #getResponseSizeInterceptor()}, -1 if unknown
+     */
+    public static long getLastResponseSize() {
+        return RESPONSE_BYTES.get();
+    }
+
+    /**
+     * Records the size of the responses, to be registered on the clients whose reads are cached.
+     */
+    public IClientInterceptor getResponseSizeInterceptor() {
+        return new IClientInterceptor() {
+            @Override
+            public void interceptRequest(IHttpRequest theRequest) {
+                RESPONSE_BYTES.set(-1L);
+            }
+
+            @Override
+            public void interceptResponse(IHttpResponse theResponse) throws IOException {
+                // the compressed responses have no Content-Length once decompressed
+                theResponse.bufferEntity();
+                RESPONSE_BYTES.set(HttpTransport.getBodySize(theResponse));
+            }
+        };
+    }
+
+    private Entry get(Key key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private void put(Key key, Entry entry) {
+        if (entry.size() > maxBytes) {
+            return;
+        }
+        synchronized (entries) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.size();
+            }
+            bytes += entry.size();
+
+            var eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().size();
+                eldest.remove();
+            }
+        }
+    }
+
+    private record Key(
+            String launchId,
+            String serverBase,
+            String resourceType,
+            String id,
+            Projection projection) {}
+
+    private record Entry(IBaseResource resource, String versionId, Date lastModified, long size) {}
+}
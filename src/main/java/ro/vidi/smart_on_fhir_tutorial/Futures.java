@@ -0,0 +1,41 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+public class Futures {
+
+    /**
+     * Like {@link CompletableFuture#supplyAsync}, for calls throwing checked exceptions. The
+     * exception thrown by the call is the cause of the {@link CompletionException}.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Callable<T> call, Executor executor) {
+        return CompletableFuture.supplyAsync(
+                () -> {
+                    try {
+                        return call.call();
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                },
+                executor);
+    }
+
+    /**
+     * @return the exception thrown by the asynchronous call, without the future wrappers
+     */
+    public static Throwable unwrap(Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
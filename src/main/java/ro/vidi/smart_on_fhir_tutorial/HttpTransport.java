@@ -0,0 +1,410 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.context.Context;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStreamFactory;
+import org.apache.http.client.entity.GZIPInputStreamFactory;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.brotli.dec.BrotliInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * HTTP client shared by the HAPI FHIR clients and the Nimbus OAuth/OIDC requests, so calls to the
+ * same EHR reuse pooled keep-alive connections instead of opening a new connection (and TLS
+ * handshake) every time.
+ *
+ * <p>HAPI uses the pooled client directly, see {@code AppConfig#fhirContext}. Nimbus requests are
+ * built as usual and sent through {@link #send(HTTPRequest)} instead of {@code
+ * HTTPRequest.send()}.
+ *
+ * <p>Every request carries the current trace context, so the EHR can join its own spans to the
+ * launch trace, see {@link LaunchTracing}.
+ *
+ * <p>The requests accept the {@code http.client.accept-encoding} content encodings, gzip and
+ * Brotli by default. The responses are decompressed as they are read, and the compressed bytes
+ * received are added to the running {@link EhrCalls} call.
+ */
+@Component
+@Slf4j
+public class HttpTransport {
+
+    /**
+     * Read timeout of the requests sent from the current thread, instead of {@code
+     * http.client.read-timeout}, see {@link EhrResilience}.
+     */
+    private static final ThreadLocal<Duration> READ_TIMEOUT = new ThreadLocal<>();
+
+    @Value("${http.client.max-connections:200}")
+    private int maxConnections;
+
+    @Value("${http.client.max-connections-per-host:20}")
+    private int maxConnectionsPerHost;
+
+    @Value("${http.client.connect-timeout:PT5S}")
+    private Duration connectTimeout;
+
+    @Value("${http.client.read-timeout:PT30S}")
+    private Duration readTimeout;
+
+    @Value("${http.client.pool-timeout:PT5S}")
+    private Duration poolTimeout;
+
+    @Value("${http.client.idle-timeout:PT1M}")
+    private Duration idleTimeout;
+
+    /**
+     * Content encodings accepted, among {@code gzip}, {@code deflate} and {@code br}, none to
+     * receive the responses uncompressed.
+     */
+    @Value("${http.client.accept-encoding:gzip,br}")
+    private List<String> acceptEncoding = List.of("gzip", "br");
+
+    @Autowired private OpenTelemetry openTelemetry = OpenTelemetry.noop();
+
+    @Getter private PoolingHttpClientConnectionManager connectionManager;
+
+    /**
+     * Routes of the client, through the proxies of the system properties as with {@link
+     * HttpClientBuilder#useSystemProperties()}.
+     */
+    private HttpRoutePlanner routePlanner;
+
+    @Getter private CloseableHttpClient httpClient;
+
+    @PostConstruct
+    public void init() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        connectionManager.setValidateAfterInactivity((int) Duration.ofSeconds(2).toMillis());
+        routePlanner =
+                new SystemDefaultRoutePlanner(
+                        DefaultSchemePortResolver.INSTANCE, ProxySelector.getDefault());
+
+        HttpClientBuilder builder = HttpClients.custom();
+        Map<String, InputStreamFactory> decoders = contentDecoders(acceptEncoding);
+        if (decoders.isEmpty()) {
+            builder.disableContentCompression();
+        } else {
+            builder.setContentDecoderRegistry(decoders);
+        }
+        httpClient =
+                builder.setConnectionManager(connectionManager)
+                        .setRoutePlanner(routePlanner)
+                        .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                        .setDefaultRequestConfig(
+                                RequestConfig.custom()
+                                        .setConnectTimeout((int) connectTimeout.toMillis())
+                                        .setSocketTimeout((int) readTimeout.toMillis())
+                                        .setConnectionRequestTimeout((int) poolTimeout.toMillis())
+                                        .build())
+                        .addInterceptorLast(traceContextInterceptor())
+                        .addInterceptorLast(readTimeoutInterceptor())
+                        .addInterceptorFirst(wireBytesInterceptor())
+                        .evictExpiredConnections()
+                        .evictIdleConnections(idleTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                        .useSystemProperties()
+                        .build();
+
+        log.info(
+                "HTTP transport ready: {} connections ({} per host), connect timeout {}, read"
+                        + " timeout {}, encodings {}",
+                maxConnections,
+                maxConnectionsPerHost,
+                connectTimeout,
+                readTimeout,
+                decoders.keySet());
+    }
+
+    /**
+     * @return the decoders of the supported encodings, by name; the client accepts their names
+     */
+    private static Map<String, InputStreamFactory> contentDecoders(List<String> encodings) {
+        Map<String, InputStreamFactory> decoders = new LinkedHashMap<>();
+        for (String encoding : encodings) {
+            switch (encoding.trim().toLowerCase()) {
+                case "gzip" -> decoders.put("gzip", GZIPInputStreamFactory.getInstance());
+                case "deflate" -> decoders.put("deflate", DeflateInputStreamFactory.getInstance());
+                case "br" -> decoders.put("br", BrotliInputStream::new);
+                case "" -> {}
+                default -> log.warn("Unsupported content encoding {}, ignored", encoding);
+            }
+        }
+        return decoders;
+    }
+
+    /**
+     * Counts the bytes of the response bodies as received, before their decompression. Runs
+     * before the response interceptor of the client replacing the entity by a decompressing one.
+     */
+    private static HttpResponseInterceptor wireBytesInterceptor() {
+        return (response, context) -> {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return;
+            }
+            response.setEntity(
+                    new HttpEntityWrapper(entity) {
+                        @Override
+                        public InputStream getContent() throws IOException {
+                            return new ProxyInputStream(super.getContent()) {
+                                @Override
+                                protected void afterRead(int n) {
+                                    if (n > 0) {
+                                        EhrCalls.recordWireBytes(n);
+                                    }
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            try (InputStream in = getContent()) {
+                                in.transferTo(out);
+                            }
+                        }
+                    });
+        };
+    }
+
+    /**
+     * @return the size of the body of a response received by a HAPI client, once decompressed.
+     *     The response must be buffered, see {@link IHttpResponse#bufferEntity()}.
+     */
+    static long getBodySize(IHttpResponse response) throws IOException {
+        try (InputStream body = response.readEntity()) {
+            // a buffered body is read from memory, all of it is available
+            return body != null ? body.available() : 0;
+        }
+    }
+
+    private HttpRequestInterceptor traceContextInterceptor() {
+        return (request, context) ->
+                openTelemetry
+                        .getPropagators()
+                        .getTextMapPropagator()
+                        .inject(Context.current(), request, HttpRequest::setHeader);
+    }
+
+    /**
+     * Applies the {@link #setReadTimeout read timeout of the thread}, if any. The request
+     * interceptors run before the connection timeouts are set from the context.
+     */
+    private static HttpRequestInterceptor readTimeoutInterceptor() {
+        return (request, context) -> {
+            Duration readTimeout = READ_TIMEOUT.get();
+            if (readTimeout != null) {
+                HttpClientContext clientContext = HttpClientContext.adapt(context);
+                clientContext.setRequestConfig(
+                        RequestConfig.copy(clientContext.getRequestConfig())
+                                .setSocketTimeout((int) readTimeout.toMillis())
+                                .build());
+            }
+        };
+    }
+
+    /**
+     * Sets the read timeout of the requests sent from the current thread, by the pooled client and
+     * the HAPI clients using it.
+     *
+     * @param readTimeout the timeout, or null for {@code http.client.read-timeout}
+     * @return the previous timeout of the thread, to be restored once done
+     */
+    static Duration setReadTimeout(Duration readTimeout) {
+        Duration previous = READ_TIMEOUT.get();
+        if (readTimeout != null) {
+            READ_TIMEOUT.set(readTimeout);
+        } else {
+            READ_TIMEOUT.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * Sends a Nimbus request over the pooled client. The exchange is added to the {@link
+     * EhrCalls} call running on the current thread, if any.
+     */
+    public HTTPResponse send(HTTPRequest request) throws IOException {
+        RequestBuilder requestBuilder = RequestBuilder.create(request.getMethod().name());
+        try {
+            String url = request.getURL().toString();
+            if (request.getQuery() != null
+                    && (request.getMethod() == HTTPRequest.Method.GET
+                            || request.getMethod() == HTTPRequest.Method.DELETE)) {
+                url += (url.contains("?") ? "&" : "?") + request.getQuery();
+            } else if (request.getQuery() != null) {
+                requestBuilder.setEntity(
+                        new StringEntity(request.getQuery(), StandardCharsets.UTF_8));
+            }
+            requestBuilder.setUri(new URI(url));
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        request.getHeaderMap()
+                .forEach((name, values) -> values.forEach(v -> requestBuilder.addHeader(name, v)));
+
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = httpClient.execute(requestBuilder.build())) {
+            HTTPResponse httpResponse = new HTTPResponse(response.getStatusLine().getStatusCode());
+            httpResponse.setStatusMessage(response.getStatusLine().getReasonPhrase());
+
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            for (Header header : response.getAllHeaders()) {
+                headers.computeIfAbsent(header.getName(), name -> new ArrayList<>())
+                        .add(header.getValue());
+            }
+            headers.forEach(
+                    (name, values) -> httpResponse.setHeader(name, values.toArray(new String[0])));
+
+            HttpEntity entity = response.getEntity();
+            long responseBytes = 0;
+            if (entity != null) {
+                if (entity.getContentType() != null) {
+                    httpResponse.setContentType(entity.getContentType().getValue());
+                }
+                byte[] content = EntityUtils.toByteArray(entity);
+                responseBytes = content.length;
+                httpResponse.setContent(new String(content, StandardCharsets.UTF_8));
+            }
+            EhrCalls.recordExchange(
+                    System.nanoTime() - start,
+                    request.getQuery() != null ? request.getQuery().length() : 0,
+                    responseBytes,
+                    httpResponse.getStatusCode());
+            return httpResponse;
+        } catch (ParseException e) {
+            throw new IOException("Invalid response content type", e);
+        }
+    }
+
+    /**
+     * Opens a connection to the host of a URL and returns it to the pool, so that the first
+     * request to the host does not wait for the TCP and TLS handshakes. The connection is closed
+     * once idle for {@code http.client.idle-timeout}, but the TLS session stays in the JSSE cache,
+     * so the next handshakes with the host are abbreviated.
+     *
+     * <p>The route is planned as for the requests. Only the direct routes are opened, the hosts
+     * reached through a proxy are left alone.
+     */
+    public void preconnect(String url) throws IOException {
+        URI uri = URI.create(url);
+        HttpHost host = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+        HttpRoute route;
+        try {
+            route =
+                    routePlanner.determineRoute(
+                            host, new BasicHttpRequest("GET", url), HttpClientContext.create());
+        } catch (HttpException e) {
+            throw new IOException("Cannot route to " + host, e);
+        }
+        if (route.getProxyHost() != null) {
+            log.debug("Not preconnecting to {} through the proxy {}", host, route.getProxyHost());
+            return;
+        }
+
+        HttpClientConnection connection;
+        try {
+            connection =
+                    connectionManager
+                            .requestConnection(route, null)
+                            .get(poolTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + host);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot connect to " + host, e.getCause());
+        }
+
+        try {
+            if (!connection.isOpen()) {
+                HttpClientContext context = HttpClientContext.create();
+                connectionManager.connect(
+                        connection, route, (int) connectTimeout.toMillis(), context);
+                connectionManager.routeComplete(connection, route, context);
+            }
+        } catch (IOException e) {
+            connection.shutdown();
+            throw e;
+        } finally {
+            connectionManager.releaseConnection(
+                    connection, null, idleTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Connections leased, available and pending over all hosts.
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Connections leased, available and pending per host.
+     */
+    public Map<String, PoolStats> getPoolStatsPerHost() {
+        Map<String, PoolStats> statsPerHost = new LinkedHashMap<>();
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            statsPerHost.put(
+                    route.getTargetHost().toHostString(), connectionManager.getStats(route));
+        }
+        return statsPerHost;
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
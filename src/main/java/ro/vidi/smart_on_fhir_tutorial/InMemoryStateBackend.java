@@ -0,0 +1,97 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@link StateBackend} local to the instance, keeping at most {@code app.state.memory.max-size}
+ * values and evicting the least recently used first.
+ */
+@Component
+@ConditionalOnProperty(name = "app.state.backend", havingValue = "memory", matchIfMissing = true)
+public class InMemoryStateBackend implements StateBackend {
+
+    @Value("${app.state.memory.max-size:100000}")
+    private int maxSize;
+
+    private final Map<Key, Entry> values =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > maxSize || eldest.getValue().isExpired(System.nanoTime());
+                }
+            };
+
+    @Override
+    public void put(String namespace, String key, byte[] value, Duration ttl) {
+        Entry entry = new Entry(value, System.nanoTime() + ttl.toNanos());
+        synchronized (values) {
+            values.put(new Key(namespace, key), entry);
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(String namespace, String key, byte[] value, Duration ttl) {
+        Key valueKey = new Key(namespace, key);
+        long now = System.nanoTime();
+        synchronized (values) {
+            Entry entry = values.get(valueKey);
+            if (entry != null && !entry.isExpired(now)) {
+                return false;
+            }
+            values.put(valueKey, new Entry(value, now + ttl.toNanos()));
+            return true;
+        }
+    }
+
+    @Override
+    public byte[] get(String namespace, String key) {
+        Key valueKey = new Key(namespace, key);
+        synchronized (values) {
+            Entry entry = values.get(valueKey);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired(System.nanoTime())) {
+                values.remove(valueKey);
+                return null;
+            }
+            return entry.value();
+        }
+    }
+
+    @Override
+    public void remove(String namespace, String key) {
+        synchronized (values) {
+            values.remove(new Key(namespace, key));
+        }
+    }
+
+    @Override
+    public boolean removeIfEquals(String namespace, String key, byte[] value) {
+        Key valueKey = new Key(namespace, key);
+        synchronized (values) {
+            Entry entry = values.get(valueKey);
+            if (entry == null || !Arrays.equals(entry.value(), value)) {
+                return false;
+            }
+            values.remove(valueKey);
+            return true;
+        }
+    }
+
+    private record Key(String namespace, String key) {}
+
+    private record Entry(byte[] value, long expiresAt) {
+
+        private boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+}
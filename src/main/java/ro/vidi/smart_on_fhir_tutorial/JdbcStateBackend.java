@@ -0,0 +1,180 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@link StateBackend} stored in the {@code app_state} table of the application {@code
+ * DataSource}. Instances sharing the database share the launch states and tokens, so these
+ * survive the failure of an instance. The UI sessions are still local to their instance, and need
+ * sticky sessions.
+ *
+ * <p>Expired rows are ignored when read and deleted every {@code app.state.jdbc.cleanup-interval}.
+ */
+@Component
+@ConditionalOnProperty(name = "app.state.backend", havingValue = "jdbc")
+@Slf4j
+public class JdbcStateBackend implements StateBackend {
+
+    @Autowired private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Create the table at startup if missing, disable when the schema is managed elsewhere.
+     */
+    @Value("${app.state.jdbc.create-table:true}")
+    private boolean createTable;
+
+    @Value("${app.state.jdbc.cleanup-interval:PT5M}")
+    private Duration cleanupInterval;
+
+    private final ScheduledExecutorService cleaner =
+            Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("state-gc-"));
+
+    @PostConstruct
+    public void init() {
+        if (createTable) {
+            jdbcTemplate.execute(
+                    """
+                    CREATE TABLE IF NOT EXISTS app_state (
+                        namespace VARCHAR(64) NOT NULL,
+                        state_key VARCHAR(128) NOT NULL,
+                        state_value VARBINARY(65535) NOT NULL,
+                        expires_at BIGINT NOT NULL,
+                        PRIMARY KEY (namespace, state_key)
+                    )
+                    """);
+        }
+        cleaner.scheduleWithFixedDelay(
+                this::deleteExpired,
+                cleanupInterval.toMillis(),
+                cleanupInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void put(String namespace, String key, byte[] value, Duration ttl) {
+        long expiresAt = System.currentTimeMillis() + ttl.toMillis();
+        int updated = update(namespace, key, value, expiresAt);
+        if (updated == 0) {
+            try {
+                jdbcTemplate.update(
+                        "INSERT INTO app_state (namespace, state_key, state_value, expires_at)"
+                                + " VALUES (?, ?, ?, ?)",
+                        namespace,
+                        key,
+                        value,
+                        expiresAt);
+            } catch (DuplicateKeyException e) {
+                // inserted concurrently by another instance
+                update(namespace, key, value, expiresAt);
+            }
+        }
+    }
+
+    /**
+     * Takes over an expired row with a conditional update, the database serializing the updates
+     * of a row, or inserts a new one, the primary key rejecting the concurrent inserts.
+     */
+    @Override
+    public boolean putIfAbsent(String namespace, String key, byte[] value, Duration ttl) {
+        long now = System.currentTimeMillis();
+        long expiresAt = now + ttl.toMillis();
+        int updated =
+                jdbcTemplate.update(
+                        "UPDATE app_state SET state_value = ?, expires_at = ?"
+                                + " WHERE namespace = ? AND state_key = ? AND expires_at <= ?",
+                        value,
+                        expiresAt,
+                        namespace,
+                        key,
+                        now);
+        if (updated > 0) {
+            return true;
+        }
+        try {
+            jdbcTemplate.update(
+                    "INSERT INTO app_state (namespace, state_key, state_value, expires_at)"
+                            + " VALUES (?, ?, ?, ?)",
+                    namespace,
+                    key,
+                    value,
+                    expiresAt);
+            return true;
+        } catch (DuplicateKeyException e) {
+            // stored by another instance, and not expired
+            return false;
+        }
+    }
+
+    @Override
+    public byte[] get(String namespace, String key) {
+        List<byte[]> values =
+                jdbcTemplate.query(
+                        "SELECT state_value FROM app_state"
+                                + " WHERE namespace = ? AND state_key = ? AND expires_at > ?",
+                        (resultSet, row) -> resultSet.getBytes(1),
+                        namespace,
+                        key,
+                        System.currentTimeMillis());
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public void remove(String namespace, String key) {
+        jdbcTemplate.update(
+                "DELETE FROM app_state WHERE namespace = ? AND state_key = ?", namespace, key);
+    }
+
+    @Override
+    public boolean removeIfEquals(String namespace, String key, byte[] value) {
+        int deleted =
+                jdbcTemplate.update(
+                        "DELETE FROM app_state"
+                                + " WHERE namespace = ? AND state_key = ? AND state_value = ?",
+                        namespace,
+                        key,
+                        value);
+        return deleted > 0;
+    }
+
+    private int update(String namespace, String key, byte[] value, long expiresAt) {
+        return jdbcTemplate.update(
+                "UPDATE app_state SET state_value = ?, expires_at = ?"
+                        + " WHERE namespace = ? AND state_key = ?",
+                value,
+                expiresAt,
+                namespace,
+                key);
+    }
+
+    void deleteExpired() {
+        try {
+            int deleted =
+                    jdbcTemplate.update(
+                            "DELETE FROM app_state WHERE expires_at <= ?",
+                            System.currentTimeMillis());
+            log.debug("Deleted {} expired states", deleted);
+        } catch (RuntimeException e) {
+            log.warn("Cannot delete expired states", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cleaner.shutdownNow();
+    }
+}
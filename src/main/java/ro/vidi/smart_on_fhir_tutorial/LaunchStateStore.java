@@ -0,0 +1,188 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Issues the {@code state} of a launch and resolves it back to its {@link AppState}.
+ *
+ * <ul>
+ *   <li>{@link Mode#OPAQUE}: the state is a random 22 characters token, the {@link AppState} is
+ *       kept in the {@link StateBackend} until not used for {@code smart.launch-state.ttl}
+ *   <li>{@link Mode#SIGNED}: nothing is kept, the state is the {@link AppState} in a compact binary
+ *       encoding signed with HMAC-SHA256, valid for {@code smart.launch-state.ttl} after it was
+ *       issued. A random nonce makes each state unique, even for the same launch details
+ * </ul>
+ *
+ * In both modes a state that was not issued by this application is rejected.
+ */
+@Component
+@Slf4j
+public class LaunchStateStore {
+
+    public enum Mode {
+        OPAQUE,
+        SIGNED
+    }
+
+    private static final String NAMESPACE = "launch-state";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private static final int NONCE_BYTES = 16;
+
+    private static final int SIGNED_HEADER_BYTES = Long.BYTES + NONCE_BYTES;
+
+    @Autowired private StateBackend stateBackend;
+
+    @Value("${smart.launch-state.mode:OPAQUE}")
+    private Mode mode;
+
+    @Value("${smart.launch-state.ttl:PT8H}")
+    private Duration ttl;
+
+    /**
+     * Base64 HMAC key of the {@link Mode#SIGNED} mode. When empty a random key is used, and the
+     * states issued before a restart are rejected.
+     */
+    @Value("${smart.launch-state.hmac-key:}")
+    private String hmacKey;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Initialized HMAC, cloned for each use as {@link Mac} is not thread safe.
+     */
+    private Mac mac;
+
+    @PostConstruct
+    public void init() throws GeneralSecurityException {
+        byte[] key;
+        if (StringUtils.isNotBlank(hmacKey)) {
+            key = Base64.getDecoder().decode(hmacKey);
+        } else {
+            key = new byte[32];
+            random.nextBytes(key);
+            if (mode == Mode.SIGNED) {
+                log.warn(
+                        "No smart.launch-state.hmac-key, states will not survive a restart of the"
+                                + " application");
+            }
+        }
+        mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+        log.info("Launch states are {}, valid for {}", mode, ttl);
+    }
+
+    /**
+     * @return the {@code state} to send to the authorization server
+     */
+    public String issue(AppState appState) {
+        return switch (mode) {
+            case OPAQUE -> issueOpaque(appState);
+            case SIGNED -> issueSigned(appState);
+        };
+    }
+
+    /**
+     * @throws IOException when the state is unknown, expired or was tampered with
+     */
+    public AppState resolve(String state) throws IOException {
+        if (StringUtils.isBlank(state)) {
+            throw new IOException("No launch state");
+        }
+        return switch (mode) {
+            case OPAQUE -> resolveOpaque(state);
+            case SIGNED -> resolveSigned(state);
+        };
+    }
+
+    private String issueOpaque(AppState appState) {
+        byte[] token = new byte[16];
+        random.nextBytes(token);
+        String state = ENCODER.encodeToString(token);
+        stateBackend.put(NAMESPACE, state, StateCodec.encode(appState), ttl);
+        return state;
+    }
+
+    private AppState resolveOpaque(String state) throws IOException {
+        byte[] appState = stateBackend.get(NAMESPACE, state);
+        if (appState == null) {
+            throw new IOException("Unknown or expired launch state");
+        }
+        stateBackend.put(NAMESPACE, state, appState, ttl);
+        return StateCodec.decodeAppState(appState);
+    }
+
+    /**
+     * The payload is the issue time, in seconds, and a random nonce, followed by the encoded {@link
+     * AppState}.
+     */
+    private String issueSigned(AppState appState) {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        byte[] encoded = StateCodec.encode(appState);
+        byte[] payload =
+                ByteBuffer.allocate(SIGNED_HEADER_BYTES + encoded.length)
+                        .putLong(System.currentTimeMillis() / 1000)
+                        .put(nonce)
+                        .put(encoded)
+                        .array();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    private AppState resolveSigned(String state) throws IOException {
+        int separator = state.indexOf('.');
+        if (separator < 0) {
+            throw new IOException("Malformed launch state");
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(state.substring(0, separator));
+            signature = DECODER.decode(state.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed launch state", e);
+        }
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            throw new IOException("Launch state signature mismatch");
+        }
+
+        if (payload.length < SIGNED_HEADER_BYTES) {
+            throw new IOException("Malformed launch state");
+        }
+        long issuedAt = ByteBuffer.wrap(payload).getLong();
+        if (System.currentTimeMillis() / 1000 - issuedAt > ttl.toSeconds()) {
+            throw new IOException("Expired launch state");
+        }
+        return StateCodec.decodeAppState(
+                Arrays.copyOfRange(payload, SIGNED_HEADER_BYTES, payload.length));
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            return ((Mac) mac.clone()).doFinal(payload);
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Traces a SMART launch from the start view to the FHIR calls, over the several HTTP requests of
+ * the flow, as a single trace:
+ *
+ * <ul>
+ *   <li>{@code smart.launch}: the root span, while the user discovers the URLs and authorizes
+ *   <li>a span per step of the launch after the authorization (token exchange, FHIR reads), whose
+ *       parent is found from the {@link AppState#getTraceParent() trace parent} carried by the
+ *       launch {@code state}
+ *   <li>a span per call to the EHR, started by {@link EhrCalls}
+ * </ul>
+ *
+ * The trace context is sent to the EHRs with the requests, see {@link HttpTransport}.
+ */
+@Component
+public class LaunchTracing {
+
+    public enum Exporter {
+        NONE,
+        OTLP
+    }
+
+    static final String INSTRUMENTATION = "ro.vidi.smart_on_fhir_tutorial";
+
+    private static final TextMapGetter<Map<String, String>> MAP_GETTER =
+            new TextMapGetter<>() {
+                @Override
+                public Iterable<String> keys(Map<String, String> carrier) {
+                    return carrier.keySet();
+                }
+
+                @Override
+                public String get(Map<String, String> carrier, String key) {
+                    return carrier != null ? carrier.get(key) : null;
+                }
+            };
+
+    @Autowired private OpenTelemetry openTelemetry = OpenTelemetry.noop();
+
+    /**
+     * Starts the root span of a new launch. It must be ended by the caller, once the user left for
+     * the authorization server.
+     */
+    public Span startLaunch() {
+        return tracer().spanBuilder("smart.launch").setNoParent().startSpan();
+    }
+
+    /**
+     * @return the W3C {@code traceparent} of the span, to be kept in the {@link AppState}, or null
+     *     when the span is not recorded
+     */
+    public String getTraceParent(Span span) {
+        Map<String, String> carrier = new HashMap<>();
+        openTelemetry
+                .getPropagators()
+                .getTextMapPropagator()
+                .inject(Context.root().with(span), carrier, Map::put);
+        return carrier.get("traceparent");
+    }
+
+    /**
+     * Runs a step of a launch in a span continuing the launch trace. The future is expected to be
+     * created by {@code call}, so that the tasks it submits run in the span.
+     *
+     * @return a future completed once the span ended
+     */
+    public <T> CompletableFuture<T> traceAsync(
+            String name, AppState appState, Supplier<CompletableFuture<T>> call) {
+        Span span = startStep(name, appState);
+        CompletableFuture<T> future;
+        try (Scope ignored = span.makeCurrent()) {
+            future = call.get();
+        } catch (RuntimeException e) {
+            end(span, e);
+            throw e;
+        }
+        return future.whenComplete((result, error) -> end(span, error));
+    }
+
+    /**
+     * Runs a step of a launch in a span continuing the launch trace.
+     */
+    public <T> T trace(String name, AppState appState, Supplier<T> call) {
+        Span span = startStep(name, appState);
+        try (Scope ignored = span.makeCurrent()) {
+            T result = call.get();
+            end(span, null);
+            return result;
+        } catch (RuntimeException e) {
+            end(span, e);
+            throw e;
+        }
+    }
+
+    private Span startStep(String name, AppState appState) {
+        Context parent =
+                openTelemetry
+                        .getPropagators()
+                        .getTextMapPropagator()
+                        .extract(
+                                Context.root(),
+                                appState.getTraceParent() != null
+                                        ? Map.of("traceparent", appState.getTraceParent())
+                                        : Collections.emptyMap(),
+                                MAP_GETTER);
+        return tracer().spanBuilder(name)
+                .setParent(parent)
+                .setAttribute("smart.fhir_server", appState.getFhirServerUrl())
+                .startSpan();
+    }
+
+    private static void end(Span span, Throwable error) {
+        if (error != null) {
+            span.recordException(Futures.unwrap(error));
+            span.setStatus(StatusCode.ERROR);
+        }
+        span.end();
+    }
+
+    Tracer tracer() {
+        return openTelemetry.getTracer(INSTRUMENTATION);
+    }
+}
@@ -1,19 +1,25 @@
 /* (C)2024 */
 package ro.vidi.smart_on_fhir_tutorial;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
 import com.nimbusds.oauth2.sdk.AuthorizationCode;
 import com.nimbusds.oauth2.sdk.AuthorizationCodeGrant;
 import com.nimbusds.oauth2.sdk.AuthorizationGrant;
+import com.nimbusds.oauth2.sdk.ClientCredentialsGrant;
 import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.RefreshTokenGrant;
 import com.nimbusds.oauth2.sdk.ResponseType;
 import com.nimbusds.oauth2.sdk.Scope;
 import com.nimbusds.oauth2.sdk.TokenRequest;
 import com.nimbusds.oauth2.sdk.TokenResponse;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import com.nimbusds.oauth2.sdk.id.ClientID;
 import com.nimbusds.oauth2.sdk.id.Issuer;
 import com.nimbusds.oauth2.sdk.id.State;
+import com.nimbusds.oauth2.sdk.token.RefreshToken;
+import com.nimbusds.oauth2.sdk.util.JSONObjectUtils;
 import com.nimbusds.openid.connect.sdk.AuthenticationRequest;
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
 import com.nimbusds.openid.connect.sdk.OIDCTokenResponseParser;
@@ -22,8 +28,11 @@
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.Set;
-import org.apache.commons.codec.binary.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
@@ -33,7 +42,13 @@ public class OidcClient {
 
     @Autowired private Environment environment;
 
-    @Autowired private ObjectMapper mapper;
+    @Autowired private LaunchStateStore launchStateStore;
+
+    @Autowired private HttpTransport httpTransport;
+
+    @Autowired private ExecutorService outboundExecutor;
+
+    @Autowired private EhrResilience ehrResilience;
 
     /**
      * Builds an authorize URL as described in the <a
@@ -49,6 +64,9 @@ public class OidcClient {
      *      state=98wrghuwuogerg97&
      *      aud=https://ehr/fhir
      * </pre>
+     *
+     * The {@code state} is issued by the {@link LaunchStateStore}, call it only when the launch
+     * starts.
      */
     public URI buildAuthorizationUrl(
             String fhirServerUrl,
@@ -56,7 +74,29 @@ public URI buildAuthorizationUrl(
             String clientId,
             Set<String> scopes,
             AppState state)
-            throws URISyntaxException, JsonProcessingException {
+            throws URISyntaxException {
+        return buildAuthorizationUrl(
+                fhirServerUrl, authorizeUrl, clientId, scopes, launchStateStore.issue(state));
+    }
+
+    /**
+     * The authorize URL as it will be built, with a placeholder rather than an issued {@code
+     * state}, to be shown before the launch starts.
+     */
+    public URI previewAuthorizationUrl(
+            String fhirServerUrl, String authorizeUrl, String clientId, Set<String> scopes)
+            throws URISyntaxException {
+        return buildAuthorizationUrl(
+                fhirServerUrl, authorizeUrl, clientId, scopes, "issued-when-authorizing");
+    }
+
+    private URI buildAuthorizationUrl(
+            String fhirServerUrl,
+            String authorizeUrl,
+            String clientId,
+            Set<String> scopes,
+            String state)
+            throws URISyntaxException {
 
         Scope scope = new Scope();
         scopes.forEach(scope::add);
@@ -71,11 +111,7 @@ public URI buildAuthorizationUrl(
                                         + "/smart-callback"))
                 .endpointURI(new URI(authorizeUrl))
                 .responseType(ResponseType.CODE)
-                .state(
-                        new State(
-                                new String(
-                                        Base64.encodeBase64(
-                                                mapper.writeValueAsString(state).getBytes()))))
+                .state(new State(state))
                 .customParameter("aud", fhirServerUrl)
                 .build()
                 .toURI();
@@ -93,25 +129,161 @@ public OIDCTokenResponse getAccessToken(String tokenUrl, String code, String cli
                                         + "/smart-callback"));
 
         TokenRequest request = new TokenRequest(tokenEndpoint, new ClientID(clientId), codeGrant);
-        TokenResponse tokenResponse = OIDCTokenResponseParser.parse(request.toHTTPRequest().send());
-        return (OIDCTokenResponse) tokenResponse.toSuccessResponse();
+        // the code can only be used once, the exchange is never retried
+        return ehrResilience.send(
+                tokenUrl,
+                "token-exchange",
+                null,
+                call -> {
+                    TokenResponse tokenResponse =
+                            OIDCTokenResponseParser.parse(
+                                    httpTransport.send(request.toHTTPRequest()));
+                    return call.success((OIDCTokenResponse) tokenResponse.toSuccessResponse());
+                });
+    }
+
+    /**
+     * Exchanges a refresh token for a new access token, as described in <a
+     * href="https://www.hl7.org/fhir/smart-app-launch/app-launch.html#refresh-access-token">Refresh
+     * access token</a>. The response may or may not contain a new refresh token.
+     */
+    public AccessTokenResponse refreshAccessToken(
+            String tokenUrl, String refreshToken, String clientId)
+            throws URISyntaxException, IOException, ParseException {
+        TokenRequest request =
+                new TokenRequest(
+                        new URI(tokenUrl),
+                        new ClientID(clientId),
+                        new RefreshTokenGrant(new RefreshToken(refreshToken)));
+        return ehrResilience.send(
+                tokenUrl,
+                "token-refresh",
+                null,
+                call -> {
+                    TokenResponse tokenResponse =
+                            TokenResponse.parse(httpTransport.send(request.toHTTPRequest()));
+                    if (!tokenResponse.indicatesSuccess()) {
+                        throw new IOException(
+                                "Token refresh rejected: "
+                                        + tokenResponse
+                                                .toErrorResponse()
+                                                .getErrorObject()
+                                                .getDescription());
+                    }
+                    return call.success(tokenResponse.toSuccessResponse());
+                });
+    }
+
+    /**
+     * Obtains an access token without user interaction, as described in <a
+     * href="https://www.hl7.org/fhir/smart-app-launch/backend-services.html">SMART Backend
+     * Services</a>: a {@code client_credentials} grant authenticated with a signed JWT assertion.
+     */
+    public AccessTokenResponse getBackendAccessToken(
+            String tokenUrl, BackendCredentials credentials, Set<String> scopes)
+            throws URISyntaxException, IOException, ParseException, JOSEException {
+        Scope scope = new Scope();
+        scopes.forEach(scope::add);
+
+        TokenRequest request =
+                new TokenRequest(
+                        new URI(tokenUrl),
+                        credentials.createAssertion(tokenUrl),
+                        new ClientCredentialsGrant(),
+                        scope);
+        return ehrResilience.send(
+                tokenUrl,
+                "backend-token",
+                null,
+                call -> {
+                    TokenResponse tokenResponse =
+                            TokenResponse.parse(httpTransport.send(request.toHTTPRequest()));
+                    if (!tokenResponse.indicatesSuccess()) {
+                        throw new IOException(
+                                "Client credentials grant rejected: "
+                                        + tokenResponse
+                                                .toErrorResponse()
+                                                .getErrorObject()
+                                                .getDescription());
+                    }
+                    return call.success(tokenResponse.toSuccessResponse());
+                });
+    }
+
+    public CompletableFuture<OIDCTokenResponse> getAccessTokenAsync(
+            String tokenUrl, String code, String clientId) {
+        return Futures.supplyAsync(
+                () -> getAccessToken(tokenUrl, code, clientId), outboundExecutor);
     }
 
     public SmartMetadata getWellKnownInfo(String fhirServerUrl) throws IOException, ParseException {
         OIDCProviderConfigurationRequest oidcProviderConfigurationRequest =
                 new OIDCProviderConfigurationRequest(new Issuer(fhirServerUrl));
-        OIDCProviderMetadata parse =
-                OIDCProviderMetadata.parse(
-                        oidcProviderConfigurationRequest
-                                .toHTTPRequest()
-                                .send()
-                                .getContentAsJSONObject());
-
-        SmartMetadata smartMetadata = new SmartMetadata();
-        smartMetadata.setAuthorizeUrl(parse.getAuthorizationEndpointURI().toString());
-        smartMetadata.setTokenUrl(parse.getTokenEndpointURI().toString());
-        smartMetadata.setJsonResponse(parse.toJSONObject().toJSONString());
-
-        return smartMetadata;
+        return ehrResilience.fetch(
+                fhirServerUrl,
+                "openid-configuration",
+                null,
+                call -> {
+                    OIDCProviderMetadata parse =
+                            OIDCProviderMetadata.parse(
+                                    httpTransport
+                                            .send(oidcProviderConfigurationRequest.toHTTPRequest())
+                                            .getContentAsJSONObject());
+
+                    SmartMetadata smartMetadata = new SmartMetadata();
+                    smartMetadata.setAuthorizeUrl(parse.getAuthorizationEndpointURI().toString());
+                    smartMetadata.setTokenUrl(parse.getTokenEndpointURI().toString());
+                    smartMetadata.setIssuer(parse.getIssuer().getValue());
+                    if (parse.getJWKSetURI() != null) {
+                        smartMetadata.setJwksUrl(parse.getJWKSetURI().toString());
+                    }
+                    smartMetadata.setJsonResponse(parse.toJSONObject().toJSONString());
+
+                    return call.success(smartMetadata);
+                });
+    }
+
+    /**
+     * Reads the authorize and token URLs from the <a
+     * href="https://www.hl7.org/fhir/smart-app-launch/conformance.html#using-well-known">SMART
+     * configuration</a> published at {@code [base]/.well-known/smart-configuration}, with the
+     * issuer and its JWKS URL when the server publishes them.
+     */
+    public SmartMetadata getSmartConfiguration(String fhirServerUrl)
+            throws IOException, ParseException {
+        HTTPRequest request =
+                new HTTPRequest(
+                        HTTPRequest.Method.GET,
+                        new URL(
+                                StringUtils.removeEnd(fhirServerUrl, "/")
+                                        + "/.well-known/smart-configuration"));
+        request.setAccept("application/json");
+
+        return ehrResilience.fetch(
+                fhirServerUrl,
+                "smart-configuration",
+                null,
+                call -> {
+                    HTTPResponse response = httpTransport.send(request);
+                    response.ensureStatusCode(HTTPResponse.SC_OK);
+                    var smartConfiguration = response.getContentAsJSONObject();
+
+                    SmartMetadata smartMetadata = new SmartMetadata();
+                    smartMetadata.setAuthorizeUrl(
+                            JSONObjectUtils.getURI(smartConfiguration, "authorization_endpoint")
+                                    .toString());
+                    smartMetadata.setTokenUrl(
+                            JSONObjectUtils.getURI(smartConfiguration, "token_endpoint")
+                                    .toString());
+                    smartMetadata.setIssuer(
+                            JSONObjectUtils.getString(smartConfiguration, "issuer", null));
+                    URI jwksUrl = JSONObjectUtils.getURI(smartConfiguration, "jwks_uri", null);
+                    if (jwksUrl != null) {
+                        smartMetadata.setJwksUrl(jwksUrl.toString());
+                    }
+                    smartMetadata.setJsonResponse(response.getContent());
+
+                    return call.success(smartMetadata);
+                });
     }
 }
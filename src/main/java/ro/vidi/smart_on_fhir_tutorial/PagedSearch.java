@@ -0,0 +1,262 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Search results read page by page, following the {@code next} links of the returned Bundles.
+ *
+ * <p>A page is only requested when rows in it are asked for, and only the last {@code
+ * cachedPages} pages are kept, as lightweight {@link Row}s. The parsed resources are dropped once
+ * their page is converted, so the memory used does not grow with the number of results.
+ *
+ * <p>{@code _count} is only a hint, servers may return fewer entries per page, so the offset of
+ * each page is the number of rows of the pages before it rather than a multiple of the page size.
+ */
+@Slf4j
+public class PagedSearch {
+
+    /**
+     * A search result, reduced to what is shown in a result list.
+     */
+    public record Row(String id, Date lastUpdated, String description) {}
+
+    /**
+     * Heap of a {@link Row} and its date, without its strings.
+     */
+    private static final long ROW_BYTES = 64;
+
+    private final Function<String, Bundle> pageLoader;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * URL of each page reached so far, the first one being the search URL.
+     */
+    private final List<String> pageUrls = new ArrayList<>();
+
+    /**
+     * Offset of the first row of each page reached so far.
+     */
+    private final List<Integer> pageOffsets = new ArrayList<>();
+
+    private final Map<Integer, List<Row>> pages;
+
+    private boolean lastPageReached;
+
+    /**
+     * Number of rows of all the pages, known once the last page is reached.
+     */
+    private int endOffset;
+
+    private Integer total;
+
+    /**
+     * @param searchUrl URL of the first page, relative to the server base or absolute
+     * @param pageSize number of results per page, sent as {@code _count}
+     * @param cachedPages number of pages kept in memory
+     * @param pageLoader reads the Bundle at the given URL
+     */
+    public PagedSearch(
+            String searchUrl, int pageSize, int cachedPages, Function<String, Bundle> pageLoader) {
+        this.pageLoader = pageLoader;
+        this.pageUrls.add(searchUrl + (searchUrl.contains("?") ? "&" : "?") + "_count=" + pageSize);
+        this.pageOffsets.add(0);
+        this.pages =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, List<Row>> eldest) {
+                        return size() > cachedPages;
+                    }
+                };
+    }
+
+    /**
+     * @return the rows from {@code offset}, at most {@code limit} of them, fewer once the end of
+     *     the results is reached
+     */
+    public List<Row> fetch(int offset, int limit) {
+        lock.lock();
+        try {
+            List<Row> rows = new ArrayList<>(limit);
+            int position = offset;
+            while (rows.size() < limit) {
+                int index = pageIndexOf(position);
+                if (index < 0) {
+                    break;
+                }
+                List<Row> page = page(index);
+                int from = position - pageOffsets.get(index);
+                if (from >= page.size()) {
+                    break;
+                }
+                int to = Math.min(page.size(), from + limit - rows.size());
+                rows.addAll(page.subList(from, to));
+                position += to - from;
+            }
+            return rows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Loads the page holding the row at {@code offset} ahead of the {@link #fetch} asking for it,
+     * unless it is kept already. Does nothing while another call reads the search, as it is
+     * loading pages itself.
+     */
+    public void prefetch(int offset) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            int index = pageIndexOf(offset);
+            if (index >= 0) {
+                page(index);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return estimated heap of the rows of the pages kept, see {@link SessionFootprint}
+     */
+    public long getRetainedBytes() {
+        lock.lock();
+        try {
+            long bytes = 0;
+            for (List<Row> page : pages.values()) {
+                for (Row row : page) {
+                    bytes +=
+                            ROW_BYTES
+                                    + SessionFootprint.sizeOf(row.id())
+                                    + SessionFootprint.sizeOf(row.description());
+                }
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return total number of results reported by the server, null if it did not report one
+     */
+    public Integer getTotal() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return index of the page holding the row at {@code position}, -1 when the results end
+     *     before it
+     */
+    private int pageIndexOf(int position) {
+        // the URL and the offset of a page are only known from the previous one, walk up to it
+        while (!lastPageReached && pageOffsets.get(pageOffsets.size() - 1) <= position) {
+            load(pageUrls.size() - 1);
+        }
+        if (lastPageReached && position >= endOffset) {
+            return -1;
+        }
+
+        int index = Collections.binarySearch(pageOffsets, position);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // pages without entries share the offset of the next one
+        while (index + 1 < pageOffsets.size() && pageOffsets.get(index + 1) == position) {
+            index++;
+        }
+        return index;
+    }
+
+    private List<Row> page(int index) {
+        List<Row> page = pages.get(index);
+        return page != null ? page : load(index);
+    }
+
+    private List<Row> load(int index) {
+        long start = System.nanoTime();
+        Bundle bundle = pageLoader.apply(pageUrls.get(index));
+
+        List<Row> rows = new ArrayList<>(bundle.getEntry().size());
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            if (entry.hasResource()) {
+                rows.add(toRow(entry.getResource()));
+            }
+        }
+        pages.put(index, rows);
+
+        if (bundle.hasTotal()) {
+            total = bundle.getTotal();
+        }
+        if (index == pageUrls.size() - 1 && !lastPageReached) {
+            int nextOffset = pageOffsets.get(index) + rows.size();
+            Bundle.BundleLinkComponent next = bundle.getLink(Bundle.LINK_NEXT);
+            if (next != null && next.hasUrl()) {
+                pageUrls.add(next.getUrl());
+                pageOffsets.add(nextOffset);
+            } else {
+                lastPageReached = true;
+                endOffset = nextOffset;
+            }
+        }
+        log.debug(
+                "Loaded page {} ({} rows) in {} ms",
+                index,
+                rows.size(),
+                (System.nanoTime() - start) / 1_000_000);
+        return rows;
+    }
+
+    private static Row toRow(Resource resource) {
+        return new Row(
+                resource.getIdElement().getIdPart(),
+                resource.getMeta().getLastUpdated(),
+                describe(resource));
+    }
+
+    private static String describe(Resource resource) {
+        if (resource instanceof Observation observation) {
+            String code = describe(observation.getCode());
+            if (observation.hasValueQuantity()) {
+                Quantity quantity = observation.getValueQuantity();
+                return code + ": " + quantity.getValue() + " " + quantity.getUnit();
+            }
+            return observation.hasValue()
+                    ? code + ": " + observation.getValue().primitiveValue()
+                    : code;
+        }
+        if (resource instanceof Condition condition) {
+            return describe(condition.getCode());
+        }
+        return resource.fhirType();
+    }
+
+    private static String describe(CodeableConcept concept) {
+        if (concept.hasText()) {
+            return concept.getText();
+        }
+        return concept.hasCoding() ? concept.getCodingFirstRep().getDisplay() : null;
+    }
+}
@@ -0,0 +1,63 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Resources of a patient, one section per resource type, as loaded by {@link
+ * FhirClient#getPatientSummary}.
+ */
+@Data
+public class PatientSummary {
+
+    public enum FetchMode {
+        /**
+         * One FHIR {@code batch} Bundle with a search per resource type.
+         */
+        BATCH,
+        /**
+         * One search request per resource type, run concurrently.
+         */
+        PARALLEL
+    }
+
+    private FetchMode fetchMode;
+
+    private long durationMillis;
+
+    /**
+     * Size of the responses the resources were parsed from.
+     */
+    private long responseBytes;
+
+    private List<Section> sections = new ArrayList<>();
+
+    @Data
+    public static class Section {
+
+        private String resourceType;
+
+        private List<Resource> resources = new ArrayList<>();
+
+        /**
+         * Total number of matches reported by the server, may be more than the resources of the
+         * first page.
+         */
+        private Integer total;
+
+        /**
+         * Duration of the search, null when the search was part of a batch.
+         */
+        private Long durationMillis;
+
+        /**
+         * Size of the search response, 0 when the search was part of a batch.
+         */
+        private long responseBytes;
+
+        private String error;
+    }
+}
@@ -0,0 +1,52 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.gclient.IClientExecutable;
+import java.util.List;
+
+/**
+ * Part of a resource requested by a read, with the {@code _summary} or {@code _elements}
+ * parameters. The server drops the other elements before sending the resource, so less is
+ * transferred and parsed, and tags it as {@code SUBSETTED}.
+ *
+ * @param summary the {@code _summary} mode, null for none
+ * @param elements the {@code _elements} to keep, empty for all
+ */
+public record Projection(SummaryEnum summary, List<String> elements) {
+
+    public static final Projection FULL = new Projection(null, List.of());
+
+    public static Projection summary() {
+        return new Projection(SummaryEnum.TRUE, List.of());
+    }
+
+    public static Projection elements(String... elements) {
+        return new Projection(null, List.of(elements));
+    }
+
+    public boolean isFull() {
+        return summary == null && elements.isEmpty();
+    }
+
+    /**
+     * Adds the parameters of the projection to a request.
+     */
+    public <T extends IClientExecutable<T, ?>> T applyTo(T request) {
+        if (summary != null) {
+            request = request.summaryMode(summary);
+        }
+        if (!elements.isEmpty()) {
+            request = request.elementsSubset(elements.toArray(String[]::new));
+        }
+        return request;
+    }
+
+    @Override
+    public String toString() {
+        if (summary != null) {
+            return "_summary=" + summary.getCode();
+        }
+        return elements.isEmpty() ? "full" : "_elements=" + String.join(",", elements);
+    }
+}
@@ -0,0 +1,145 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Property;
+
+/**
+ * An element of a document shown as a tree: of a resource parsed into the HAPI model, or of a JSON
+ * document when it is not parsed into a resource, like the server metadata.
+ *
+ * <p>The children are read from the element when they are asked for, so only the elements of the
+ * expanded nodes are ever visited and converted.
+ *
+ * @param path position of the element in the document, unique in the tree
+ * @param name name of the element in its parent, or its index for the items of a list
+ * @param value primitive value of the element, or a short description of its content
+ * @param element the {@link Base} element, the {@link Property} of a list, or the {@link JsonNode}
+ */
+public record ResourceNode(String path, String name, String value, Object element) {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static ResourceNode of(Base resource) {
+        String name = resource.fhirType();
+        return new ResourceNode(name, name, describe(resource), resource);
+    }
+
+    /**
+     * @param name name of the root node
+     * @throws JsonProcessingException when the document is not valid JSON
+     */
+    public static ResourceNode parse(String name, String json) throws JsonProcessingException {
+        JsonNode root = MAPPER.readTree(json);
+        return new ResourceNode(name, name, describe(root), root);
+    }
+
+    public boolean hasChildren() {
+        return childCount() > 0;
+    }
+
+    public int childCount() {
+        if (element instanceof Base base) {
+            return base.isPrimitive() ? 0 : properties(base).size();
+        }
+        if (element instanceof Property property) {
+            return property.getValues().size();
+        }
+        JsonNode json = (JsonNode) element;
+        return json.isContainerNode() ? json.size() : 0;
+    }
+
+    /**
+     * @return the children of the element, built on each call
+     */
+    public List<ResourceNode> children() {
+        List<ResourceNode> children = new ArrayList<>(childCount());
+        if (element instanceof Base base) {
+            if (base.isPrimitive()) {
+                return children;
+            }
+            for (Property property : properties(base)) {
+                if (property.getMaxCardinality() > 1) {
+                    String childPath = path + "." + property.getName();
+                    children.add(
+                            new ResourceNode(
+                                    childPath,
+                                    property.getName(),
+                                    "[" + property.getValues().size() + "]",
+                                    property));
+                } else {
+                    Base value = property.getValues().get(0);
+                    String childName = elementName(property, value);
+                    children.add(
+                            new ResourceNode(
+                                    path + "." + childName, childName, describe(value), value));
+                }
+            }
+        } else if (element instanceof Property property) {
+            List<Base> values = property.getValues();
+            for (int i = 0; i < values.size(); i++) {
+                children.add(item(i, values.get(i), describe(values.get(i))));
+            }
+        } else {
+            JsonNode json = (JsonNode) element;
+            if (json.isArray()) {
+                for (int i = 0; i < json.size(); i++) {
+                    children.add(item(i, json.get(i), describe(json.get(i))));
+                }
+            } else if (json.isObject()) {
+                for (Iterator<Map.Entry<String, JsonNode>> it = json.fields(); it.hasNext(); ) {
+                    Map.Entry<String, JsonNode> field = it.next();
+                    children.add(
+                            new ResourceNode(
+                                    path + "." + field.getKey(),
+                                    field.getKey(),
+                                    describe(field.getValue()),
+                                    field.getValue()));
+                }
+            }
+        }
+        return children;
+    }
+
+    private ResourceNode item(int index, Object value, String description) {
+        String itemName = "[" + index + "]";
+        return new ResourceNode(path + itemName, itemName, description, value);
+    }
+
+    private static List<Property> properties(Base base) {
+        return base.children().stream().filter(Property::hasValues).toList();
+    }
+
+    /**
+     * @return the name of the element as found in the JSON, {@code valueQuantity} rather than
+     *     {@code value[x]} for the choice elements
+     */
+    private static String elementName(Property property, Base value) {
+        String name = property.getName();
+        return name.endsWith("[x]")
+                ? StringUtils.removeEnd(name, "[x]") + StringUtils.capitalize(value.fhirType())
+                : name;
+    }
+
+    private static String describe(Base base) {
+        return base.isPrimitive() ? base.primitiveValue() : base.fhirType();
+    }
+
+    private static String describe(JsonNode json) {
+        if (json.isArray()) {
+            return "[" + json.size() + "]";
+        }
+        if (json.isObject()) {
+            return "{" + json.size() + "}";
+        }
+        return json.asText();
+    }
+}
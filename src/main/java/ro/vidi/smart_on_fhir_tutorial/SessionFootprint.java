@@ -0,0 +1,208 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Estimated heap retained by the UI sessions. The large payloads kept by the views (metadata,
+ * token response, resources) are registered in the {@link Ledger} of their session, with an
+ * estimate of their size.
+ *
+ * <p>When the payloads of a session exceed {@code session.memory.max-bytes}, the oldest ones are
+ * dropped: their view releases them, and offers to fetch them again on demand. So the memory used
+ * by the sessions grows at most by the budget for each session.
+ *
+ * <p>Metrics:
+ *
+ * <ul>
+ *   <li>{@code session.footprint}: histogram of the peak footprint of the sessions, recorded when
+ *       they end
+ *   <li>{@code session.footprint.live}: footprint of the open sessions, and their number in {@code
+ *       session.footprint.sessions}
+ *   <li>{@code session.footprint.dropped}: payloads dropped to stay within the budget
+ * </ul>
+ */
+@Component
+@Slf4j
+public class SessionFootprint {
+
+    /**
+     * Rough ratio of the heap taken by a parsed document, HAPI model or JSON tree, to its length
+     * as JSON.
+     */
+    public static final int PARSED_DOCUMENT_RATIO = 6;
+
+    @Autowired private MeterRegistry meterRegistry;
+
+    @Value("${session.memory.max-bytes:4194304}")
+    private long maxBytes;
+
+    private final Set<Ledger> ledgers = ConcurrentHashMap.newKeySet();
+
+    private DistributionSummary footprints;
+
+    private Counter dropped;
+
+    @PostConstruct
+    void init() {
+        footprints =
+                DistributionSummary.builder("session.footprint")
+                        .baseUnit("bytes")
+                        .description("Peak estimated heap retained by a session")
+                        .publishPercentileHistogram()
+                        .register(meterRegistry);
+        dropped =
+                Counter.builder("session.footprint.dropped")
+                        .description("Payloads dropped to stay within the session budget")
+                        .register(meterRegistry);
+        Gauge.builder("session.footprint.live", ledgers, SessionFootprint::sum)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("session.footprint.sessions", ledgers, Set::size).register(meterRegistry);
+    }
+
+    /**
+     * @return the ledger of a new session, to be closed when the session ends
+     */
+    public Ledger open() {
+        Ledger ledger = new Ledger();
+        ledgers.add(ledger);
+        return ledger;
+    }
+
+    /**
+     * Heap of a string, the JSON strings being mostly Latin-1 and stored a byte per character.
+     */
+    public static long sizeOf(String value) {
+        return value == null ? 0 : 40L + value.length();
+    }
+
+    /**
+     * Heap of a document parsed from the given JSON.
+     */
+    public static long sizeOfParsed(String json) {
+        return sizeOf(json) * PARSED_DOCUMENT_RATIO;
+    }
+
+    /**
+     * Heap of a document parsed from a response of the given size, as recorded when it was
+     * received rather than by serializing the document again.
+     */
+    public static long sizeOfParsed(long responseBytes) {
+        return (40L + Math.max(0, responseBytes)) * PARSED_DOCUMENT_RATIO;
+    }
+
+    private static double sum(Set<Ledger> ledgers) {
+        return ledgers.stream().mapToLong(Ledger::getBytes).sum();
+    }
+
+    /**
+     * Payloads retained by a session, the oldest first.
+     */
+    public class Ledger {
+
+        private final Set<Retained> entries = new LinkedHashSet<>();
+
+        private long bytes;
+
+        private long peak;
+
+        /**
+         * Registers a payload kept by a view, dropping the oldest payloads of the session when the
+         * budget is exceeded. The new payload itself is kept even if it is larger than the budget,
+         * as it is being shown.
+         *
+         * @param drop releases the payload, called on the thread registering another payload
+         * @return the registration, to be released when the view drops the payload by itself
+         */
+        public Retained retain(String name, long size, Runnable drop) {
+            Retained retained = new Retained(name, size, drop);
+            List<Retained> overBudget = new ArrayList<>();
+            synchronized (entries) {
+                entries.add(retained);
+                bytes += size;
+                peak = Math.max(peak, bytes);
+                Iterator<Retained> eldest = entries.iterator();
+                while (bytes > maxBytes && eldest.hasNext()) {
+                    Retained entry = eldest.next();
+                    if (entry == retained) {
+                        break;
+                    }
+                    eldest.remove();
+                    bytes -= entry.size;
+                    overBudget.add(entry);
+                }
+            }
+
+            for (Retained entry : overBudget) {
+                log.debug(
+                        "Dropping {} of {} bytes, over the session budget", entry.name, entry.size);
+                dropped.increment();
+                entry.drop.run();
+            }
+            return retained;
+        }
+
+        public long getBytes() {
+            synchronized (entries) {
+                return bytes;
+            }
+        }
+
+        /**
+         * Records the peak footprint of the session, once it ended.
+         */
+        public void close() {
+            if (ledgers.remove(this)) {
+                synchronized (entries) {
+                    footprints.record(peak);
+                    entries.clear();
+                    bytes = 0;
+                }
+            }
+        }
+
+        /**
+         * A payload registered in the ledger.
+         */
+        public class Retained {
+
+            private final String name;
+
+            private final long size;
+
+            private final Runnable drop;
+
+            private Retained(String name, long size, Runnable drop) {
+                this.name = name;
+                this.size = size;
+                this.drop = drop;
+            }
+
+            /**
+             * Removes the payload from the ledger, when the view replaces or discards it.
+             */
+            public void release() {
+                synchronized (entries) {
+                    if (entries.remove(this)) {
+                        bytes -= size;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import io.opentelemetry.context.Context;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Entry point for discovering the SMART URLs of a FHIR server, backed by the {@link
+ * DiscoveryCache}.
+ */
+@Component
+@Slf4j
+public class SmartDiscovery {
+
+    @Autowired private FhirClient fhirClient;
+
+    @Autowired private OidcClient oidcClient;
+
+    @Autowired private DiscoveryCache discoveryCache;
+
+    @Autowired private ExecutorService outboundExecutor;
+
+    /**
+     * Sources queried by {@link DiscoveryMethod#AUTO}. When several valid answers are available at
+     * the same time, the one listed first wins.
+     */
+    @Value("${smart.discovery.auto.order:SMART_CONFIGURATION,FHIR_METADATA,OIDC_CONFIGURATION}")
+    private List<DiscoveryMethod> autoOrder;
+
+    @Value("${smart.discovery.auto.timeout:PT10S}")
+    private Duration autoTimeout;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    /**
+     * Runs the sources of {@link DiscoveryMethod#AUTO}, apart from the outbound executor as they
+     * are started from its tasks.
+     */
+    private ExecutorService discoveryExecutor;
+
+    @PostConstruct
+    public void init() {
+        discoveryExecutor =
+                Context.taskWrapping(
+                        VirtualThreads.newCachedExecutor(virtualThreads, "discovery-"));
+    }
+
+    public SmartMetadata discover(String fhirServerUrl, DiscoveryMethod method)
+            throws IOException, ParseException {
+        return discoveryCache.get(
+                fhirServerUrl,
+                method,
+                () ->
+                        switch (method) {
+                            case FHIR_METADATA -> withMethod(
+                                    fhirClient.getMetadataSmartUrls(fhirServerUrl), method);
+                            case OIDC_CONFIGURATION -> withMethod(
+                                    oidcClient.getWellKnownInfo(fhirServerUrl), method);
+                            case SMART_CONFIGURATION -> withMethod(
+                                    oidcClient.getSmartConfiguration(fhirServerUrl), method);
+                            case AUTO -> discoverFirst(fhirServerUrl);
+                        });
+    }
+
+    public CompletableFuture<SmartMetadata> discoverAsync(
+            String fhirServerUrl, DiscoveryMethod method) {
+        return Futures.supplyAsync(() -> discover(fhirServerUrl, method), outboundExecutor);
+    }
+
+    /**
+     * Queries all the {@link #autoOrder} sources concurrently and returns the first valid answer.
+     * The sources still running are not interrupted: other launches may wait for the same loads
+     * in the {@link DiscoveryCache}, and their answers are cached once they complete.
+     */
+    private SmartMetadata discoverFirst(String fhirServerUrl) throws IOException {
+        CompletionService<SmartMetadata> completionService =
+                new ExecutorCompletionService<>(discoveryExecutor);
+        Map<Future<SmartMetadata>, DiscoveryMethod> sources = new IdentityHashMap<>();
+        for (DiscoveryMethod method : autoOrder) {
+            if (method == DiscoveryMethod.AUTO) {
+                continue;
+            }
+            sources.put(completionService.submit(() -> discover(fhirServerUrl, method)), method);
+        }
+
+        List<Exception> failures = new ArrayList<>();
+        try {
+            long deadline = System.nanoTime() + autoTimeout.toNanos();
+            for (int pending = sources.size(); pending > 0; pending--) {
+                Future<SmartMetadata> completed =
+                        completionService.poll(
+                                deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (completed == null) {
+                    failures.add(new IOException("Timed out after " + autoTimeout));
+                    break;
+                }
+
+                SmartMetadata first = validResult(completed, sources, failures);
+                if (first == null) {
+                    continue;
+                }
+
+                // other sources may have finished meanwhile, prefer them if ranked higher
+                Future<SmartMetadata> alsoCompleted;
+                while ((alsoCompleted = completionService.poll()) != null) {
+                    SmartMetadata other = validResult(alsoCompleted, sources, failures);
+                    if (other != null
+                            && autoOrder.indexOf(other.getDiscoveryMethod())
+                                    < autoOrder.indexOf(first.getDiscoveryMethod())) {
+                        first = other;
+                    }
+                }
+                return first;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.add(e);
+        } finally {
+            sources.keySet().forEach(source -> source.cancel(false));
+        }
+
+        IOException exception =
+                new IOException("No SMART discovery source answered for " + fhirServerUrl);
+        failures.forEach(exception::addSuppressed);
+        throw exception;
+    }
+
+    private SmartMetadata validResult(
+            Future<SmartMetadata> completed,
+            Map<Future<SmartMetadata>, DiscoveryMethod> sources,
+            List<Exception> failures) {
+        try {
+            SmartMetadata smartMetadata = completed.get();
+            if (StringUtils.isNoneBlank(
+                    smartMetadata.getAuthorizeUrl(), smartMetadata.getTokenUrl())) {
+                return smartMetadata;
+            }
+            log.debug("{} returned no SMART URLs", sources.get(completed));
+        } catch (ExecutionException e) {
+            log.debug("{} failed: {}", sources.get(completed), e.getCause().getMessage());
+            failures.add(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.add(e);
+        }
+        return null;
+    }
+
+    private static SmartMetadata withMethod(SmartMetadata smartMetadata, DiscoveryMethod method) {
+        smartMetadata.setDiscoveryMethod(method);
+        return smartMetadata;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        discoveryExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,159 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+
+/**
+ * Reads the SMART authorize and token URLs from a JSON {@code CapabilityStatement} without
+ * building the HAPI object model. Only the tokens of {@code rest[].security.extension[]} are
+ * looked at, everything else is skipped, and parsing stops as soon as both URLs were found.
+ *
+ * <pre>
+ * "rest": [{
+ *   "security": {
+ *     "extension": [{
+ *       "url": "http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris",
+ *       "extension": [
+ *         { "url": "authorize", "valueUri": "https://ehr/authorize" },
+ *         { "url": "token", "valueUri": "https://ehr/token" }
+ *       ]
+ *     }]
+ *   }
+ * }]
+ * </pre>
+ */
+public class SmartExtensionExtractor {
+
+    public static final String OAUTH_URIS_EXTENSION_URL =
+            "http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public static SmartMetadata extract(String capabilityStatementJson) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(capabilityStatementJson)) {
+            return extract(parser);
+        }
+    }
+
+    public static SmartMetadata extract(byte[] capabilityStatementJson) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(capabilityStatementJson)) {
+            return extract(parser);
+        }
+    }
+
+    private static SmartMetadata extract(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a JSON CapabilityStatement");
+        }
+
+        SmartMetadata smartMetadata = new SmartMetadata();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("rest".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    if (readRest(parser, smartMetadata)) {
+                        return smartMetadata;
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return smartMetadata;
+    }
+
+    /**
+     * @return true when both URLs were found, in which case the parser is left mid-object
+     */
+    private static boolean readRest(JsonParser parser, SmartMetadata smartMetadata)
+            throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("security".equals(field) && value == JsonToken.START_OBJECT) {
+                if (readSecurity(parser, smartMetadata)) {
+                    return true;
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    private static boolean readSecurity(JsonParser parser, SmartMetadata smartMetadata)
+            throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("extension".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    if (readSecurityExtension(parser, smartMetadata)) {
+                        return true;
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    private static boolean readSecurityExtension(JsonParser parser, SmartMetadata smartMetadata)
+            throws IOException {
+        // "url" may come after the nested extensions, so keep them until the object ends
+        String url = null;
+        String authorizeUrl = null;
+        String tokenUrl = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("url".equals(field) && value == JsonToken.VALUE_STRING) {
+                url = parser.getText();
+            } else if ("extension".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    String[] urlAndValue = readUriExtension(parser);
+                    if ("authorize".equals(urlAndValue[0])) {
+                        authorizeUrl = urlAndValue[1];
+                    } else if ("token".equals(urlAndValue[0])) {
+                        tokenUrl = urlAndValue[1];
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (!OAUTH_URIS_EXTENSION_URL.equals(url)) {
+            return false;
+        }
+        if (authorizeUrl != null) {
+            smartMetadata.setAuthorizeUrl(authorizeUrl);
+        }
+        if (tokenUrl != null) {
+            smartMetadata.setTokenUrl(tokenUrl);
+        }
+        return smartMetadata.getAuthorizeUrl() != null && smartMetadata.getTokenUrl() != null;
+    }
+
+    private static String[] readUriExtension(JsonParser parser) throws IOException {
+        String[] urlAndValue = new String[2];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("url".equals(field) && value == JsonToken.VALUE_STRING) {
+                urlAndValue[0] = parser.getText();
+            } else if ("valueUri".equals(field) && value == JsonToken.VALUE_STRING) {
+                urlAndValue[1] = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return urlAndValue;
+    }
+}
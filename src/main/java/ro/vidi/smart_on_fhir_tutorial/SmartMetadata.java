@@ -10,5 +10,19 @@ public class SmartMetadata {
 
     private String tokenUrl;
 
+    /**
+     * OpenID issuer, found by {@link DiscoveryMethod#OIDC_CONFIGURATION} and by {@link
+     * DiscoveryMethod#SMART_CONFIGURATION} when published.
+     */
+    private String issuer;
+
+    /**
+     * JWKS of the issuer, found by {@link DiscoveryMethod#OIDC_CONFIGURATION} and by {@link
+     * DiscoveryMethod#SMART_CONFIGURATION} when published.
+     */
+    private String jwksUrl;
+
     private String jsonResponse;
+
+    private DiscoveryMethod discoveryMethod;
 }
@@ -1,11 +1,21 @@
 /* (C)2024 */
 package ro.vidi.smart_on_fhir_tutorial;
 
+import com.vaadin.flow.component.page.AppShellConfigurator;
+import com.vaadin.flow.component.page.Push;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 
-@SpringBootApplication
-public class SmartOnFhirTutorialApplication {
+/**
+ * Server push lets the views show the result of the EHR calls running in the background.
+ *
+ * <p>No {@code DataSource} is configured unless the launches are kept in a database, see {@link
+ * AppConfig#stateDataSource}.
+ */
+@SpringBootApplication(exclude = DataSourceAutoConfiguration.class)
+@Push
+public class SmartOnFhirTutorialApplication implements AppShellConfigurator {
 
     public static void main(String[] args) {
         SpringApplication.run(SmartOnFhirTutorialApplication.class, args);
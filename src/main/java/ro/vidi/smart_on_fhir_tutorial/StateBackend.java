@@ -0,0 +1,49 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.time.Duration;
+
+/**
+ * Storage of the launch states and tokens, so that they can be shared by the instances of the
+ * application and survive the failure of one. The UI sessions, and the launches they started, stay
+ * local to their instance. Selected with {@code app.state.backend}:
+ *
+ * <ul>
+ *   <li>{@code memory} (default): {@link InMemoryStateBackend}, local to each instance
+ *   <li>{@code jdbc}: {@link JdbcStateBackend}, shared by the instances using the same database
+ * </ul>
+ *
+ * Values are opaque bytes, see {@link StateCodec}.
+ */
+public interface StateBackend {
+
+    /**
+     * Stores the value, replacing any previous one, until {@code ttl} elapsed.
+     */
+    void put(String namespace, String key, byte[] value, Duration ttl);
+
+    /**
+     * Stores the value unless an unexpired one is stored under the key, atomically for all the
+     * instances sharing the backend. Used as a lease: the instance storing the value holds it
+     * until it removes the value with {@link #removeIfEquals} or {@code ttl} elapsed.
+     *
+     * @return whether the value was stored
+     */
+    boolean putIfAbsent(String namespace, String key, byte[] value, Duration ttl);
+
+    /**
+     * @return the value, or null if missing or expired
+     */
+    byte[] get(String namespace, String key);
+
+    void remove(String namespace, String key);
+
+    /**
+     * Removes the value only if it is still {@code value}, atomically for all the instances
+     * sharing the backend. Releases a lease without removing the one taken over by another
+     * instance once it expired.
+     *
+     * @return whether the value was removed
+     */
+    boolean removeIfEquals(String namespace, String key, byte[] value);
+}
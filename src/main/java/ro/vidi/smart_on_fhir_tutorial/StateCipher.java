@@ -0,0 +1,76 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM encryption of the values written to a {@link StateBackend}, so that a database shared by
+ * the instances does not hold the tokens in plain text. A value is the random IV followed by the
+ * ciphertext, authenticated together with the key it is stored under: a value copied under
+ * another key is rejected.
+ */
+public class StateCipher {
+
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+
+    private static final int IV_LENGTH = 12;
+
+    private static final int TAG_LENGTH = 128;
+
+    private final SecretKeySpec secretKey;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param secretKey 16, 24 or 32 bytes AES key
+     */
+    public StateCipher(byte[] secretKey) {
+        this.secretKey = new SecretKeySpec(secretKey, "AES");
+    }
+
+    public byte[] encrypt(String key, byte[] value) {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        try {
+            Cipher cipher = cipher(Cipher.ENCRYPT_MODE, key, iv);
+            byte[] encrypted = cipher.doFinal(value);
+            return ByteBuffer.allocate(IV_LENGTH + encrypted.length)
+                    .put(iv)
+                    .put(encrypted)
+                    .array();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws IOException when the value was not encrypted with this key for this state key
+     */
+    public byte[] decrypt(String key, byte[] value) throws IOException {
+        if (value.length < IV_LENGTH) {
+            throw new IOException("Malformed encrypted state");
+        }
+        try {
+            Cipher cipher =
+                    cipher(Cipher.DECRYPT_MODE, key, Arrays.copyOfRange(value, 0, IV_LENGTH));
+            return cipher.doFinal(value, IV_LENGTH, value.length - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot decrypt state", e);
+        }
+    }
+
+    private Cipher cipher(int mode, String key, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(mode, secretKey, new GCMParameterSpec(TAG_LENGTH, iv));
+        cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+        return cipher;
+    }
+}
@@ -0,0 +1,136 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Compact binary encoding of the state stored in a {@link StateBackend}: a format version, then
+ * the fields in a fixed order, each string prefixed by its length.
+ *
+ * <p>New fields are only ever appended with a new version, so the states written by an instance
+ * still running the previous version can be read.
+ */
+public class StateCodec {
+
+    /**
+     * 2: {@link AppState#getTraceParent()} appended
+     */
+    private static final byte VERSION = 2;
+
+    private static final byte MIN_VERSION = 1;
+
+    public static byte[] encode(AppState appState) {
+        return write(
+                out -> {
+                    writeString(out, appState.getFhirServerUrl());
+                    writeString(out, appState.getTokenUrl());
+                    writeString(out, appState.getClientId());
+                    writeString(out, appState.getOtherDetails());
+                    writeString(out, appState.getTraceParent());
+                });
+    }
+
+    public static AppState decodeAppState(byte[] bytes) throws IOException {
+        try (DataInputStream in = read(bytes)) {
+            AppState appState = new AppState();
+            appState.setFhirServerUrl(readString(in));
+            appState.setTokenUrl(readString(in));
+            appState.setClientId(readString(in));
+            appState.setOtherDetails(readString(in));
+            if (bytes[0] >= 2) {
+                appState.setTraceParent(readString(in));
+            }
+            return appState;
+        }
+    }
+
+    public static byte[] encode(StoredToken token) {
+        return write(
+                out -> {
+                    writeString(out, token.getAccessToken());
+                    writeString(out, token.getRefreshToken());
+                    writeString(out, token.getIdToken());
+                    writeString(out, token.getScope());
+                    writeString(out, token.getPatient());
+                    out.writeLong(
+                            token.getExpiresAt() != null
+                                    ? token.getExpiresAt().toEpochMilli()
+                                    : Long.MIN_VALUE);
+                    writeString(out, token.getTokenUrl());
+                    writeString(out, token.getClientId());
+                });
+    }
+
+    public static StoredToken decodeStoredToken(byte[] bytes) throws IOException {
+        try (DataInputStream in = read(bytes)) {
+            StoredToken token = new StoredToken();
+            token.setAccessToken(readString(in));
+            token.setRefreshToken(readString(in));
+            token.setIdToken(readString(in));
+            token.setScope(readString(in));
+            token.setPatient(readString(in));
+            long expiresAt = in.readLong();
+            token.setExpiresAt(
+                    expiresAt != Long.MIN_VALUE ? Instant.ofEpochMilli(expiresAt) : null);
+            token.setTokenUrl(readString(in));
+            token.setClientId(readString(in));
+            return token;
+        }
+    }
+
+    private static byte[] write(Writer writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream read(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte version = in.readByte();
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new IOException("Unsupported state version " + version);
+        }
+        return in;
+    }
+
+    /**
+     * Length of the UTF-8 bytes, -1 for null, then the bytes. Unlike {@link
+     * DataOutputStream#writeUTF} not limited to 64KB, as ID tokens may be large.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private interface Writer {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+}
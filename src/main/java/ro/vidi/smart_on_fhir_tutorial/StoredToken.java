@@ -0,0 +1,95 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
+import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.oauth2.sdk.token.RefreshToken;
+import com.nimbusds.oauth2.sdk.token.Tokens;
+import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+
+/**
+ * Tokens obtained for a launch, together with what is needed to renew them.
+ */
+@Data
+public class StoredToken {
+
+    private String accessToken;
+
+    private String refreshToken;
+
+    private String idToken;
+
+    private String scope;
+
+    private String patient;
+
+    /**
+     * Null when the server did not send {@code expires_in}.
+     */
+    private Instant expiresAt;
+
+    private String tokenUrl;
+
+    private String clientId;
+
+    public static StoredToken from(
+            AccessTokenResponse response, String tokenUrl, String clientId, Instant now) {
+        StoredToken token = new StoredToken();
+        token.setAccessToken(response.getTokens().getAccessToken().getValue());
+        if (response.getTokens().getRefreshToken() != null) {
+            token.setRefreshToken(response.getTokens().getRefreshToken().getValue());
+        }
+        if (response instanceof OIDCTokenResponse oidcTokenResponse) {
+            token.setIdToken(oidcTokenResponse.getOIDCTokens().getIDTokenString());
+        }
+        if (response.getTokens().getAccessToken().getScope() != null) {
+            token.setScope(response.getTokens().getAccessToken().getScope().toString());
+        }
+        Object patient = response.getCustomParameters().get("patient");
+        if (patient != null) {
+            token.setPatient(String.valueOf(patient));
+        }
+        long lifetime = response.getTokens().getAccessToken().getLifetime();
+        if (lifetime > 0) {
+            token.setExpiresAt(now.plusSeconds(lifetime));
+        }
+        token.setTokenUrl(tokenUrl);
+        token.setClientId(clientId);
+        return token;
+    }
+
+    /**
+     * @return a token response carrying the tokens as stored now, {@code expires_in} counting from
+     *     {@code now}
+     */
+    public AccessTokenResponse toTokenResponse(Instant now) {
+        long lifetime =
+                expiresAt != null ? Math.max(1, Duration.between(now, expiresAt).toSeconds()) : 0;
+        BearerAccessToken bearerAccessToken =
+                new BearerAccessToken(accessToken, lifetime, Scope.parse(scope));
+        RefreshToken bearerRefreshToken =
+                refreshToken != null ? new RefreshToken(refreshToken) : null;
+        Map<String, Object> customParameters = new HashMap<>();
+        if (patient != null) {
+            customParameters.put("patient", patient);
+        }
+        if (idToken != null) {
+            return new OIDCTokenResponse(
+                    new OIDCTokens(idToken, bearerAccessToken, bearerRefreshToken),
+                    customParameters);
+        }
+        return new AccessTokenResponse(
+                new Tokens(bearerAccessToken, bearerRefreshToken), customParameters);
+    }
+
+    public boolean expiresWithin(Duration duration, Instant now) {
+        return expiresAt != null && !now.plus(duration).isBefore(expiresAt);
+    }
+}
@@ -0,0 +1,34 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An EHR the application is registered with, see {@link TenantRegistry}.
+ *
+ * @param id unique key of the tenant
+ * @param name shown to the users, the id if missing
+ * @param fhirServerUrl base URL of the FHIR server
+ * @param clientId client registered with the EHR authorization server
+ * @param scopes requested by the launches, the defaults of the start view if empty
+ * @param discoveryMethod source of the SMART URLs, {@link DiscoveryMethod#AUTO} if missing
+ */
+public record Tenant(
+        String id,
+        String name,
+        String fhirServerUrl,
+        String clientId,
+        List<String> scopes,
+        DiscoveryMethod discoveryMethod) {
+
+    public Tenant {
+        if (StringUtils.isAnyBlank(id, fhirServerUrl, clientId)) {
+            throw new IllegalArgumentException(
+                    "A tenant needs an id, a fhirServerUrl and a clientId, got " + id);
+        }
+        name = StringUtils.defaultIfBlank(name, id);
+        scopes = scopes != null ? List.copyOf(scopes) : List.of();
+        discoveryMethod = discoveryMethod != null ? discoveryMethod : DiscoveryMethod.AUTO;
+    }
+}
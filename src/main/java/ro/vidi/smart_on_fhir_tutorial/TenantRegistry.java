@@ -0,0 +1,271 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * The EHRs the application is registered with, read from the JSON array of {@link Tenant}s in
+ * {@code app.tenants.file}. Without a file, the only tenant is the {@code fhir.server.url} server.
+ *
+ * <p>The file is checked for changes every {@code app.tenants.reload-interval}, and read again
+ * when modified: the tenants added or changed are used from then on, without a restart. A file
+ * that cannot be read leaves the current tenants in place.
+ *
+ * <p>The tenants are warmed up in parallel at startup and when added or changed, so that the first
+ * launch of a tenant does not wait for more than the following ones:
+ *
+ * <ul>
+ *   <li>the SMART discovery of the tenant, kept in the {@link DiscoveryCache}
+ *   <li>the keys of its issuer, see {@link TokenValidator#warmUp}
+ *   <li>the connections to its FHIR server and authorization server, see {@link
+ *       HttpTransport#preconnect}
+ *   <li>the FHIR client proxy of its server, see {@link FhirClient#prepareClient}
+ * </ul>
+ *
+ * All the tenants are warmed up again every {@code app.tenants.rewarm-interval}, before their
+ * discovery leaves the stale window of the cache.
+ *
+ * <p>The connections opened ahead are closed by the pool once idle for {@code
+ * http.client.idle-timeout}, so they only spare the connection setup to the launches following
+ * the warm-up within that time. The other launches still benefit from the cached discovery, keys
+ * and client proxies.
+ */
+@Component
+@Slf4j
+public class TenantRegistry {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Client of the {@code fhir.server.url} tenant, registered with the SMART sandbox.
+     */
+    private static final String DEFAULT_CLIENT_ID = "smart-on-fhir-tutorial";
+
+    @Autowired private FhirClient fhirClient;
+
+    @Autowired private SmartDiscovery smartDiscovery;
+
+    @Autowired private TokenValidator tokenValidator;
+
+    @Autowired private HttpTransport httpTransport;
+
+    @Autowired private ExecutorService outboundExecutor;
+
+    @Value("${app.tenants.file:}")
+    private String file;
+
+    @Value("${app.tenants.reload-interval:PT10S}")
+    private Duration reloadInterval;
+
+    /**
+     * Disable to load the tenants lazily, on their first launch.
+     */
+    @Value("${app.tenants.warm-up:true}")
+    private boolean warmUpEnabled;
+
+    @Value("${app.tenants.rewarm-interval:PT30M}")
+    private Duration rewarmInterval;
+
+    private final ScheduledExecutorService reloader =
+            Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("tenants-"));
+
+    /**
+     * By id, in the order of the file. Replaced as a whole on reload.
+     */
+    private volatile Map<String, Tenant> tenants = Map.of();
+
+    private FileTime lastModified;
+
+    /**
+     * Modification time of the file when it last failed to be read, to log the failure once.
+     */
+    private FileTime failedModified;
+
+    @PostConstruct
+    public void init() {
+        if (StringUtils.isBlank(file)) {
+            Tenant tenant =
+                    new Tenant(
+                            "default",
+                            "Default FHIR server",
+                            fhirClient.getDefaultFhirServerUrl(),
+                            DEFAULT_CLIENT_ID,
+                            List.of(),
+                            DiscoveryMethod.AUTO);
+            tenants = Map.of(tenant.id(), tenant);
+            warmUp(tenants.values());
+        } else {
+            // warms up the tenants read
+            reload();
+            reloader.scheduleWithFixedDelay(
+                    this::reload,
+                    reloadInterval.toMillis(),
+                    reloadInterval.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+        reloader.scheduleWithFixedDelay(
+                () -> warmUp(tenants.values()),
+                rewarmInterval.toMillis(),
+                rewarmInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    public List<Tenant> getTenants() {
+        return List.copyOf(tenants.values());
+    }
+
+    public Tenant getTenant(String id) {
+        return tenants.get(id);
+    }
+
+    /**
+     * Reads the file again if it was modified since last read, and warms up the tenants added or
+     * changed. A file that cannot be read, possibly as it is being written, is read again on the
+     * next reload.
+     *
+     * @return the warm-up of these tenants
+     */
+    CompletableFuture<Void> reload() {
+        Map<String, Tenant> loaded;
+        FileTime modified = null;
+        try {
+            Path path = Path.of(file);
+            modified = Files.getLastModifiedTime(path);
+            if (modified.equals(lastModified)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            loaded = read(path);
+            lastModified = modified;
+        } catch (IOException | RuntimeException e) {
+            if (modified == null || !modified.equals(failedModified)) {
+                log.error("Cannot read the tenants from {}, keeping the current ones", file, e);
+            }
+            failedModified = modified;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Map<String, Tenant> previous = tenants;
+        tenants = loaded;
+        List<Tenant> changed =
+                loaded.values().stream()
+                        .filter(tenant -> !tenant.equals(previous.get(tenant.id())))
+                        .toList();
+        log.info(
+                "{} tenants read from {}, {} added or changed",
+                loaded.size(),
+                file,
+                changed.size());
+        return warmUp(changed);
+    }
+
+    private static Map<String, Tenant> read(Path path) throws IOException {
+        List<Tenant> list = MAPPER.readValue(path.toFile(), new TypeReference<List<Tenant>>() {});
+        Map<String, Tenant> byId = new LinkedHashMap<>();
+        for (Tenant tenant : list) {
+            if (byId.put(tenant.id(), tenant) != null) {
+                throw new IOException("Duplicate tenant " + tenant.id());
+            }
+        }
+        return byId;
+    }
+
+    /**
+     * Warms up the tenants in parallel, on the outbound executor. The failures are logged, the
+     * tenant is then loaded on its first launch.
+     *
+     * @return completed once all the tenants are warmed up, never exceptionally
+     */
+    CompletableFuture<Void> warmUp(Collection<Tenant> tenantsToWarm) {
+        if (!warmUpEnabled || tenantsToWarm.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> warmUps = new ArrayList<>();
+        for (Tenant tenant : tenantsToWarm) {
+            warmUps.add(
+                    CompletableFuture.runAsync(() -> warmUp(tenant), outboundExecutor)
+                            .exceptionally(
+                                    e -> {
+                                        log.warn("Warm-up of tenant {} failed", tenant.id(), e);
+                                        return null;
+                                    }));
+        }
+        return CompletableFuture.allOf(warmUps.toArray(CompletableFuture[]::new))
+                .thenRun(
+                        () ->
+                                log.info(
+                                        "{} tenants warmed up in {} ms",
+                                        tenantsToWarm.size(),
+                                        TimeUnit.NANOSECONDS.toMillis(
+                                                System.nanoTime() - start)));
+    }
+
+    private void warmUp(Tenant tenant) {
+        long start = System.nanoTime();
+        String fhirServerUrl = tenant.fhirServerUrl();
+        fhirClient.prepareClient(fhirServerUrl);
+
+        List<String> failures = new ArrayList<>();
+        SmartMetadata smartMetadata = null;
+        try {
+            smartMetadata = smartDiscovery.discover(fhirServerUrl, tenant.discoveryMethod());
+        } catch (Exception e) {
+            failures.add("discovery: " + e.getMessage());
+        }
+        try {
+            tokenValidator.warmUp(fhirServerUrl);
+        } catch (Exception e) {
+            failures.add("keys: " + e.getMessage());
+        }
+        // the discovery already connected to the FHIR server, which may host the token endpoint
+        if (smartMetadata != null
+                && !Objects.equals(host(smartMetadata.getTokenUrl()), host(fhirServerUrl))) {
+            try {
+                httpTransport.preconnect(smartMetadata.getTokenUrl());
+            } catch (Exception e) {
+                failures.add("token endpoint: " + e.getMessage());
+            }
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (failures.isEmpty()) {
+            log.debug("Tenant {} warmed up in {} ms", tenant.id(), millis);
+        } else {
+            log.warn("Tenant {} partly warmed up in {} ms: {}", tenant.id(), millis, failures);
+        }
+    }
+
+    private static String host(String url) {
+        return StringUtils.substringBefore(StringUtils.substringAfter(url, "://"), "/");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reloader.shutdownNow();
+    }
+}
@@ -0,0 +1,428 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Server side store of the tokens obtained for each launch, keyed by a random launch id issued by
+ * {@link #put}. The id is unguessable and never derived from the launch {@code state}, so two
+ * launches with the same settings never share their tokens.
+ *
+ * <p>Tokens with a refresh token are renewed in the background {@code
+ * smart.token-store.refresh-before} their expiry, and on demand when an expired token is asked
+ * for. Concurrent renewals of the same launch share a single refresh request. Launches not used
+ * for {@code smart.token-store.max-idle} are dropped instead of being renewed. Tokens without
+ * {@code expires_in} are held for {@code smart.token-store.max-age} at most.
+ *
+ * <p>The tokens are also written to the {@link StateBackend}, encrypted with {@code
+ * smart.token-store.encryption-key}, so that an instance that did not run the token exchange can
+ * serve the launch. A token is renewed by a single instance, holding a lease on the launch in the
+ * backend: the others wait for the renewed token instead of sending the same refresh token, which
+ * the server may have rotated already.
+ */
+@Component
+@Slf4j
+public class TokenStore {
+
+    private static final String NAMESPACE = "token";
+
+    private static final String LEASE_NAMESPACE = "token-refresh";
+
+    private static final Duration LEASE_POLL_INTERVAL = Duration.ofMillis(200);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    @Autowired private OidcClient oidcClient;
+
+    @Autowired private ExecutorService outboundExecutor;
+
+    @Autowired private StateBackend stateBackend;
+
+    @Value("${smart.token-store.refresh-before:PT1M}")
+    private Duration refreshBefore;
+
+    @Value("${smart.token-store.max-idle:PT1H}")
+    private Duration maxIdle;
+
+    /**
+     * Lifetime assumed for the access tokens sent without {@code expires_in}.
+     */
+    @Value("${smart.token-store.max-age:PT8H}")
+    private Duration maxAge;
+
+    /**
+     * Longest refresh: an instance holding the lease of a launch for longer is assumed to be gone.
+     */
+    @Value("${smart.token-store.refresh-lease:PT1M}")
+    private Duration refreshLease;
+
+    /**
+     * Base64 AES key of the tokens written to the {@link StateBackend}, the same on all the
+     * instances. When empty a random key is used, and the tokens cannot be read by the other
+     * instances nor after a restart.
+     */
+    @Value("${smart.token-store.encryption-key:}")
+    private String encryptionKey;
+
+    private StateCipher cipher;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                    new CustomizableThreadFactory("token-refresh-"));
+
+    @PostConstruct
+    public void init() {
+        byte[] key;
+        if (StringUtils.isNotBlank(encryptionKey)) {
+            key = Base64.getDecoder().decode(encryptionKey);
+        } else {
+            key = new byte[32];
+            RANDOM.nextBytes(key);
+            if (!(stateBackend instanceof InMemoryStateBackend)) {
+                log.warn(
+                        "No smart.token-store.encryption-key, the tokens will not be shared with"
+                                + " the other instances");
+            }
+        }
+        cipher = new StateCipher(key);
+    }
+
+    /**
+     * Stores the tokens of a new launch.
+     *
+     * @return the id of the launch, to be kept by the session that ran the token exchange only
+     */
+    public String put(AccessTokenResponse response, String tokenUrl, String clientId) {
+        byte[] bytes = new byte[32];
+        RANDOM.nextBytes(bytes);
+        String launchId = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+        Entry entry = new Entry(stored(response, tokenUrl, clientId));
+        share(launchId, entry.token);
+        Entry previous = entries.put(launchId, entry);
+        if (previous != null) {
+            previous.cancelSchedule();
+        }
+        schedule(launchId, entry);
+        return launchId;
+    }
+
+    /**
+     * @return the tokens of the launch, or null if the launch is unknown
+     */
+    public StoredToken get(String launchId) {
+        Entry entry = entry(launchId);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastAccess = Instant.now();
+        return entry.token;
+    }
+
+    /**
+     * @return a valid access token of the launch, renewing it first if it expired
+     * @throws IllegalStateException when the launch is unknown or its token cannot be renewed
+     */
+    public String getAccessToken(String launchId) {
+        Entry entry = entry(launchId);
+        if (entry == null) {
+            throw new IllegalStateException("No access token stored for launch " + launchId);
+        }
+        entry.lastAccess = Instant.now();
+
+        StoredToken token = entry.token;
+        if (!token.expiresWithin(Duration.ZERO, Instant.now())) {
+            return token.getAccessToken();
+        }
+        if (token.getRefreshToken() == null) {
+            throw new IllegalStateException("Access token of launch " + launchId + " expired");
+        }
+        try {
+            return refresh(launchId, entry, token, true).join().getAccessToken();
+        } catch (CompletionException e) {
+            throw (IllegalStateException) Futures.unwrap(e);
+        }
+    }
+
+    public void remove(String launchId) {
+        stateBackend.remove(NAMESPACE, launchId);
+        Entry entry = entries.remove(launchId);
+        if (entry != null) {
+            entry.cancelSchedule();
+        }
+    }
+
+    /**
+     * @return the local entry of the launch, loaded from the {@link StateBackend} when the launch
+     *     started on another instance, or null if the launch is unknown
+     */
+    private Entry entry(String launchId) {
+        Entry entry = entries.get(launchId);
+        if (entry != null) {
+            return entry;
+        }
+        StoredToken shared = loadShared(launchId);
+        if (shared == null) {
+            return null;
+        }
+        Entry loaded = new Entry(shared);
+        entry = entries.putIfAbsent(launchId, loaded);
+        if (entry != null) {
+            return entry;
+        }
+        schedule(launchId, loaded);
+        return loaded;
+    }
+
+    private StoredToken loadShared(String launchId) {
+        byte[] bytes = stateBackend.get(NAMESPACE, launchId);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return StateCodec.decodeStoredToken(cipher.decrypt(launchId, bytes));
+        } catch (IOException e) {
+            log.warn("Cannot read the shared tokens of launch {}", launchId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the tokens to the {@link StateBackend}, kept until idle for {@code max-idle} after
+     * their expiry.
+     */
+    private void share(String launchId, StoredToken token) {
+        Duration ttl = maxIdle;
+        if (token.getExpiresAt() != null) {
+            ttl = ttl.plus(Duration.between(Instant.now(), token.getExpiresAt()));
+        }
+        stateBackend.put(
+                NAMESPACE, launchId, cipher.encrypt(launchId, StateCodec.encode(token)), ttl);
+    }
+
+    /**
+     * @return the tokens of the response, expiring after {@code max-age} if the server did not say
+     */
+    private StoredToken stored(AccessTokenResponse response, String tokenUrl, String clientId) {
+        Instant now = Instant.now();
+        StoredToken token = StoredToken.from(response, tokenUrl, clientId, now);
+        if (token.getExpiresAt() == null) {
+            token.setExpiresAt(now.plus(maxAge));
+        }
+        return token;
+    }
+
+    private void schedule(String launchId, Entry entry) {
+        StoredToken token = entry.token;
+        if (token.getExpiresAt() == null) {
+            return;
+        }
+
+        Instant now = Instant.now();
+        long delay;
+        Runnable task;
+        if (token.getRefreshToken() != null) {
+            delay = Duration.between(now, token.getExpiresAt().minus(refreshBefore)).toMillis();
+            task = () -> refreshIfUsed(launchId, entry, token);
+        } else {
+            delay = Duration.between(now, token.getExpiresAt()).toMillis();
+            task = () -> entries.remove(launchId, entry);
+        }
+        entry.scheduled = scheduler.schedule(task, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshIfUsed(String launchId, Entry entry, StoredToken token) {
+        if (entry.lastAccess.plus(maxIdle).isBefore(Instant.now())) {
+            log.debug("Launch {} idle since {}, dropping its tokens", launchId, entry.lastAccess);
+            entries.remove(launchId, entry);
+            return;
+        }
+        if (entry.token != token) {
+            // renewed on demand meanwhile, and scheduled again
+            return;
+        }
+        refresh(launchId, entry, token, false);
+    }
+
+    /**
+     * Starts a refresh of the launch tokens, or joins the one already running.
+     *
+     * @param seen the tokens found expiring, nothing is refreshed if already renewed since
+     * @param inline run the refresh on the calling thread instead of the outbound executor
+     */
+    private CompletableFuture<StoredToken> refresh(
+            String launchId, Entry entry, StoredToken seen, boolean inline) {
+        while (true) {
+            CompletableFuture<StoredToken> running = entry.refreshing.get();
+            if (running != null) {
+                return running;
+            }
+            CompletableFuture<StoredToken> refreshing = new CompletableFuture<>();
+            if (entry.refreshing.compareAndSet(null, refreshing)) {
+                StoredToken current = entry.token;
+                if (current != seen) {
+                    // renewed by a refresh completed since the tokens were read
+                    entry.refreshing.set(null);
+                    refreshing.complete(current);
+                } else if (inline) {
+                    doRefresh(launchId, entry, refreshing);
+                } else {
+                    outboundExecutor.execute(() -> doRefresh(launchId, entry, refreshing));
+                }
+                return refreshing;
+            }
+        }
+    }
+
+    private void doRefresh(
+            String launchId, Entry entry, CompletableFuture<StoredToken> refreshing) {
+        try {
+            renewed(launchId, entry, renewUnderLease(launchId, entry.token), refreshing);
+        } catch (Exception e) {
+            log.warn("Cannot renew access token of launch {}", launchId, e);
+            entry.refreshing.set(null);
+            refreshing.completeExceptionally(
+                    new IllegalStateException("Cannot renew access token", e));
+        }
+    }
+
+    /**
+     * Renews the tokens while holding the lease of the launch, or waits for the instance holding
+     * it to share the tokens it renewed. The lease holds a random value of its holder, so that a
+     * refresh outliving {@code refresh-lease} does not release the lease taken over meanwhile.
+     */
+    private StoredToken renewUnderLease(String launchId, StoredToken current) throws Exception {
+        byte[] holder = new byte[16];
+        RANDOM.nextBytes(holder);
+        long deadline = System.nanoTime() + refreshLease.multipliedBy(2).toNanos();
+        while (true) {
+            StoredToken shared = renewedElsewhere(launchId, current);
+            if (shared != null) {
+                return shared;
+            }
+            if (stateBackend.putIfAbsent(LEASE_NAMESPACE, launchId, holder, refreshLease)) {
+                try {
+                    // renewed between the check and the lease
+                    shared = renewedElsewhere(launchId, current);
+                    return shared != null ? shared : renew(launchId, current);
+                } finally {
+                    stateBackend.removeIfEquals(LEASE_NAMESPACE, launchId, holder);
+                }
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException(
+                        "Access token of launch " + launchId + " not renewed by another instance");
+            }
+            try {
+                Thread.sleep(LEASE_POLL_INTERVAL.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the tokens shared by another instance if renewed since {@code current}, else null
+     */
+    private StoredToken renewedElsewhere(String launchId, StoredToken current) {
+        StoredToken shared = loadShared(launchId);
+        if (shared != null
+                && shared.getExpiresAt() != null
+                && !shared.expiresWithin(refreshBefore, Instant.now())
+                && (current.getExpiresAt() == null
+                        || shared.getExpiresAt().isAfter(current.getExpiresAt()))) {
+            log.debug("Access token of launch {} already renewed by another instance", launchId);
+            return shared;
+        }
+        return null;
+    }
+
+    private StoredToken renew(String launchId, StoredToken current) throws Exception {
+        AccessTokenResponse response =
+                oidcClient.refreshAccessToken(
+                        current.getTokenUrl(), current.getRefreshToken(), current.getClientId());
+
+        StoredToken renewed = stored(response, current.getTokenUrl(), current.getClientId());
+        if (renewed.getRefreshToken() == null) {
+            renewed.setRefreshToken(current.getRefreshToken());
+        }
+        if (renewed.getPatient() == null) {
+            renewed.setPatient(current.getPatient());
+        }
+        if (renewed.getIdToken() == null) {
+            renewed.setIdToken(current.getIdToken());
+        }
+        share(launchId, renewed);
+        log.debug(
+                "Renewed access token of launch {}, expires at {}",
+                launchId,
+                renewed.getExpiresAt());
+        return renewed;
+    }
+
+    private void renewed(
+            String launchId,
+            Entry entry,
+            StoredToken renewed,
+            CompletableFuture<StoredToken> refreshing) {
+        entry.token = renewed;
+        entry.refreshing.set(null);
+        refreshing.complete(renewed);
+        if (entries.get(launchId) == entry) {
+            schedule(launchId, entry);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static class Entry {
+
+        private volatile StoredToken token;
+
+        private volatile Instant lastAccess = Instant.now();
+
+        private volatile ScheduledFuture<?> scheduled;
+
+        private final AtomicReference<CompletableFuture<StoredToken>> refreshing =
+                new AtomicReference<>();
+
+        private Entry(StoredToken token) {
+            this.token = token;
+        }
+
+        private void cancelSchedule() {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+}
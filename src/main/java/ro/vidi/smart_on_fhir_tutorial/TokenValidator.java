@@ -0,0 +1,344 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.jwk.source.JWKSourceBuilder;
+import com.nimbusds.jose.proc.BadJOSEException;
+import com.nimbusds.jose.proc.DefaultJOSEObjectTypeVerifier;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jose.util.Resource;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.jwt.proc.DefaultJWTClaimsVerifier;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import com.nimbusds.oauth2.sdk.id.ClientID;
+import com.nimbusds.oauth2.sdk.id.Issuer;
+import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
+import com.nimbusds.openid.connect.sdk.validators.IDTokenValidator;
+import java.io.IOException;
+import java.net.URL;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Validates the tokens received from the authorization server: the signature and claims of the
+ * {@code id_token}, and of the access token when it is a JWT signed with the issuer keys. Opaque
+ * access tokens, and the JWTs signed with a shared secret, are left to the FHIR server.
+ *
+ * <p>The issuer and its JWKS URL are read from the {@code .well-known/smart-configuration} of the
+ * FHIR server, or else from its {@code .well-known/openid-configuration}, see {@link
+ * OidcClient#getSmartConfiguration} and {@link OidcClient#getWellKnownInfo}. The tokens of a server
+ * publishing no issuer or no JWKS URL in either cannot be verified, they are accepted with a
+ * warning. The JWKS of each issuer is
+ * cached for {@code smart.token-validation.jwks-ttl}, and fetched again when a token is signed with
+ * an unknown key, at most once per {@code smart.token-validation.jwks-min-refresh-interval}, so
+ * the keys can be rotated without a restart.
+ *
+ * <p>An access token must have been issued by the issuer of the FHIR server, and when it has an
+ * audience, it must be the FHIR server, the {@code aud} of the authorization request.
+ *
+ * <p>Validated tokens are remembered until their expiry, validating them again costs a lookup.
+ */
+@Component
+@Slf4j
+public class TokenValidator {
+
+    /**
+     * Discoveries publishing the issuer and its JWKS URL, by preference.
+     */
+    private static final List<DiscoveryMethod> ISSUER_SOURCES =
+            List.of(DiscoveryMethod.SMART_CONFIGURATION, DiscoveryMethod.OIDC_CONFIGURATION);
+
+    private static final Set<JWSAlgorithm> SIGNATURE_ALGORITHMS =
+            Set.of(
+                    JWSAlgorithm.RS256,
+                    JWSAlgorithm.RS384,
+                    JWSAlgorithm.RS512,
+                    JWSAlgorithm.PS256,
+                    JWSAlgorithm.PS384,
+                    JWSAlgorithm.PS512,
+                    JWSAlgorithm.ES256,
+                    JWSAlgorithm.ES384,
+                    JWSAlgorithm.ES512);
+
+    @Autowired private SmartDiscovery smartDiscovery;
+
+    @Autowired private HttpTransport httpTransport;
+
+    @Autowired private EhrResilience ehrResilience;
+
+    @Autowired private ExecutorService outboundExecutor;
+
+    @Value("${smart.token-validation.enabled:true}")
+    private boolean enabled;
+
+    @Value("${smart.token-validation.jwks-ttl:PT1H}")
+    private Duration jwksTtl;
+
+    @Value("${smart.token-validation.jwks-min-refresh-interval:PT30S}")
+    private Duration jwksMinRefreshInterval;
+
+    /**
+     * Longest wait for a JWKS being fetched by another thread.
+     */
+    @Value("${smart.token-validation.jwks-refresh-timeout:PT15S}")
+    private Duration jwksRefreshTimeout;
+
+    @Value("${smart.token-validation.max-clock-skew:PT1M}")
+    private Duration maxClockSkew;
+
+    @Value("${smart.token-validation.max-validated:10000}")
+    private int maxValidated;
+
+    private final Map<String, JWKSource<SecurityContext>> jwkSources = new ConcurrentHashMap<>();
+
+    /**
+     * Expiry of the validated tokens.
+     */
+    private final Map<Key, Instant> validated =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Instant> eldest) {
+                    return size() > maxValidated || eldest.getValue().isBefore(Instant.now());
+                }
+            };
+
+    private record Key(String audience, String token) {}
+
+    /**
+     * @return the response, once its tokens are validated
+     * @throws IOException when a token is invalid, or the issuer keys cannot be obtained
+     */
+    public OIDCTokenResponse validate(
+            String fhirServerUrl, String clientId, OIDCTokenResponse response)
+            throws IOException, ParseException {
+        if (!enabled) {
+            return response;
+        }
+
+        JWT idToken = response.getOIDCTokens().getIDToken();
+        SignedJWT accessToken = verifiableJwt(response.getOIDCTokens().getAccessToken().getValue());
+        if (idToken == null && accessToken == null) {
+            return response;
+        }
+
+        SmartMetadata issuer = issuerMetadata(fhirServerUrl);
+        if (issuer == null) {
+            log.warn(
+                    "No issuer or JWKS URL published by {}, its tokens are not verified",
+                    fhirServerUrl);
+            return response;
+        }
+        if (idToken != null) {
+            validateIdToken(issuer, clientId, idToken);
+        }
+        if (accessToken != null) {
+            validateAccessToken(issuer, fhirServerUrl, accessToken);
+        }
+        return response;
+    }
+
+    public CompletableFuture<OIDCTokenResponse> validateAsync(
+            String fhirServerUrl, String clientId, OIDCTokenResponse response) {
+        return Futures.supplyAsync(
+                () -> validate(fhirServerUrl, clientId, response), outboundExecutor);
+    }
+
+    /**
+     * Fetches the keys of the issuer of a FHIR server ahead of its first launch, see {@link
+     * TenantRegistry}.
+     *
+     * @throws IOException when the issuer or its keys cannot be obtained
+     */
+    public void warmUp(String fhirServerUrl) throws IOException, ParseException {
+        if (!enabled) {
+            return;
+        }
+        SmartMetadata issuer = issuerMetadata(fhirServerUrl);
+        if (issuer == null) {
+            return;
+        }
+        try {
+            jwkSource(issuer.getJwksUrl())
+                    .get(new JWKSelector(new JWKMatcher.Builder().build()), null);
+        } catch (KeySourceException e) {
+            throw new IOException(
+                    "Cannot fetch the keys of " + issuer.getIssuer() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void validateIdToken(SmartMetadata issuer, String clientId, JWT idToken)
+            throws IOException {
+        Key key = new Key(clientId, idToken.getParsedString());
+        if (isValidated(key)) {
+            return;
+        }
+
+        IDTokenValidator validator =
+                new IDTokenValidator(
+                        new Issuer(issuer.getIssuer()),
+                        new ClientID(clientId),
+                        new JWSVerificationKeySelector<>(
+                                SIGNATURE_ALGORITHMS, jwkSource(issuer.getJwksUrl())),
+                        null);
+        validator.setMaxClockSkew((int) maxClockSkew.toSeconds());
+        try {
+            Date expiration = validator.validate(idToken, null).getExpirationTime();
+            setValidated(key, expiration);
+        } catch (BadJOSEException | JOSEException e) {
+            throw new IOException(
+                    "Invalid ID token from " + issuer.getIssuer() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void validateAccessToken(
+            SmartMetadata issuer, String fhirServerUrl, SignedJWT accessToken) throws IOException {
+        Key key = new Key(fhirServerUrl, accessToken.getParsedString());
+        if (isValidated(key)) {
+            return;
+        }
+
+        DefaultJWTProcessor<SecurityContext> processor = new DefaultJWTProcessor<>();
+        processor.setJWSTypeVerifier(
+                new DefaultJOSEObjectTypeVerifier<>(
+                        JOSEObjectType.JWT, new JOSEObjectType("at+jwt"), null));
+        processor.setJWSKeySelector(
+                new JWSVerificationKeySelector<>(
+                        SIGNATURE_ALGORITHMS, jwkSource(issuer.getJwksUrl())));
+        // null accepts the tokens without audience
+        Set<String> audiences =
+                new HashSet<>(
+                        Arrays.asList(
+                                fhirServerUrl, StringUtils.removeEnd(fhirServerUrl, "/"), null));
+        DefaultJWTClaimsVerifier<SecurityContext> claimsVerifier =
+                new DefaultJWTClaimsVerifier<>(
+                        audiences,
+                        new JWTClaimsSet.Builder().issuer(issuer.getIssuer()).build(),
+                        Set.of("exp", "iss"),
+                        null);
+        claimsVerifier.setMaxClockSkew((int) maxClockSkew.toSeconds());
+        processor.setJWTClaimsSetVerifier(claimsVerifier);
+        try {
+            JWTClaimsSet claims = processor.process(accessToken, null);
+            setValidated(key, claims.getExpirationTime());
+        } catch (BadJOSEException | JOSEException e) {
+            throw new IOException(
+                    "Invalid access token from " + issuer.getIssuer() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the issuer of the FHIR server, from the first of the {@link #ISSUER_SOURCES} that
+     *     publishes an issuer and a JWKS URL, null when none does or none can be discovered
+     */
+    private SmartMetadata issuerMetadata(String fhirServerUrl) {
+        for (DiscoveryMethod method : ISSUER_SOURCES) {
+            try {
+                SmartMetadata metadata = smartDiscovery.discover(fhirServerUrl, method);
+                if (StringUtils.isNoneBlank(metadata.getIssuer(), metadata.getJwksUrl())) {
+                    return metadata;
+                }
+            } catch (IOException | ParseException | RuntimeException e) {
+                log.debug("No issuer from {} of {}: {}", method, fhirServerUrl, e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the signed JWT, or null if the token is opaque or not signed with a public key
+     */
+    private static SignedJWT verifiableJwt(String token) {
+        if (StringUtils.countMatches(token, '.') != 2) {
+            return null;
+        }
+        try {
+            SignedJWT jwt = SignedJWT.parse(token);
+            if (SIGNATURE_ALGORITHMS.contains(jwt.getHeader().getAlgorithm())) {
+                return jwt;
+            }
+            log.debug("Access token signed with {}, not verified", jwt.getHeader().getAlgorithm());
+        } catch (java.text.ParseException e) {
+            log.debug("Opaque access token, not verified");
+        }
+        return null;
+    }
+
+    private JWKSource<SecurityContext> jwkSource(String jwksUrl) throws IOException {
+        URL url = new URL(jwksUrl);
+        return jwkSources.computeIfAbsent(
+                jwksUrl,
+                u ->
+                        JWKSourceBuilder.<SecurityContext>create(url, this::retrieveJwks)
+                                .cache(jwksTtl.toMillis(), jwksRefreshTimeout.toMillis())
+                                .rateLimited(jwksMinRefreshInterval.toMillis())
+                                .retrying(false)
+                                .build());
+    }
+
+    /**
+     * Fetches a JWKS over the {@link HttpTransport}, like the other calls to the EHRs.
+     */
+    private Resource retrieveJwks(URL url) throws IOException {
+        HTTPRequest request = new HTTPRequest(HTTPRequest.Method.GET, url);
+        request.setAccept("application/json");
+        try {
+            return ehrResilience.fetch(
+                    url.toString(),
+                    "jwks",
+                    null,
+                    call -> {
+                        HTTPResponse response = httpTransport.send(request);
+                        response.ensureStatusCode(HTTPResponse.SC_OK);
+                        return call.success(
+                                new Resource(
+                                        response.getContent(),
+                                        response.getHeaderValue("Content-Type")));
+                    });
+        } catch (ParseException e) {
+            throw new IOException("Cannot fetch the JWKS " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    private boolean isValidated(Key key) {
+        synchronized (validated) {
+            Instant expiry = validated.get(key);
+            return expiry != null && expiry.isAfter(Instant.now());
+        }
+    }
+
+    private void setValidated(Key key, Date expiration) {
+        if (expiration == null) {
+            return;
+        }
+        synchronized (validated) {
+            validated.put(key, expiration.toInstant());
+        }
+    }
+}
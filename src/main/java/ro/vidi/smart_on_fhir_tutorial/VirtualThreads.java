@@ -0,0 +1,43 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Executors of the blocking calls to the EHRs, on virtual threads with {@code
+ * spring.threads.virtual.enabled}. The toolchain is Java 17, so the virtual threads are only
+ * available when running on Java 21+.
+ */
+@Slf4j
+public class VirtualThreads {
+
+    /**
+     * @return an executor starting a virtual thread per task, null if the runtime does not
+     *     support virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService)
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn(
+                    "Virtual threads enabled but not supported by Java {}",
+                    Runtime.version().feature());
+            return null;
+        }
+    }
+
+    /**
+     * @param virtualThreads whether to use a virtual thread per task, when supported
+     * @param namePrefix name of the platform threads otherwise, created as needed
+     */
+    public static ExecutorService newCachedExecutor(boolean virtualThreads, String namePrefix) {
+        ExecutorService executor = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        return executor != null
+                ? executor
+                : Executors.newCachedThreadPool(new CustomizableThreadFactory(namePrefix));
+    }
+}
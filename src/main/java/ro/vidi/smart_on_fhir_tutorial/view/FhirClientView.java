@@ -4,8 +4,11 @@
 import com.vaadin.flow.component.Html;
 import com.vaadin.flow.component.Text;
 import com.vaadin.flow.component.button.Button;
+import com.vaadin.flow.component.grid.Grid;
 import com.vaadin.flow.component.html.H1;
+import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.select.Select;
 import com.vaadin.flow.component.textfield.TextArea;
 import com.vaadin.flow.component.textfield.TextField;
 import com.vaadin.flow.router.BeforeEvent;
@@ -15,26 +18,76 @@
 import com.vaadin.flow.router.QueryParameters;
 import com.vaadin.flow.router.Route;
 import java.io.IOException;
+import java.util.List;
+import java.util.stream.Stream;
 import lombok.extern.slf4j.Slf4j;
 import ro.vidi.smart_on_fhir_tutorial.AppState;
 import ro.vidi.smart_on_fhir_tutorial.FhirClient;
+import ro.vidi.smart_on_fhir_tutorial.FhirResourceCache;
+import ro.vidi.smart_on_fhir_tutorial.LaunchTracing;
+import ro.vidi.smart_on_fhir_tutorial.PagedSearch;
+import ro.vidi.smart_on_fhir_tutorial.PatientSummary;
+import ro.vidi.smart_on_fhir_tutorial.Projection;
+import ro.vidi.smart_on_fhir_tutorial.ResourceNode;
+import ro.vidi.smart_on_fhir_tutorial.SessionFootprint;
+import ro.vidi.smart_on_fhir_tutorial.StoredToken;
+import ro.vidi.smart_on_fhir_tutorial.TokenStore;
 
 @Route("smart-fhir-client")
 @Slf4j
 public class FhirClientView extends VerticalLayout implements HasUrlParameter<String> {
 
+    private static final String DROPPED =
+            "Dropped to stay within the memory budget of the session.";
+
     private final FhirClient fhirClient;
 
+    private final TokenStore tokenStore;
+
+    private final FhirResourceCache resourceCache;
+
+    private final LaunchTracing launchTracing;
+
+    private final SessionFootprint sessionFootprint;
+
     private final TextArea accessToken;
     private final TextField patientId;
     private final TextArea encodedState;
-    private final TextArea patientDetails;
+    private final Select<Projection> patientProjection;
+    private final ResourceTree patientDetails;
+    private final PendingCall pendingPatientRead;
+    private final Text patientSummaryInfo;
+    private final Grid<PatientSummary.Section> patientSummary;
+    private final PendingCall pendingPatientSummary;
+    private final Select<String> searchResourceType;
+    private final PendingCall pendingSearch;
+    private final Grid<PagedSearch.Row> searchResults;
+
+    /**
+     * Key of the launch tokens in the {@link TokenStore}, null unless run by this session.
+     */
+    private String launchId;
+
+    private PatientSummary shownSummary;
+
+    private PagedSearch shownSearch;
+
+    private SessionFootprint.Ledger.Retained retainedAccessToken;
 
-    public FhirClientView(FhirClient fhirClient) {
+    private SessionFootprint.Ledger.Retained retainedSummary;
+
+    private SessionFootprint.Ledger.Retained retainedSearch;
+
+    public FhirClientView(
+            FhirClient fhirClient,
+            TokenStore tokenStore,
+            FhirResourceCache resourceCache,
+            LaunchTracing launchTracing,
+            SessionFootprint sessionFootprint) {
         accessToken = new TextArea("Access Token");
         accessToken.setWidth("100%");
         accessToken.setReadOnly(true);
-        accessToken.setPlaceholder("Code received from the oauth flow");
+        accessToken.setPlaceholder("Token stored for the launch, renewed before it expires");
         accessToken.addValueChangeListener(
                 event -> {
                     if (event.getValue() != null) {
@@ -60,16 +113,69 @@ public FhirClientView(FhirClient fhirClient) {
                 new Html(
                         """
                         <p>
-                            Base64 encoded JSON containing the state of the application.
+                            Token standing for the state of the application.
                         </p>
                         """));
 
+        patientProjection = new Select<>();
+        patientProjection.setLabel("Elements");
+        patientProjection.setItems(
+                Projection.FULL,
+                Projection.summary(),
+                Projection.elements("name", "gender", "birthDate"));
+        patientProjection.setValue(Projection.FULL);
+        patientProjection.setHelperText("Elements left out are neither transferred nor parsed");
         Button getPatientDetails = new Button("Get Patient Details");
         getPatientDetails.addClickListener(event -> obtainPatientDetails());
 
-        patientDetails = new TextArea("Patient Details");
-        patientDetails.setWidth("100%");
-        patientDetails.setReadOnly(true);
+        HorizontalLayout patientBar = new HorizontalLayout(patientProjection, getPatientDetails);
+        patientBar.setDefaultVerticalComponentAlignment(Alignment.BASELINE);
+
+        pendingPatientRead = new PendingCall();
+
+        patientDetails = new ResourceTree("Patient Details", sessionFootprint);
+
+        Button getPatientSummary = new Button("Get Patient Summary");
+        getPatientSummary.addClickListener(event -> obtainPatientSummary());
+
+        pendingPatientSummary = new PendingCall();
+
+        patientSummaryInfo = new Text("");
+        patientSummary = new Grid<>();
+        patientSummary.addColumn(PatientSummary.Section::getResourceType).setHeader("Resource");
+        patientSummary
+                .addColumn(section -> section.getResources().size())
+                .setHeader("Resources");
+        patientSummary.addColumn(PatientSummary.Section::getTotal).setHeader("Total");
+        patientSummary
+                .addColumn(PatientSummary.Section::getDurationMillis)
+                .setHeader("Duration (ms)");
+        patientSummary.addColumn(PatientSummary.Section::getError).setHeader("Error");
+        patientSummary.setAllRowsVisible(true);
+
+        searchResourceType = new Select<>();
+        searchResourceType.setLabel("Resource Type");
+        searchResourceType.setItems(
+                List.of(
+                        "Observation",
+                        "Condition",
+                        "MedicationRequest",
+                        "Encounter",
+                        "AllergyIntolerance"));
+        searchResourceType.setValue("Observation");
+        Button search = new Button("Search");
+        search.addClickListener(event -> searchResources());
+
+        pendingSearch = new PendingCall();
+
+        searchResults = new Grid<>();
+        searchResults.addColumn(PagedSearch.Row::id).setHeader("ID");
+        searchResults.addColumn(PagedSearch.Row::lastUpdated).setHeader("Last Updated");
+        searchResults.addColumn(PagedSearch.Row::description).setHeader("Description");
+        searchResults.setEmptyStateText("No results");
+
+        HorizontalLayout searchBar = new HorizontalLayout(searchResourceType, search);
+        searchBar.setDefaultVerticalComponentAlignment(Alignment.BASELINE);
 
         Button restartFlowButton = new Button("Restart");
         restartFlowButton.addClickListener(event -> getUI().ifPresent(ui -> ui.navigate("")));
@@ -81,25 +187,281 @@ public FhirClientView(FhirClient fhirClient) {
                                 + " server."),
                 accessToken,
                 patientId,
-                getPatientDetails,
+                patientBar,
+                pendingPatientRead,
                 patientDetails,
+                getPatientSummary,
+                pendingPatientSummary,
+                patientSummaryInfo,
+                patientSummary,
+                searchBar,
+                pendingSearch,
+                searchResults,
                 restartFlowButton);
         this.fhirClient = fhirClient;
+        this.tokenStore = tokenStore;
+        this.resourceCache = resourceCache;
+        this.launchTracing = launchTracing;
+        this.sessionFootprint = sessionFootprint;
+
+        addDetachListener(event -> releaseAll());
     }
 
     private void obtainPatientDetails() {
 
+        AppState appState;
         try {
-            AppState appState = fhirClient.decodeState(encodedState.getValue());
-            patientDetails.setValue(
-                    fhirClient.convertResourceToString(
-                            fhirClient.getPatient(
-                                    appState.getFhirServerUrl(),
-                                    accessToken.getValue(),
-                                    patientId.getValue())));
+            appState = fhirClient.decodeState(encodedState.getValue());
         } catch (IOException e) {
             log.error(e.getMessage(), e);
             ViewUtils.showNotificationError("Cannot obtain patient details. Check the logs.");
+            return;
+        }
+
+        pendingPatientRead.track(
+                "Reading the patient",
+                launchTracing.traceAsync(
+                        "smart.launch.patient-read",
+                        appState,
+                        () ->
+                                fhirClient.getPatientAsync(
+                                        appState.getFhirServerUrl(),
+                                        launchId,
+                                        patientId.getValue(),
+                                        patientProjection.getValue())),
+                (patient, error) -> {
+                    if (error != null) {
+                        log.error(error.getMessage(), error);
+                        ViewUtils.showNotificationError(
+                                "Cannot obtain patient details. Check the logs.");
+                        return;
+                    }
+                    patientDetails.setContent(
+                            ResourceNode.of(patient),
+                            "Patient-" + patient.getIdElement().getIdPart() + ".json",
+                            () -> fhirClient.convertResourceToString(patient),
+                            SessionFootprint.sizeOfParsed(
+                                    FhirResourceCache.getResponseSize(patient)),
+                            this::obtainPatientDetails);
+                    FhirResourceCache.Stats stats = resourceCache.getStats();
+                    patientDetails.setHelperText(
+                            "Resource cache: %d hits, %d misses, %d KB saved"
+                                    .formatted(
+                                            stats.hits(),
+                                            stats.misses(),
+                                            stats.bytesSaved() / 1024));
+                });
+    }
+
+    private void obtainPatientSummary() {
+
+        AppState appState;
+        try {
+            appState = fhirClient.decodeState(encodedState.getValue());
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            ViewUtils.showNotificationError("Cannot obtain patient summary. Check the logs.");
+            return;
+        }
+
+        pendingPatientSummary.track(
+                "Reading the patient summary",
+                launchTracing.traceAsync(
+                        "smart.launch.patient-summary",
+                        appState,
+                        () ->
+                                fhirClient.getPatientSummaryAsync(
+                                        appState.getFhirServerUrl(),
+                                        launchId,
+                                        patientId.getValue())),
+                (summary, error) -> {
+                    if (error != null) {
+                        log.error(error.getMessage(), error);
+                        ViewUtils.showNotificationError(
+                                "Cannot obtain patient summary. Check the logs.");
+                        return;
+                    }
+                    showPatientSummary(summary);
+                });
+    }
+
+    /**
+     * Shows the summary until the session goes over its memory budget, sized by the responses its
+     * resources were parsed from.
+     */
+    private void showPatientSummary(PatientSummary summary) {
+        release(retainedSummary);
+        shownSummary = summary;
+        patientSummaryInfo.setText(
+                "Loaded with %s requests in %d ms"
+                        .formatted(summary.getFetchMode(), summary.getDurationMillis()));
+        patientSummary.setItems(summary.getSections());
+        retainedSummary =
+                ViewUtils.retain(
+                        sessionFootprint,
+                        "Patient summary",
+                        SessionFootprint.sizeOfParsed(summary.getResponseBytes()),
+                        () -> {
+                            if (shownSummary != summary) {
+                                return;
+                            }
+                            retainedSummary = null;
+                            shownSummary = null;
+                            patientSummary.setItems(List.of());
+                            patientSummaryInfo.setText(DROPPED);
+                        });
+    }
+
+    /**
+     * Shows the search results lazily, the Grid asks for the rows as they are scrolled into view
+     * and only their pages are requested from the server.
+     *
+     * <p>The Grid reads its rows under the session lock, so the pages are loaded ahead in the
+     * background: the first one before the results are shown, and the next one after each read.
+     * Only jumping further than the next page loads pages under the lock, each read bounded by
+     * the adaptive timeout of {@link ro.vidi.smart_on_fhir_tutorial.EhrResilience}.
+     */
+    private void searchResources() {
+
+        AppState appState;
+        try {
+            appState = fhirClient.decodeState(encodedState.getValue());
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            ViewUtils.showNotificationError("Cannot search resources. Check the logs.");
+            return;
+        }
+
+        PagedSearch pagedSearch =
+                fhirClient.searchPaged(
+                        appState.getFhirServerUrl(),
+                        launchId,
+                        searchResourceType.getValue(),
+                        patientId.getValue());
+        pendingSearch.track(
+                "Searching the resources",
+                launchTracing.traceAsync(
+                        "smart.launch.search",
+                        appState,
+                        () -> fhirClient.prefetchAsync(pagedSearch, 0)),
+                (ignored, error) -> {
+                    if (error != null) {
+                        log.error(error.getMessage(), error);
+                        ViewUtils.showNotificationError(
+                                "Cannot search resources. Check the logs.");
+                        return;
+                    }
+                    showSearchResults(appState, pagedSearch);
+                });
+    }
+
+    private void showSearchResults(AppState appState, PagedSearch pagedSearch) {
+        release(retainedSearch);
+        retainedSearch = null;
+        shownSearch = pagedSearch;
+        searchResults.setEmptyStateText("No results");
+        searchResults.setItems(
+                query -> {
+                    try {
+                        List<PagedSearch.Row> rows =
+                                launchTracing.trace(
+                                        "smart.launch.search",
+                                        appState,
+                                        () ->
+                                                pagedSearch.fetch(
+                                                        query.getOffset(), query.getLimit()));
+                        retainSearchResults(pagedSearch);
+                        if (rows.size() == query.getLimit()) {
+                            prefetchSearchResults(
+                                    appState, pagedSearch, query.getOffset() + rows.size());
+                        }
+                        return rows.stream();
+                    } catch (RuntimeException e) {
+                        log.error(e.getMessage(), e);
+                        ViewUtils.showNotificationError(
+                                "Cannot search resources. Check the logs.");
+                        return Stream.empty();
+                    }
+                });
+    }
+
+    /**
+     * Loads the rows following the ones shown in the background, a failure being reported by the
+     * read asking for them.
+     */
+    private void prefetchSearchResults(AppState appState, PagedSearch pagedSearch, int offset) {
+        launchTracing
+                .traceAsync(
+                        "smart.launch.search-prefetch",
+                        appState,
+                        () -> fhirClient.prefetchAsync(pagedSearch, offset))
+                .whenComplete(
+                        (ignored, error) -> {
+                            if (error != null) {
+                                log.debug("Cannot prefetch search results: {}", error.toString());
+                            }
+                        });
+    }
+
+    /**
+     * Registers the pages kept by the search, again after each fetch as they change, until the
+     * session goes over its memory budget.
+     */
+    private void retainSearchResults(PagedSearch pagedSearch) {
+        if (shownSearch != pagedSearch) {
+            return;
+        }
+        release(retainedSearch);
+        retainedSearch =
+                ViewUtils.retain(
+                        sessionFootprint,
+                        "Search results",
+                        pagedSearch.getRetainedBytes(),
+                        () -> {
+                            if (shownSearch != pagedSearch) {
+                                return;
+                            }
+                            retainedSearch = null;
+                            shownSearch = null;
+                            searchResults.setItems(List.of());
+                            searchResults.setEmptyStateText(DROPPED);
+                        });
+    }
+
+    /**
+     * Shows the access token until the session goes over its memory budget, the calls using the
+     * token kept by the {@link TokenStore}.
+     */
+    private void showAccessToken(String token) {
+        release(retainedAccessToken);
+        accessToken.setValue(token);
+        retainedAccessToken =
+                ViewUtils.retain(
+                        sessionFootprint,
+                        "Access token",
+                        SessionFootprint.sizeOf(token),
+                        () -> {
+                            if (!token.equals(accessToken.getValue())) {
+                                return;
+                            }
+                            retainedAccessToken = null;
+                            accessToken.clear();
+                            accessToken.setPlaceholder(DROPPED);
+                        });
+    }
+
+    private void releaseAll() {
+        release(retainedAccessToken);
+        release(retainedSummary);
+        release(retainedSearch);
+        retainedAccessToken = null;
+        retainedSummary = null;
+        retainedSearch = null;
+    }
+
+    private static void release(SessionFootprint.Ledger.Retained retained) {
+        if (retained != null) {
+            retained.release();
         }
     }
 
@@ -108,8 +470,21 @@ public void setParameter(BeforeEvent beforeEvent, @OptionalParameter String para
         Location location = beforeEvent.getLocation();
         QueryParameters queryParameters = location.getQueryParameters();
 
-        queryParameters.getSingleParameter("token").ifPresent(accessToken::setValue);
         queryParameters.getSingleParameter("patientId").ifPresent(patientId::setValue);
         queryParameters.getSingleParameter("state").ifPresent(encodedState::setValue);
+        launchId =
+                queryParameters
+                        .getSingleParameter("launch")
+                        .filter(ViewUtils::isSessionLaunch)
+                        .orElse(null);
+        if (launchId == null) {
+            ViewUtils.showNotificationError("No launch of this session, restart the flow.");
+            return;
+        }
+
+        StoredToken storedToken = tokenStore.get(launchId);
+        if (storedToken != null) {
+            showAccessToken(storedToken.getAccessToken());
+        }
     }
 }
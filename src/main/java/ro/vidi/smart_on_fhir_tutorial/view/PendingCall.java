@@ -0,0 +1,81 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial.view;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.component.button.Button;
+import com.vaadin.flow.component.button.ButtonVariant;
+import com.vaadin.flow.component.html.Span;
+import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
+import com.vaadin.flow.component.progressbar.ProgressBar;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import ro.vidi.smart_on_fhir_tutorial.Futures;
+
+/**
+ * Progress indicator for a call running in the background. The result is handed back to the view
+ * through {@link UI#access} and pushed to the browser; cancelling, starting another call or
+ * leaving the view discards the result of the running call.
+ */
+public class PendingCall extends HorizontalLayout {
+
+    private final Span description = new Span();
+
+    private CompletableFuture<?> running;
+
+    public PendingCall() {
+        ProgressBar progressBar = new ProgressBar();
+        progressBar.setIndeterminate(true);
+        progressBar.setWidth("200px");
+
+        Button cancelButton = new Button("Cancel");
+        cancelButton.addThemeVariants(ButtonVariant.LUMO_TERTIARY);
+        cancelButton.addClickListener(event -> cancel());
+
+        setAlignItems(Alignment.CENTER);
+        add(description, progressBar, cancelButton);
+        setVisible(false);
+
+        addDetachListener(event -> cancel());
+    }
+
+    /**
+     * Shows the progress until the future completes, then runs the callback in the UI with either
+     * the result or the unwrapped exception.
+     */
+    public <T> void track(
+            String text, CompletableFuture<T> future, BiConsumer<T, Throwable> callback) {
+        cancel();
+
+        UI ui = UI.getCurrent();
+        running = future;
+        description.setText(text);
+        setVisible(true);
+
+        future.whenComplete(
+                (result, error) -> {
+                    try {
+                        ui.access(
+                                () -> {
+                                    if (running != future) {
+                                        return;
+                                    }
+                                    running = null;
+                                    setVisible(false);
+                                    callback.accept(
+                                            result, error == null ? null : Futures.unwrap(error));
+                                });
+                    } catch (UIDetachedException e) {
+                        // the user left, nobody to show the result to
+                    }
+                });
+    }
+
+    public void cancel() {
+        if (running != null) {
+            running.cancel(true);
+            running = null;
+        }
+        setVisible(false);
+    }
+}
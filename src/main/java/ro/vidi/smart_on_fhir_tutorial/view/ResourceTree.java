@@ -0,0 +1,198 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial.view;
+
+import com.vaadin.flow.component.button.Button;
+import com.vaadin.flow.component.button.ButtonVariant;
+import com.vaadin.flow.component.html.Anchor;
+import com.vaadin.flow.component.html.Span;
+import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
+import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.treegrid.TreeGrid;
+import com.vaadin.flow.data.provider.hierarchy.AbstractBackEndHierarchicalDataProvider;
+import com.vaadin.flow.data.provider.hierarchy.HierarchicalQuery;
+import com.vaadin.flow.function.SerializableRunnable;
+import com.vaadin.flow.function.SerializableSupplier;
+import com.vaadin.flow.server.StreamResource;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Stream;
+import ro.vidi.smart_on_fhir_tutorial.ResourceNode;
+import ro.vidi.smart_on_fhir_tutorial.SessionFootprint;
+
+/**
+ * Shows a resource as a tree rather than as a JSON string in a TextArea. The nodes are fetched
+ * lazily by the TreeGrid, so only the rows of the expanded elements are built and sent to the
+ * browser. The raw JSON is not kept in the component, it is only produced when downloaded.
+ *
+ * <p>The document is registered in the {@link SessionFootprint} of the session, and dropped when
+ * the session goes over its budget, leaving a button to load it again.
+ */
+public class ResourceTree extends VerticalLayout {
+
+    private final String label;
+
+    private final SessionFootprint sessionFootprint;
+
+    private final Span helperText;
+
+    private final TreeGrid<ResourceNode> treeGrid;
+
+    private final Anchor download;
+
+    private final Button reloadButton;
+
+    private ResourceNode root;
+
+    private SessionFootprint.Ledger.Retained retained;
+
+    private SerializableRunnable reload;
+
+    public ResourceTree(String label, SessionFootprint sessionFootprint) {
+        this.label = label;
+        this.sessionFootprint = sessionFootprint;
+
+        treeGrid = new TreeGrid<>();
+        treeGrid.addHierarchyColumn(ResourceNode::name)
+                .setHeader("Element")
+                .setTooltipGenerator(ResourceNode::path);
+        treeGrid.addColumn(ResourceNode::value).setHeader("Value");
+        treeGrid.setHeight("300px");
+        treeGrid.setDataProvider(new NodeDataProvider());
+
+        download = new Anchor();
+        download.setText("Download JSON");
+        download.getElement().setAttribute("download", true);
+        download.setVisible(false);
+
+        reloadButton = new Button("Load again");
+        reloadButton.addThemeVariants(ButtonVariant.LUMO_TERTIARY_INLINE);
+        reloadButton.addClickListener(event -> reload.run());
+        reloadButton.setVisible(false);
+
+        helperText = new Span();
+
+        HorizontalLayout header = new HorizontalLayout(new Span(label), download, reloadButton);
+        header.setDefaultVerticalComponentAlignment(Alignment.BASELINE);
+
+        setPadding(false);
+        setWidth("100%");
+        add(header, treeGrid, helperText);
+
+        addDetachListener(event -> release());
+    }
+
+    /**
+     * @param root the document, its direct children being the first level of the tree
+     * @param fileName name of the downloaded file
+     * @param json produces the raw JSON of the document, when it is downloaded
+     * @param size estimated heap retained by the document, see {@link SessionFootprint}
+     * @param reload fetches the document again, once dropped to stay within the session budget
+     */
+    public void setContent(
+            ResourceNode root,
+            String fileName,
+            SerializableSupplier<String> json,
+            long size,
+            SerializableRunnable reload) {
+        release();
+        this.root = root;
+        this.reload = reload;
+        treeGrid.getDataProvider().refreshAll();
+        reloadButton.setVisible(false);
+
+        StreamResource resource =
+                new StreamResource(
+                        fileName,
+                        () ->
+                                new ByteArrayInputStream(
+                                        json.get().getBytes(StandardCharsets.UTF_8)));
+        resource.setContentType("application/json");
+        download.setHref(resource);
+        download.setVisible(true);
+
+        retained =
+                ViewUtils.retain(
+                        sessionFootprint,
+                        label,
+                        size,
+                        () -> {
+                            // unless replaced since it was dropped
+                            if (this.root == root) {
+                                drop();
+                            }
+                        });
+    }
+
+    /**
+     * Removes the document, releasing it from the {@link SessionFootprint}.
+     */
+    public void clear() {
+        release();
+        removeContent();
+        reloadButton.setVisible(false);
+    }
+
+    private void drop() {
+        retained = null;
+        removeContent();
+        reloadButton.setVisible(true);
+        helperText.setText("Dropped to stay within the memory budget of the session.");
+    }
+
+    private void removeContent() {
+        root = null;
+        treeGrid.getDataProvider().refreshAll();
+        download.removeHref();
+        download.setVisible(false);
+    }
+
+    private void release() {
+        if (retained != null) {
+            retained.release();
+            retained = null;
+        }
+    }
+
+    public void setHelperText(String text) {
+        helperText.setText(text);
+    }
+
+    private class NodeDataProvider
+            extends AbstractBackEndHierarchicalDataProvider<ResourceNode, Void> {
+
+        @Override
+        protected Stream<ResourceNode> fetchChildrenFromBackEnd(
+                HierarchicalQuery<ResourceNode, Void> query) {
+            return children(query.getParent()).stream()
+                    .skip(query.getOffset())
+                    .limit(query.getLimit());
+        }
+
+        @Override
+        public int getChildCount(HierarchicalQuery<ResourceNode, Void> query) {
+            ResourceNode parent = query.getParent() != null ? query.getParent() : root;
+            return parent == null ? 0 : parent.childCount();
+        }
+
+        @Override
+        public boolean hasChildren(ResourceNode item) {
+            return item.hasChildren();
+        }
+
+        /**
+         * The path, as the nodes are built again on each fetch.
+         */
+        @Override
+        public Object getId(ResourceNode item) {
+            return item.path();
+        }
+
+        private List<ResourceNode> children(ResourceNode parent) {
+            if (parent == null) {
+                return root == null ? List.of() : root.children();
+            }
+            return parent.children();
+        }
+    }
+}
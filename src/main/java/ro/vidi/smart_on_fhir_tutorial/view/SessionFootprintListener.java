@@ -0,0 +1,29 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial.view;
+
+import com.vaadin.flow.server.ServiceInitEvent;
+import com.vaadin.flow.server.VaadinServiceInitListener;
+import org.springframework.stereotype.Component;
+import ro.vidi.smart_on_fhir_tutorial.SessionFootprint;
+
+/**
+ * Closes the {@link SessionFootprint.Ledger} of each session when it ends, recording its footprint.
+ */
+@Component
+public class SessionFootprintListener implements VaadinServiceInitListener {
+
+    @Override
+    public void serviceInit(ServiceInitEvent event) {
+        event.getSource()
+                .addSessionDestroyListener(
+                        destroyEvent -> {
+                            SessionFootprint.Ledger ledger =
+                                    destroyEvent
+                                            .getSession()
+                                            .getAttribute(SessionFootprint.Ledger.class);
+                            if (ledger != null) {
+                                ledger.close();
+                            }
+                        });
+    }
+}
@@ -1,11 +1,10 @@
 /* (C)2024 */
 package ro.vidi.smart_on_fhir_tutorial.view;
 
-import com.nimbusds.oauth2.sdk.ParseException;
-import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
 import com.vaadin.flow.component.Html;
 import com.vaadin.flow.component.Text;
 import com.vaadin.flow.component.button.Button;
+import com.vaadin.flow.component.button.ButtonVariant;
 import com.vaadin.flow.component.html.H1;
 import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
@@ -17,16 +16,20 @@
 import com.vaadin.flow.router.QueryParameters;
 import com.vaadin.flow.router.Route;
 import java.io.IOException;
-import java.net.URISyntaxException;
+import java.time.Instant;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.web.client.RestClientResponseException;
 import ro.vidi.smart_on_fhir_tutorial.AppState;
 import ro.vidi.smart_on_fhir_tutorial.FhirClient;
+import ro.vidi.smart_on_fhir_tutorial.LaunchTracing;
 import ro.vidi.smart_on_fhir_tutorial.OidcClient;
+import ro.vidi.smart_on_fhir_tutorial.SessionFootprint;
+import ro.vidi.smart_on_fhir_tutorial.StoredToken;
+import ro.vidi.smart_on_fhir_tutorial.TokenStore;
+import ro.vidi.smart_on_fhir_tutorial.TokenValidator;
 
 @Route("smart-callback")
 @Slf4j
@@ -36,17 +39,47 @@ public class SmartCallbackView extends VerticalLayout implements HasUrlParameter
 
     private final OidcClient oidcClient;
 
+    private final TokenStore tokenStore;
+
+    private final TokenValidator tokenValidator;
+
+    private final LaunchTracing launchTracing;
+
+    private final SessionFootprint sessionFootprint;
+
     private final TextArea authorizationCode;
     private final TextArea encodedState;
     private final TextArea accessToken;
+    private final Button showTokenResponseAgain;
     private final Button accessFhirInfo;
+    private final PendingCall pendingTokenExchange;
+
+    /**
+     * Patient of the launch context, rather than the whole token response.
+     */
+    private String launchPatientId;
+
+    /**
+     * Key of the launch tokens in the {@link TokenStore}.
+     */
+    private String launchId;
 
-    private OIDCTokenResponse accessTokenResponse = null;
+    private SessionFootprint.Ledger.Retained retainedTokenResponse;
 
-    public SmartCallbackView(FhirClient fhirClient, OidcClient oidcClient) {
+    public SmartCallbackView(
+            FhirClient fhirClient,
+            OidcClient oidcClient,
+            TokenStore tokenStore,
+            TokenValidator tokenValidator,
+            LaunchTracing launchTracing,
+            SessionFootprint sessionFootprint) {
 
         this.fhirClient = fhirClient;
         this.oidcClient = oidcClient;
+        this.tokenStore = tokenStore;
+        this.tokenValidator = tokenValidator;
+        this.launchTracing = launchTracing;
+        this.sessionFootprint = sessionFootprint;
 
         authorizationCode = new TextArea("Code");
         authorizationCode.setWidth("100%");
@@ -74,13 +107,15 @@ public SmartCallbackView(FhirClient fhirClient, OidcClient oidcClient) {
                 new Html(
                         """
 <p>
-    Base64 encoded JSON containing the details passed when starting the flow.
+    Token standing for the details passed when starting the flow.
 </p>
 """));
 
         Button getAccessTokenButton = new Button("Get access token");
         getAccessTokenButton.addClickListener(event -> obtainAccessToken());
 
+        pendingTokenExchange = new PendingCall();
+
         accessToken = new TextArea("Access Token");
         accessToken.setWidth("100%");
         accessToken.setReadOnly(true);
@@ -92,6 +127,11 @@ public SmartCallbackView(FhirClient fhirClient, OidcClient oidcClient) {
 </p>
 """));
 
+        showTokenResponseAgain = new Button("Show again");
+        showTokenResponseAgain.addThemeVariants(ButtonVariant.LUMO_TERTIARY_INLINE);
+        showTokenResponseAgain.addClickListener(event -> showStoredTokenResponse());
+        showTokenResponseAgain.setVisible(false);
+
         Button restartFlowButton = new Button("Restart");
         restartFlowButton.addClickListener(event -> getUI().ifPresent(ui -> ui.navigate("")));
 
@@ -100,22 +140,12 @@ public SmartCallbackView(FhirClient fhirClient, OidcClient oidcClient) {
         accessFhirInfo.addClickListener(
                 event -> {
                     Map<String, List<String>> queryParameters = new HashMap<>();
-                    queryParameters.put(
-                            "token",
-                            Collections.singletonList(
-                                    accessTokenResponse
-                                            .getOIDCTokens()
-                                            .getAccessToken()
-                                            .getValue()));
                     queryParameters.put(
                             "patientId",
-                            Collections.singletonList(
-                                    String.valueOf(
-                                            accessTokenResponse
-                                                    .getCustomParameters()
-                                                    .get("patient"))));
+                            Collections.singletonList(launchPatientId));
                     queryParameters.put(
                             "state", Collections.singletonList(encodedState.getValue()));
+                    queryParameters.put("launch", Collections.singletonList(launchId));
                     getUI().ifPresent(
                                     ui ->
                                             ui.navigate(
@@ -134,26 +164,106 @@ public SmartCallbackView(FhirClient fhirClient, OidcClient oidcClient) {
                 authorizationCode,
                 encodedState,
                 getAccessTokenButton,
+                pendingTokenExchange,
                 accessToken,
+                showTokenResponseAgain,
                 buttonLayout);
+
+        addDetachListener(event -> releaseTokenResponse());
     }
 
     private void obtainAccessToken() {
 
+        AppState state;
         try {
-            AppState state = fhirClient.decodeState(encodedState.getValue());
-            accessTokenResponse =
-                    oidcClient.getAccessToken(
-                            state.getTokenUrl(), authorizationCode.getValue(), state.getClientId());
-            this.accessToken.setValue(accessTokenResponse.toJSONObject().toJSONString());
-            this.accessFhirInfo.setEnabled(true);
-        } catch (IOException
-                | RestClientResponseException
-                | URISyntaxException
-                | ParseException e) {
+            state = fhirClient.decodeState(encodedState.getValue());
+        } catch (IOException e) {
             log.error(e.getMessage(), e);
             ViewUtils.showNotificationError("Cannot obtain access token. Check the logs.");
             this.accessFhirInfo.setEnabled(false);
+            return;
+        }
+
+        pendingTokenExchange.track(
+                "Exchanging the code for an access token",
+                launchTracing.traceAsync(
+                        "smart.launch.callback",
+                        state,
+                        () ->
+                                oidcClient
+                                        .getAccessTokenAsync(
+                                                state.getTokenUrl(),
+                                                authorizationCode.getValue(),
+                                                state.getClientId())
+                                        .thenCompose(
+                                                tokenResponse ->
+                                                        tokenValidator.validateAsync(
+                                                                state.getFhirServerUrl(),
+                                                                state.getClientId(),
+                                                                tokenResponse))),
+                (tokenResponse, error) -> {
+                    if (error != null) {
+                        log.error(error.getMessage(), error);
+                        ViewUtils.showNotificationError(
+                                "Cannot obtain access token. Check the logs.");
+                        this.accessFhirInfo.setEnabled(false);
+                        return;
+                    }
+                    launchPatientId =
+                            String.valueOf(tokenResponse.getCustomParameters().get("patient"));
+                    launchId =
+                            tokenStore.put(
+                                    tokenResponse, state.getTokenUrl(), state.getClientId());
+                    ViewUtils.addSessionLaunch(launchId);
+                    showTokenResponse(tokenResponse.toJSONObject().toJSONString());
+                    this.accessFhirInfo.setEnabled(true);
+                });
+    }
+
+    /**
+     * Shows the token response until the session goes over its memory budget, the tokens
+     * themselves being kept by the {@link TokenStore}.
+     */
+    private void showTokenResponse(String json) {
+        releaseTokenResponse();
+        accessToken.setValue(json);
+        showTokenResponseAgain.setVisible(false);
+        retainedTokenResponse =
+                ViewUtils.retain(
+                        sessionFootprint,
+                        "Token response",
+                        SessionFootprint.sizeOf(json),
+                        () -> {
+                            if (!json.equals(accessToken.getValue())) {
+                                return;
+                            }
+                            retainedTokenResponse = null;
+                            accessToken.clear();
+                            accessToken.setPlaceholder(
+                                    "Dropped to stay within the memory budget of the session.");
+                            showTokenResponseAgain.setVisible(true);
+                        });
+    }
+
+    /**
+     * Shows the dropped token response again, as stored now by the {@link TokenStore}: renewed
+     * tokens included, and {@code expires_in} counting from now.
+     */
+    private void showStoredTokenResponse() {
+        StoredToken token = launchId != null ? tokenStore.get(launchId) : null;
+        if (token == null) {
+            ViewUtils.showNotificationError("The launch expired. Restart the flow.");
+            showTokenResponseAgain.setVisible(false);
+            this.accessFhirInfo.setEnabled(false);
+            return;
+        }
+        showTokenResponse(token.toTokenResponse(Instant.now()).toJSONObject().toJSONString());
+    }
+
+    private void releaseTokenResponse() {
+        if (retainedTokenResponse != null) {
+            retainedTokenResponse.release();
+            retainedTokenResponse = null;
         }
     }
 
@@ -2,33 +2,43 @@
 package ro.vidi.smart_on_fhir_tutorial.view;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.nimbusds.oauth2.sdk.ParseException;
 import com.vaadin.flow.component.Html;
 import com.vaadin.flow.component.Key;
 import com.vaadin.flow.component.Text;
 import com.vaadin.flow.component.accordion.Accordion;
+import com.vaadin.flow.component.accordion.AccordionPanel;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.combobox.MultiSelectComboBox;
 import com.vaadin.flow.component.html.H1;
 import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.component.select.Select;
 import com.vaadin.flow.component.textfield.TextArea;
 import com.vaadin.flow.component.textfield.TextField;
 import com.vaadin.flow.router.Route;
-import java.io.IOException;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.util.CollectionUtils;
 import ro.vidi.smart_on_fhir_tutorial.AppState;
+import ro.vidi.smart_on_fhir_tutorial.DiscoveryMethod;
 import ro.vidi.smart_on_fhir_tutorial.FhirClient;
+import ro.vidi.smart_on_fhir_tutorial.LaunchTracing;
 import ro.vidi.smart_on_fhir_tutorial.OidcClient;
+import ro.vidi.smart_on_fhir_tutorial.ResourceNode;
+import ro.vidi.smart_on_fhir_tutorial.SessionFootprint;
+import ro.vidi.smart_on_fhir_tutorial.SmartDiscovery;
 import ro.vidi.smart_on_fhir_tutorial.SmartMetadata;
+import ro.vidi.smart_on_fhir_tutorial.Tenant;
+import ro.vidi.smart_on_fhir_tutorial.TenantRegistry;
 
 @Route("smart-start")
 @Slf4j
@@ -36,21 +46,60 @@ public class SmartStartView extends VerticalLayout {
 
     private final FhirClient fhirClient;
     private final OidcClient oidcClient;
+    private final SmartDiscovery smartDiscovery;
+    private final LaunchTracing launchTracing;
 
+    private final Select<Tenant> tenantSelect;
     private final TextArea fhirServerUrlTextArea;
     private final Button discoverUsingFhirMetadata;
     private final Button discoverUsingOidcConfig;
+    private final Button discoverUsingSmartConfig;
+    private final Button discoverAuto;
     private final TextArea metadataAuthorizeUrl;
     private final TextArea metadataTokenUrl;
     private final TextField clientIdTextField;
     private final MultiSelectComboBox<String> scopesMultiSelectComboBox;
     private final TextArea authorizationUrlTextArea;
-    private final TextArea metadataFullContent;
-
-    public SmartStartView(FhirClient fhirClient, OidcClient oidcClient) {
+    private final ResourceTree metadataFullContent;
+    private final AccordionPanel metadataFullPanel;
+    private final PendingCall pendingDiscovery;
+
+    /**
+     * Last discovered metadata, its JSON only parsed while the full metadata is shown.
+     */
+    private SmartMetadata smartMetadata;
+
+    /**
+     * Root span of the launch, ended when the user leaves for the authorization server.
+     */
+    private final Span launchSpan;
+
+    /**
+     * Whether {@link #launchSpan} was ended, by the authorization or by leaving the view.
+     */
+    private boolean launchEnded;
+
+    public SmartStartView(
+            FhirClient fhirClient,
+            OidcClient oidcClient,
+            SmartDiscovery smartDiscovery,
+            LaunchTracing launchTracing,
+            SessionFootprint sessionFootprint,
+            TenantRegistry tenantRegistry) {
 
         this.fhirClient = fhirClient;
         this.oidcClient = oidcClient;
+        this.smartDiscovery = smartDiscovery;
+        this.launchTracing = launchTracing;
+        this.launchSpan = launchTracing.startLaunch();
+        addDetachListener(event -> endLaunch());
+
+        tenantSelect = new Select<>();
+        tenantSelect.setLabel("EHR");
+        tenantSelect.setItems(tenantRegistry.getTenants());
+        tenantSelect.setItemLabelGenerator(Tenant::name);
+        tenantSelect.setPlaceholder("Registered EHR, or type a FHIR Server URL below");
+        tenantSelect.setWidth("100%");
 
         fhirServerUrlTextArea = new TextArea("FHIR Server URL");
         fhirServerUrlTextArea.setWidth("100%");
@@ -74,14 +123,27 @@ public SmartStartView(FhirClient fhirClient, OidcClient oidcClient) {
                 Alignment.CENTER, defaultFhirServerUrlButton);
 
         discoverUsingFhirMetadata = new Button("Discover URLs using FHIR Metadata");
-        discoverUsingFhirMetadata.addClickListener(event -> setSmartMetadata(true));
+        discoverUsingFhirMetadata.addClickListener(
+                event -> setSmartMetadata(DiscoveryMethod.FHIR_METADATA));
         discoverUsingOidcConfig = new Button("Discover URLs using OIDC Configuration");
-        discoverUsingOidcConfig.addClickListener(event -> setSmartMetadata(false));
+        discoverUsingOidcConfig.addClickListener(
+                event -> setSmartMetadata(DiscoveryMethod.OIDC_CONFIGURATION));
+        discoverUsingSmartConfig = new Button("Discover URLs using SMART Configuration");
+        discoverUsingSmartConfig.addClickListener(
+                event -> setSmartMetadata(DiscoveryMethod.SMART_CONFIGURATION));
+        discoverAuto = new Button("Discover URLs automatically");
+        discoverAuto.addClickListener(event -> setSmartMetadata(DiscoveryMethod.AUTO));
 
         HorizontalLayout discoverMetadataLayout =
-                new HorizontalLayout(discoverUsingFhirMetadata, discoverUsingOidcConfig);
+                new HorizontalLayout(
+                        discoverUsingFhirMetadata,
+                        discoverUsingOidcConfig,
+                        discoverUsingSmartConfig,
+                        discoverAuto);
         discoverMetadataLayout.setWidth("100%");
 
+        pendingDiscovery = new PendingCall();
+
         metadataAuthorizeUrl = new TextArea("Authorize URL");
         metadataAuthorizeUrl.setReadOnly(true);
         metadataAuthorizeUrl.setWidth("100%");
@@ -90,10 +152,7 @@ public SmartStartView(FhirClient fhirClient, OidcClient oidcClient) {
         metadataTokenUrl.setReadOnly(true);
         metadataTokenUrl.setWidth("100%");
 
-        metadataFullContent = new TextArea("Metadata content");
-        metadataFullContent.setReadOnly(true);
-        metadataFullContent.setWidth("100%");
-        metadataFullContent.setMaxHeight("200px");
+        metadataFullContent = new ResourceTree("Metadata content", sessionFootprint);
 
         VerticalLayout urlsLayout = new VerticalLayout(metadataAuthorizeUrl, metadataTokenUrl);
         urlsLayout.setWidth("100%");
@@ -103,7 +162,8 @@ public SmartStartView(FhirClient fhirClient, OidcClient oidcClient) {
         Accordion metadataAccordion = new Accordion();
         metadataAccordion.setWidth("100%");
         metadataAccordion.add("Auth Flow URLs", urlsLayout);
-        metadataAccordion.add("Full metadata", fullLayout);
+        metadataFullPanel = metadataAccordion.add("Full metadata", fullLayout);
+        metadataFullPanel.addOpenedChangeListener(event -> showFullMetadata());
 
         clientIdTextField = new TextField("Client ID");
         clientIdTextField.setWidth("100%");
@@ -140,6 +200,23 @@ public SmartStartView(FhirClient fhirClient, OidcClient oidcClient) {
 """));
         scopesMultiSelectComboBox.addValueChangeListener(event -> changeAuthorizationUrl());
 
+        // the discovery of a registered EHR was warmed up, it is served from the cache
+        tenantSelect.addValueChangeListener(
+                event -> {
+                    Tenant tenant = event.getValue();
+                    if (tenant == null) {
+                        return;
+                    }
+                    fhirServerUrlTextArea.setValue(tenant.fhirServerUrl());
+                    clientIdTextField.setValue(tenant.clientId());
+                    if (!tenant.scopes().isEmpty()) {
+                        defaultScopes.addAll(tenant.scopes());
+                        scopesMultiSelectComboBox.setItems(defaultScopes);
+                        scopesMultiSelectComboBox.setValue(new HashSet<>(tenant.scopes()));
+                    }
+                    setSmartMetadata(tenant.discoveryMethod());
+                });
+
         var parametersLayout = new HorizontalLayout(clientIdTextField, scopesMultiSelectComboBox);
         parametersLayout.setWidth("100%");
 
@@ -154,29 +231,40 @@ public SmartStartView(FhirClient fhirClient, OidcClient oidcClient) {
         See <a href="https://www.hl7.org/fhir/smart-app-launch/app-launch.html#obtain-authorization-code" target="_blank">How to obtain authorization code</a> for more details on the URL structure.
     </p>
     <p>
-        The state is a JSON containing details passed to the authorization flow and sent back into the callback.
+        The state is a short token standing for the details of the launch, sent back into the callback. It is issued when authorizing.
     </p>
 </div>
 """));
 
         var startButton = new Button("Authorize");
         startButton.addClickListener(
-                click ->
-                        getUI().ifPresent(
-                                        ui ->
-                                                ui.getPage()
-                                                        .setLocation(
-                                                                authorizationUrlTextArea
-                                                                        .getValue())));
+                click -> {
+                    if (authorizationUrlTextArea.isEmpty()) {
+                        return;
+                    }
+                    String authorizationUrl;
+                    try {
+                        authorizationUrl = getAuthorizationUrl(fhirServerUrlTextArea.getValue());
+                    } catch (URISyntaxException e) {
+                        log.error(e.getMessage(), e);
+                        ViewUtils.showNotificationError(
+                                "Failed to build authorization URL. Check the logs.");
+                        return;
+                    }
+                    endLaunch();
+                    getUI().ifPresent(ui -> ui.getPage().setLocation(authorizationUrl));
+                });
         startButton.addClickShortcut(Key.ENTER);
 
         add(
                 new H1("SMART Start"),
                 new Text(
-                        "Configure the FHIR Server URL, discover the Auth URLs, then start the"
-                                + " authorization flow."),
+                        "Pick an EHR or configure the FHIR Server URL, discover the Auth URLs, then"
+                                + " start the authorization flow."),
+                tenantSelect,
                 fhirServerUrlLayout,
                 discoverMetadataLayout,
+                pendingDiscovery,
                 metadataAccordion,
                 parametersLayout,
                 authorizationUrlTextArea,
@@ -186,37 +274,71 @@ public SmartStartView(FhirClient fhirClient, OidcClient oidcClient) {
     private void enableDiscoverMetadataButtons(boolean enabled) {
         discoverUsingFhirMetadata.setEnabled(enabled);
         discoverUsingOidcConfig.setEnabled(enabled);
+        discoverUsingSmartConfig.setEnabled(enabled);
+        discoverAuto.setEnabled(enabled);
     }
 
-    private void setSmartMetadata(boolean usingFhirMetadata) {
+    private void setSmartMetadata(DiscoveryMethod discoveryMethod) {
         var fhirServerUrl = fhirServerUrlTextArea.getValue();
 
         if (StringUtils.isBlank(fhirServerUrl)) {
             return;
         }
 
-        try {
-            SmartMetadata smartMetadata;
-            if (usingFhirMetadata) {
-                smartMetadata = fhirClient.getMetadataSmartUrls(fhirServerUrl);
-            } else {
-                smartMetadata = oidcClient.getWellKnownInfo(fhirServerUrl);
-            }
-
-            metadataAuthorizeUrl.setValue(smartMetadata.getAuthorizeUrl());
-            metadataTokenUrl.setValue(smartMetadata.getTokenUrl());
-            metadataFullContent.setValue(smartMetadata.getJsonResponse());
+        launchSpan.setAttribute("smart.fhir_server", fhirServerUrl);
+        CompletableFuture<SmartMetadata> discovery;
+        try (Scope ignored = launchSpan.makeCurrent()) {
+            discovery = smartDiscovery.discoverAsync(fhirServerUrl, discoveryMethod);
+        }
+        pendingDiscovery.track(
+                "Discovering SMART URLs",
+                discovery,
+                (smartMetadata, error) -> {
+                    if (error != null) {
+                        log.error(error.getMessage(), error);
+                        ViewUtils.showNotificationError(
+                                "Failed to read smart URLs. Check the logs.");
+                        return;
+                    }
+
+                    metadataAuthorizeUrl.setValue(smartMetadata.getAuthorizeUrl());
+                    metadataAuthorizeUrl.setHelperText(
+                            "Discovered using " + smartMetadata.getDiscoveryMethod());
+                    metadataTokenUrl.setValue(smartMetadata.getTokenUrl());
+                    this.smartMetadata = smartMetadata;
+                    showFullMetadata();
+
+                    changeAuthorizationUrl();
+                });
+    }
 
-            authorizationUrlTextArea.setValue(getAuthorizationUrl(fhirServerUrl));
-        } catch (URISyntaxException e) {
-            log.error(e.getMessage(), e);
-            ViewUtils.showNotificationError("Failed to read smart URLs. Check the logs.");
-        } catch (IOException | ParseException e) {
+    /**
+     * Parses the metadata into the tree when its panel is opened, and drops the tree when it is
+     * closed, the JSON being the only representation kept otherwise.
+     */
+    private void showFullMetadata() {
+        if (smartMetadata == null || !metadataFullPanel.isOpened()) {
+            metadataFullContent.clear();
+            return;
+        }
+        String json = smartMetadata.getJsonResponse();
+        try {
+            metadataFullContent.setContent(
+                    ResourceNode.parse("metadata", json),
+                    "metadata.json",
+                    () -> json,
+                    SessionFootprint.sizeOfParsed(json),
+                    this::showFullMetadata);
+        } catch (JsonProcessingException e) {
             log.error(e.getMessage(), e);
-            ViewUtils.showNotificationError("Cannot build the state object. Check the logs.");
+            ViewUtils.showNotificationError("Cannot show the metadata content. Check the logs.");
         }
     }
 
+    /**
+     * Shows the authorization URL without its state, only issued when authorizing so that editing
+     * the fields does not store a state for each change.
+     */
     private void changeAuthorizationUrl() {
         if (authorizationUrlTextArea != null
                 && StringUtils.isNoneBlank(
@@ -224,8 +346,14 @@ private void changeAuthorizationUrl() {
                 && !CollectionUtils.isEmpty(scopesMultiSelectComboBox.getValue())) {
             try {
                 authorizationUrlTextArea.setValue(
-                        getAuthorizationUrl(fhirServerUrlTextArea.getValue()));
-            } catch (URISyntaxException | JsonProcessingException e) {
+                        oidcClient
+                                .previewAuthorizationUrl(
+                                        fhirServerUrlTextArea.getValue(),
+                                        metadataAuthorizeUrl.getValue(),
+                                        clientIdTextField.getValue(),
+                                        scopesMultiSelectComboBox.getValue())
+                                .toString());
+            } catch (URISyntaxException e) {
                 log.error(e.getMessage(), e);
                 ViewUtils.showNotificationError(
                         "Failed to build authorization URL. Check the logs.");
@@ -233,14 +361,14 @@ private void changeAuthorizationUrl() {
         }
     }
 
-    private String getAuthorizationUrl(String fhirServerUrl)
-            throws URISyntaxException, JsonProcessingException {
+    private String getAuthorizationUrl(String fhirServerUrl) throws URISyntaxException {
 
         AppState state = new AppState();
         state.setTokenUrl(metadataTokenUrl.getValue());
         state.setOtherDetails("local_details");
         state.setClientId(clientIdTextField.getValue());
         state.setFhirServerUrl(fhirServerUrl);
+        state.setTraceParent(launchTracing.getTraceParent(launchSpan));
 
         return oidcClient
                 .buildAuthorizationUrl(
@@ -252,6 +380,16 @@ private String getAuthorizationUrl(String fhirServerUrl)
                 .toString();
     }
 
+    /**
+     * Ends the launch span once, the view being detached after the user left for authorization.
+     */
+    private void endLaunch() {
+        if (!launchEnded) {
+            launchEnded = true;
+            launchSpan.end();
+        }
+    }
+
     public boolean isValidURL(String url) {
         try {
             new URL(url).toURI();
@@ -2,6 +2,7 @@
 package ro.vidi.smart_on_fhir_tutorial.view;
 
 import com.vaadin.flow.component.Text;
+import com.vaadin.flow.component.UI;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.button.ButtonVariant;
 import com.vaadin.flow.component.html.Div;
@@ -10,6 +11,12 @@
 import com.vaadin.flow.component.notification.NotificationVariant;
 import com.vaadin.flow.component.orderedlayout.FlexComponent;
 import com.vaadin.flow.component.orderedlayout.HorizontalLayout;
+import com.vaadin.flow.server.Command;
+import com.vaadin.flow.server.VaadinSession;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import ro.vidi.smart_on_fhir_tutorial.SessionFootprint;
+import ro.vidi.smart_on_fhir_tutorial.TokenStore;
 
 public class ViewUtils {
 
@@ -30,4 +37,53 @@ public static void showNotificationError(String textMessage) {
         notification.add(layout);
         notification.open();
     }
+
+    /**
+     * Records a launch of the {@link TokenStore} as run by the current session, the only one
+     * allowed to use its tokens.
+     */
+    public static void addSessionLaunch(String launchId) {
+        VaadinSession session = VaadinSession.getCurrent();
+        SessionLaunches launches = session.getAttribute(SessionLaunches.class);
+        if (launches == null) {
+            launches = new SessionLaunches(ConcurrentHashMap.newKeySet());
+            session.setAttribute(SessionLaunches.class, launches);
+        }
+        launches.ids().add(launchId);
+    }
+
+    /**
+     * @return whether the launch was run by the current session, see {@link #addSessionLaunch}
+     */
+    public static boolean isSessionLaunch(String launchId) {
+        SessionLaunches launches = VaadinSession.getCurrent().getAttribute(SessionLaunches.class);
+        return launchId != null && launches != null && launches.ids().contains(launchId);
+    }
+
+    /**
+     * Registers a payload shown by the current UI in the ledger of the session. The payload may be
+     * dropped while another UI of the session registers one, so {@code drop} is run through {@link
+     * UI#access}, which also pushes the change to the browser showing the payload.
+     */
+    public static SessionFootprint.Ledger.Retained retain(
+            SessionFootprint sessionFootprint, String name, long size, Command drop) {
+        UI ui = UI.getCurrent();
+        return sessionLedger(sessionFootprint).retain(name, size, () -> ui.access(drop));
+    }
+
+    /**
+     * @return the ledger of the current session, opened on first use and closed by {@link
+     *     SessionFootprintListener} when the session ends
+     */
+    public static SessionFootprint.Ledger sessionLedger(SessionFootprint sessionFootprint) {
+        VaadinSession session = VaadinSession.getCurrent();
+        SessionFootprint.Ledger ledger = session.getAttribute(SessionFootprint.Ledger.class);
+        if (ledger == null) {
+            ledger = sessionFootprint.open();
+            session.setAttribute(SessionFootprint.Ledger.class, ledger);
+        }
+        return ledger;
+    }
+
+    private record SessionLaunches(Set<String> ids) {}
 }
@@ -0,0 +1,175 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
+import com.nimbusds.oauth2.sdk.auth.PrivateKeyJWT;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.oauth2.sdk.token.Tokens;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class BackendTokenCacheTest {
+
+    private static final String TOKEN_URL = "https://ehr.example.org/auth/token";
+
+    private ECKey key;
+
+    private BackendCredentials credentials;
+
+    private OidcClient oidcClient;
+
+    private BackendTokenCache backendTokenCache;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        key = new ECKeyGenerator(Curve.P_384).keyID("test").generate();
+        credentials = BackendCredentials.fromJwk("backend-client", key.toJSONString());
+
+        oidcClient = mock(OidcClient.class);
+        backendTokenCache = new BackendTokenCache();
+        ReflectionTestUtils.setField(backendTokenCache, "oidcClient", oidcClient);
+        ReflectionTestUtils.setField(backendTokenCache, "refreshBefore", Duration.ofMinutes(1));
+    }
+
+    @Test
+    void signsAssertionsForTheTokenEndpoint() throws Exception {
+        PrivateKeyJWT assertion = credentials.createAssertion(TOKEN_URL);
+        SignedJWT jwt = assertion.getClientAssertion();
+
+        assertThat(credentials.getAlgorithm()).isEqualTo(JWSAlgorithm.ES384);
+        assertThat(jwt.getHeader().getKeyID()).isEqualTo("test");
+        assertThat(jwt.verify(new ECDSAVerifier(key.toPublicJWK()))).isTrue();
+        assertThat(jwt.getJWTClaimsSet().getIssuer()).isEqualTo("backend-client");
+        assertThat(jwt.getJWTClaimsSet().getAudience()).containsExactly(TOKEN_URL);
+        assertThat(jwt.getJWTClaimsSet().getJWTID())
+                .isNotEqualTo(
+                        credentials
+                                .createAssertion(TOKEN_URL)
+                                .getClientAssertion()
+                                .getJWTClaimsSet()
+                                .getJWTID());
+    }
+
+    @Test
+    void rejectsUnsupportedKeysWithoutReportingThem() throws Exception {
+        ECKey unsupported = new ECKeyGenerator(Curve.P_256).generate();
+        String jwk = unsupported.toJSONString();
+
+        assertThatThrownBy(() -> BackendCredentials.fromJwk("backend-client", jwk))
+                .isInstanceOf(JOSEException.class)
+                .hasMessageEndingWith("got EC P-256")
+                .message()
+                .doesNotContain(unsupported.getD().toString());
+    }
+
+    @Test
+    void reusesTokenUntilItIsAboutToExpire() throws Exception {
+        when(oidcClient.getBackendAccessToken(eq(TOKEN_URL), eq(credentials), any()))
+                .thenReturn(tokenResponse("first", 3600), tokenResponse("second", 3600));
+
+        String first = backendTokenCache.getAccessToken(TOKEN_URL, credentials, Set.of("a", "b"));
+        String again = backendTokenCache.getAccessToken(TOKEN_URL, credentials, Set.of("b", "a"));
+
+        assertThat(first).isEqualTo("first");
+        assertThat(again).isEqualTo("first");
+        verify(oidcClient, times(1)).getBackendAccessToken(any(), any(), any());
+    }
+
+    @Test
+    void renewsTokenExpiringWithinRefreshBefore() throws Exception {
+        when(oidcClient.getBackendAccessToken(eq(TOKEN_URL), eq(credentials), any()))
+                .thenReturn(tokenResponse("first", 30), tokenResponse("second", 3600));
+
+        backendTokenCache.getAccessToken(TOKEN_URL, credentials, Set.of("a"));
+
+        assertThat(backendTokenCache.getAccessToken(TOKEN_URL, credentials, Set.of("a")))
+                .isEqualTo("second");
+    }
+
+    @Test
+    void requestsOneTokenForConcurrentCallers() throws Exception {
+        when(oidcClient.getBackendAccessToken(eq(TOKEN_URL), eq(credentials), any()))
+                .thenAnswer(
+                        invocation -> {
+                            Thread.sleep(50);
+                            return tokenResponse("first", 3600);
+                        });
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tokens.add(
+                        callers.submit(
+                                () -> {
+                                    start.await();
+                                    return backendTokenCache.getAccessToken(
+                                            TOKEN_URL, credentials, Set.of("a"));
+                                }));
+            }
+            start.countDown();
+
+            for (Future<String> token : tokens) {
+                assertThat(token.get(5, TimeUnit.SECONDS)).isEqualTo("first");
+            }
+            verify(oidcClient, times(1)).getBackendAccessToken(any(), any(), any());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    void cachesTokensPerScopes() throws Exception {
+        when(oidcClient.getBackendAccessToken(eq(TOKEN_URL), eq(credentials), any()))
+                .thenReturn(tokenResponse("first", 3600), tokenResponse("second", 3600));
+
+        backendTokenCache.getAccessToken(TOKEN_URL, credentials, Set.of("a"));
+
+        assertThat(backendTokenCache.getAccessToken(TOKEN_URL, credentials, Set.of("b")))
+                .isEqualTo("second");
+    }
+
+    @Test
+    void reportsRejectedGrants() throws Exception {
+        when(oidcClient.getBackendAccessToken(any(), any(), any()))
+                .thenThrow(new IOException("invalid_client"));
+
+        assertThatThrownBy(
+                        () -> backendTokenCache.getAccessToken(TOKEN_URL, credentials, Set.of()))
+                .isInstanceOf(IllegalStateException.class)
+                .hasRootCauseMessage("invalid_client");
+    }
+
+    private static AccessTokenResponse tokenResponse(String accessToken, long lifetime) {
+        return new AccessTokenResponse(
+                new Tokens(new BearerAccessToken(accessToken, lifetime, null), null));
+    }
+}
@@ -0,0 +1,143 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.http.client.HttpResponseException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class BulkDataClientTest {
+
+    private BulkExportServerStub server;
+
+    private HttpTransport httpTransport;
+
+    private ExecutorService executor;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private EhrCalls ehrCalls;
+
+    private BulkDataClient bulkDataClient;
+
+    private final Queue<IBaseResource> resources = new ConcurrentLinkedQueue<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new BulkExportServerStub(2);
+
+        httpTransport = TestBeans.httpTransport();
+
+        executor = Executors.newFixedThreadPool(4);
+
+        bulkDataClient = new BulkDataClient();
+        ReflectionTestUtils.setField(bulkDataClient, "fhirContext", FhirContext.forR4Cached());
+        ReflectionTestUtils.setField(bulkDataClient, "mapper", new ObjectMapper());
+        ReflectionTestUtils.setField(bulkDataClient, "httpTransport", httpTransport);
+        ReflectionTestUtils.setField(bulkDataClient, "outboundExecutor", executor);
+        ehrCalls = TestBeans.ehrCalls(registry);
+        ReflectionTestUtils.setField(bulkDataClient, "ehrCalls", ehrCalls);
+        ReflectionTestUtils.setField(bulkDataClient, "pollInterval", Duration.ofMillis(10));
+        ReflectionTestUtils.setField(bulkDataClient, "maxWait", Duration.ofSeconds(10));
+        ReflectionTestUtils.setField(bulkDataClient, "parallelDownloads", 2);
+        ReflectionTestUtils.setField(bulkDataClient, "maxResumes", 3);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.close();
+        executor.shutdownNow();
+        httpTransport.close();
+    }
+
+    @Test
+    void exportsAndParsesAllFiles() throws Exception {
+        server.addFile("Patient", 100);
+        server.addFile("Observation", 1000);
+        server.addFile("Condition", 10);
+
+        BulkExportReport report =
+                bulkDataClient.export(
+                        server.getBaseUrl(),
+                        BulkDataClient.ExportLevel.PATIENT,
+                        null,
+                        List.of("Patient", "Observation", "Condition"),
+                        () -> "test-token",
+                        resources::add);
+
+        assertThat(server.getKickOffQuery()).isEqualTo("_type=Patient,Observation,Condition");
+        assertThat(server.getPolls()).isEqualTo(3);
+        assertThat(server.isDeleted()).isTrue();
+        assertThat(report.getFiles()).isEqualTo(3);
+        assertThat(report.getResources()).isEqualTo(1110);
+        assertThat(report.getBytes()).isPositive();
+        assertThat(
+                        registry.get("ehr.calls")
+                                .tag("operation", "bulk-download")
+                                .tag("outcome", "SUCCESS")
+                                .timer()
+                                .count())
+                .isEqualTo(3);
+        assertThat(
+                        registry.get("ehr.calls.response.size")
+                                .tag("operation", "bulk-download")
+                                .summary()
+                                .totalAmount())
+                .isEqualTo(report.getBytes());
+        assertThat(resources).hasSize(1110);
+        assertThat(resources)
+                .filteredOn(resource -> resource.fhirType().equals("Observation"))
+                .hasSize(1000);
+    }
+
+    @Test
+    void resumesBrokenDownloadsFromTheLastCompleteLine() throws Exception {
+        server.addFile("Observation", 1000);
+        server.breakNextDownload("Observation");
+
+        BulkExportReport report =
+                bulkDataClient.export(
+                        server.getBaseUrl(),
+                        BulkDataClient.ExportLevel.PATIENT,
+                        null,
+                        List.of(),
+                        () -> "test-token",
+                        resources::add);
+
+        assertThat(report.getResumes()).isEqualTo(1);
+        assertThat(resources).hasSize(1000);
+        assertThat(resources)
+                .extracting(resource -> resource.getIdElement().getIdPart())
+                .doesNotHaveDuplicates();
+    }
+
+    @Test
+    void failsWithoutRetryWhenNotAuthorized() {
+        server.addFile("Patient", 1);
+
+        assertThatThrownBy(
+                        () ->
+                                bulkDataClient.export(
+                                        server.getBaseUrl(),
+                                        BulkDataClient.ExportLevel.PATIENT,
+                                        null,
+                                        List.of(),
+                                        () -> "other-token",
+                                        resources::add))
+                .isInstanceOf(HttpResponseException.class);
+    }
+}
@@ -0,0 +1,192 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for a FHIR server supporting bulk data export. The export is reported in
+ * progress for {@code pendingPolls} polls, then completes with one NDJSON file per resource type.
+ */
+class BulkExportServerStub implements AutoCloseable {
+
+    private final HttpServer server;
+
+    private final Map<String, byte[]> files = new LinkedHashMap<>();
+
+    private final int pendingPolls;
+
+    private final AtomicInteger polls = new AtomicInteger();
+
+    /**
+     * Files whose next download breaks after half of the content.
+     */
+    private final Map<String, Boolean> breakNextDownload = new ConcurrentHashMap<>();
+
+    private volatile String kickOffQuery;
+
+    private volatile boolean deleted;
+
+    BulkExportServerStub(int pendingPolls) throws IOException {
+        this.pendingPolls = pendingPolls;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/fhir/Patient/$export", this::kickOff);
+        server.createContext("/status", this::status);
+        server.createContext("/files/", this::file);
+        server.start();
+    }
+
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    /**
+     * Adds a file of {@code count} resources of the given type.
+     */
+    void addFile(String resourceType, int count) {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            ndjson.append("{\"resourceType\":\"")
+                    .append(resourceType)
+                    .append("\",\"id\":\"")
+                    .append(resourceType.toLowerCase())
+                    .append('-')
+                    .append(i)
+                    .append("\"}\n");
+        }
+        files.put(resourceType, ndjson.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    void breakNextDownload(String resourceType) {
+        breakNextDownload.put(resourceType, true);
+    }
+
+    String getKickOffQuery() {
+        return kickOffQuery;
+    }
+
+    int getPolls() {
+        return polls.get();
+    }
+
+    boolean isDeleted() {
+        return deleted;
+    }
+
+    private void kickOff(HttpExchange exchange) throws IOException {
+        if (!authorized(exchange)) {
+            return;
+        }
+        if (!"respond-async".equals(exchange.getRequestHeaders().getFirst("Prefer"))) {
+            send(exchange, 400, new byte[0]);
+            return;
+        }
+        kickOffQuery = exchange.getRequestURI().getQuery();
+        exchange.getResponseHeaders()
+                .add("Content-Location", getBaseUrl().replace("/fhir", "/status/1"));
+        send(exchange, 202, new byte[0]);
+    }
+
+    private void status(HttpExchange exchange) throws IOException {
+        if (!authorized(exchange)) {
+            return;
+        }
+        if ("DELETE".equals(exchange.getRequestMethod())) {
+            deleted = true;
+            send(exchange, 202, new byte[0]);
+            return;
+        }
+        if (polls.incrementAndGet() <= pendingPolls) {
+            exchange.getResponseHeaders().add("Retry-After", "0");
+            exchange.getResponseHeaders().add("X-Progress", "in progress");
+            send(exchange, 202, new byte[0]);
+            return;
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (output.length() > 0) {
+                output.append(',');
+            }
+            output.append("{\"type\":\"")
+                    .append(file.getKey())
+                    .append("\",\"url\":\"")
+                    .append(getBaseUrl().replace("/fhir", "/files/"))
+                    .append(file.getKey())
+                    .append(".ndjson\"}");
+        }
+        String manifest =
+                "{\"transactionTime\":\"2024-01-01T00:00:00Z\",\"request\":\"export\","
+                        + "\"requiresAccessToken\":true,\"output\":["
+                        + output
+                        + "],\"error\":[]}";
+        send(exchange, 200, manifest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void file(HttpExchange exchange) throws IOException {
+        if (!authorized(exchange)) {
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        String resourceType = path.substring("/files/".length(), path.indexOf(".ndjson"));
+        byte[] content = files.get(resourceType);
+
+        int from = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+        }
+        int length = content.length - from;
+
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+ndjson");
+        if (breakNextDownload.remove(resourceType) != null) {
+            // announce the whole content but close the connection halfway
+            exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+            exchange.getResponseBody().write(content, from, length / 2);
+            exchange.getResponseBody().flush();
+            // closes the connection, as the announced length was not sent
+            exchange.close();
+            return;
+        }
+        if (range != null) {
+            exchange.getResponseHeaders()
+                    .add(
+                            "Content-Range",
+                            "bytes " + from + "-" + (content.length - 1) + "/" + content.length);
+        }
+        exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(content, from, length);
+        }
+    }
+
+    private boolean authorized(HttpExchange exchange) throws IOException {
+        if (!"Bearer test-token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            send(exchange, 401, new byte[0]);
+            return false;
+        }
+        return true;
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,176 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class DiscoveryCacheTest {
+
+    private static final String EHR = "https://ehr.example.org/fhir";
+
+    private static final String OTHER_EHR = "https://other-ehr.example.org/fhir";
+
+    private static final String THIRD_EHR = "https://third-ehr.example.org/fhir";
+
+    private DiscoveryCache discoveryCache;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        discoveryCache = TestBeans.discoveryCache(false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        discoveryCache.shutdown();
+    }
+
+    @Test
+    void returnsTheFreshEntriesWithoutLoadingThem() throws Exception {
+        SmartMetadata first = get(EHR);
+
+        assertThat(get(EHR)).isSameAs(first);
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void refreshesTheStaleEntriesInTheBackground() throws Exception {
+        ReflectionTestUtils.setField(discoveryCache, "ttl", Duration.ZERO);
+        SmartMetadata first = get(EHR);
+
+        CountDownLatch refreshed = new CountDownLatch(1);
+        SmartMetadata stale =
+                discoveryCache.get(
+                        EHR,
+                        DiscoveryMethod.SMART_CONFIGURATION,
+                        () -> {
+                            refreshed.countDown();
+                            return metadata(EHR);
+                        });
+
+        assertThat(stale).isSameAs(first);
+        assertThat(refreshed.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void loadsTheExpiredEntriesAgain() throws Exception {
+        ReflectionTestUtils.setField(discoveryCache, "ttl", Duration.ZERO);
+        ReflectionTestUtils.setField(discoveryCache, "staleTtl", Duration.ZERO);
+        SmartMetadata first = get(EHR);
+
+        assertThat(get(EHR)).isNotSameAs(first);
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void keepsTheDiscoveryMethodsApart() throws Exception {
+        get(EHR);
+        discoveryCache.get(EHR, DiscoveryMethod.FHIR_METADATA, () -> metadata(EHR));
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void loadsAKeyOnceForConcurrentReads() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        DiscoveryCache.Loader slowLoader =
+                () -> {
+                    loads.incrementAndGet();
+                    loading.countDown();
+                    release.join();
+                    return metadata(EHR);
+                };
+
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            Future<SmartMetadata> first =
+                    readers.submit(
+                            () ->
+                                    discoveryCache.get(
+                                            EHR, DiscoveryMethod.SMART_CONFIGURATION, slowLoader));
+            assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+            Future<SmartMetadata> second =
+                    readers.submit(
+                            () ->
+                                    discoveryCache.get(
+                                            EHR, DiscoveryMethod.SMART_CONFIGURATION, slowLoader));
+            // the second read waits for the load of the first
+            Thread.sleep(100);
+            release.complete(null);
+
+            assertThat(second.get(5, TimeUnit.SECONDS)).isSameAs(first.get(5, TimeUnit.SECONDS));
+            assertThat(loads).hasValue(1);
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    @Test
+    void doesNotCacheTheFailures() throws Exception {
+        assertThatThrownBy(
+                        () ->
+                                discoveryCache.get(
+                                        EHR,
+                                        DiscoveryMethod.SMART_CONFIGURATION,
+                                        () -> {
+                                            throw new IOException("503");
+                                        }))
+                .isInstanceOf(IOException.class)
+                .hasMessage("503");
+
+        get(EHR);
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedEntries() throws Exception {
+        ReflectionTestUtils.setField(discoveryCache, "maxSize", 2);
+        get(EHR);
+        get(OTHER_EHR);
+        // reading EHR makes OTHER_EHR the least recently used
+        get(EHR);
+
+        get(THIRD_EHR);
+        get(EHR);
+        assertThat(loads).hasValue(3);
+
+        get(OTHER_EHR);
+        assertThat(loads).hasValue(4);
+    }
+
+    /**
+     * Reads the SMART configuration of the server, counting the loads.
+     */
+    private SmartMetadata get(String fhirServerUrl) throws Exception {
+        return discoveryCache.get(
+                fhirServerUrl,
+                DiscoveryMethod.SMART_CONFIGURATION,
+                () -> {
+                    loads.incrementAndGet();
+                    return metadata(fhirServerUrl);
+                });
+    }
+
+    private static SmartMetadata metadata(String fhirServerUrl) {
+        SmartMetadata smartMetadata = new SmartMetadata();
+        smartMetadata.setAuthorizeUrl(fhirServerUrl + "/auth/authorize");
+        smartMetadata.setTokenUrl(fhirServerUrl + "/auth/token");
+        return smartMetadata;
+    }
+}
@@ -0,0 +1,179 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class EhrCallsTest {
+
+    /**
+     * Not the cached context, as its client factory is configured by the test.
+     */
+    private FhirContext fhirContext;
+
+    private static final String PATIENT =
+            "{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Doe\"}]}";
+
+    private HttpServer server;
+
+    private SimpleMeterRegistry registry;
+
+    private EhrCalls ehrCalls;
+
+    private IGenericClient client;
+
+    private String baseUrl;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir/Patient/1", exchange -> respond(exchange, 200, PATIENT));
+        server.createContext(
+                "/fhir/Patient/2",
+                exchange ->
+                        respond(
+                                exchange,
+                                500,
+                                "{\"resourceType\":\"OperationOutcome\",\"issue\":[]}"));
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+
+        fhirContext = FhirContext.forR4();
+        registry = new SimpleMeterRegistry();
+        ehrCalls = new EhrCalls();
+        ReflectionTestUtils.setField(ehrCalls, "meterRegistry", registry);
+
+        fhirContext
+                .getRestfulClientFactory()
+                .setServerValidationMode(ServerValidationModeEnum.NEVER);
+        client = fhirContext.newRestfulGenericClient(baseUrl);
+        client.registerInterceptor(ehrCalls.getFhirInterceptor());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void recordsNetworkParseAndSizeOfAFhirRead() {
+        try (EhrCalls.Call call = ehrCalls.start(baseUrl, "read", "Patient")) {
+            call.success(client.read().resource(Patient.class).withId("1").execute());
+        }
+
+        Timer total = timer("ehr.calls", "SUCCESS");
+        Timer network = timer("ehr.calls.network", "SUCCESS");
+        assertThat(total.count()).isEqualTo(1);
+        assertThat(network.count()).isEqualTo(1);
+        assertThat(timer("ehr.calls.parse", "SUCCESS").count()).isEqualTo(1);
+        assertThat(network.totalTime(TimeUnit.NANOSECONDS))
+                .isLessThanOrEqualTo(total.totalTime(TimeUnit.NANOSECONDS));
+
+        DistributionSummary responseSize =
+                registry.get("ehr.calls.response.size").tag("outcome", "SUCCESS").summary();
+        assertThat(responseSize.totalAmount())
+                .isEqualTo(PATIENT.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    void tagsAFailedCallWithTheResponseStatus() {
+        assertThatThrownBy(
+                        () -> {
+                            try (EhrCalls.Call call = ehrCalls.start(baseUrl, "read", "Patient")) {
+                                call.success(
+                                        client.read()
+                                                .resource(Patient.class)
+                                                .withId("2")
+                                                .execute());
+                            }
+                        })
+                .isInstanceOf(InternalErrorException.class);
+
+        assertThat(timer("ehr.calls", "SERVER_ERROR").count()).isEqualTo(1);
+        assertThat(registry.find("ehr.calls").tag("outcome", "SUCCESS").timer()).isNull();
+    }
+
+    @Test
+    void nestedCallsKeepTheirExchangesApart() {
+        try (EhrCalls.Call outer = ehrCalls.start(baseUrl, "search", "Observation")) {
+            try (EhrCalls.Call inner =
+                    ehrCalls.start("http://auth.example/token", "token-refresh", null)) {
+                EhrCalls.recordExchange(1_000, 10, 100, 200);
+                inner.success(null);
+            }
+            EhrCalls.recordExchange(2_000, 0, 1_000, 200);
+            outer.success(null);
+        }
+        EhrCalls.recordExchange(3_000, 0, 10_000, 200);
+
+        assertThat(
+                        registry.get("ehr.calls.response.size")
+                                .tag("host", "auth.example")
+                                .summary()
+                                .totalAmount())
+                .isEqualTo(100);
+        assertThat(
+                        registry.get("ehr.calls.response.size")
+                                .tag("host", "127.0.0.1")
+                                .tag("resource_type", "Observation")
+                                .summary()
+                                .totalAmount())
+                .isEqualTo(1_000);
+    }
+
+    @Test
+    void tagsTheHostsBeyondTheLimitAsOther() {
+        registry.config().meterFilter(EhrCalls.hostTagLimit(2));
+
+        for (String serverUrl :
+                List.of("https://a.example/fhir", "https://b.example/fhir", "https://c.example")) {
+            try (EhrCalls.Call call = ehrCalls.start(serverUrl, "metadata", null)) {
+                call.success(null);
+            }
+        }
+
+        assertThat(registry.find("ehr.calls").timers())
+                .extracting(timer -> timer.getId().getTag("host"))
+                .containsExactlyInAnyOrder("a.example", "b.example", "other");
+    }
+
+    private Timer timer(String name, String outcome) {
+        return registry.get(name)
+                .tag("host", "127.0.0.1")
+                .tag("operation", "read")
+                .tag("resource_type", "Patient")
+                .tag("outcome", outcome)
+                .timer();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
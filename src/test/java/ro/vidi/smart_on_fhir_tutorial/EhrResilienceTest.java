@@ -0,0 +1,254 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class EhrResilienceTest {
+
+    private static final String EHR_A = "https://ehr-a.example/fhir";
+
+    private static final String EHR_B = "https://ehr-b.example/fhir";
+
+    private SimpleMeterRegistry registry;
+
+    private EhrResilience ehrResilience;
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        EhrCalls ehrCalls = new EhrCalls();
+        ReflectionTestUtils.setField(ehrCalls, "meterRegistry", registry);
+
+        ehrResilience = new EhrResilience();
+        ReflectionTestUtils.setField(ehrResilience, "ehrCalls", ehrCalls);
+        ReflectionTestUtils.setField(ehrResilience, "meterRegistry", registry);
+        ReflectionTestUtils.setField(ehrResilience, "maxConcurrentCalls", 1);
+        ReflectionTestUtils.setField(ehrResilience, "maxWait", Duration.ZERO);
+        ReflectionTestUtils.setField(ehrResilience, "failureRateThreshold", 50f);
+        ReflectionTestUtils.setField(ehrResilience, "slidingWindowSize", 4);
+        ReflectionTestUtils.setField(ehrResilience, "openDuration", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(ehrResilience, "maxAttempts", 3);
+        ReflectionTestUtils.setField(ehrResilience, "initialBackoff", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(ehrResilience, "minTimeout", Duration.ofMillis(100));
+        ReflectionTestUtils.setField(ehrResilience, "maxTimeout", Duration.ofSeconds(30));
+        ehrResilience.init();
+    }
+
+    @Test
+    void retriesIdempotentCallsOnServerErrors() throws Exception {
+        String result =
+                ehrResilience.fetch(
+                        EHR_A,
+                        "metadata",
+                        null,
+                        call -> {
+                            if (attempts.incrementAndGet() < 3) {
+                                EhrCalls.recordExchange(1_000, 0, 10, 503);
+                                throw new IOException("503");
+                            }
+                            EhrCalls.recordExchange(1_000, 0, 10, 200);
+                            return call.success("metadata");
+                        });
+
+        assertThat(result).isEqualTo("metadata");
+        assertThat(attempts).hasValue(3);
+        assertThat(registry.get("ehr.calls.retries").tag("host", "ehr-a.example").counter().count())
+                .isEqualTo(2);
+    }
+
+    @Test
+    void neverRetriesTheCodeExchange() {
+        assertThatThrownBy(
+                        () ->
+                                ehrResilience.send(
+                                        EHR_A,
+                                        "token-exchange",
+                                        null,
+                                        call -> {
+                                            attempts.incrementAndGet();
+                                            throw new IOException("Connection reset");
+                                        }))
+                .hasMessage("Connection reset");
+
+        assertThat(attempts).hasValue(1);
+    }
+
+    @Test
+    void doesNotRetryNorCountClientErrors() {
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(
+                            () ->
+                                    ehrResilience.read(
+                                            EHR_A,
+                                            "read",
+                                            "Patient",
+                                            call -> {
+                                                attempts.incrementAndGet();
+                                                EhrCalls.recordExchange(1_000, 0, 10, 404);
+                                                throw new IllegalStateException("404");
+                                            }))
+                    .isInstanceOf(IllegalStateException.class);
+        }
+
+        assertThat(attempts).hasValue(4);
+        assertThat(breakerState("ehr-a.example", "closed")).isEqualTo(1);
+    }
+
+    @Test
+    void neitherRetriesNorCountsTheFailuresOfNestedCalls() {
+        AtomicInteger refreshes = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(
+                            () ->
+                                    ehrResilience.read(
+                                            EHR_A,
+                                            "read",
+                                            "Patient",
+                                            call -> {
+                                                attempts.incrementAndGet();
+                                                return refreshToken(refreshes);
+                                            }))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasRootCauseMessage("invalid_grant");
+        }
+
+        assertThat(attempts).hasValue(4);
+        assertThat(refreshes).hasValue(4);
+        assertThat(breakerState("ehr-a.example", "closed")).isEqualTo(1);
+    }
+
+    @Test
+    void opensTheCircuitOfTheFailingHostOnly() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            assertThatThrownBy(
+                            () ->
+                                    ehrResilience.send(
+                                            EHR_A,
+                                            "token-exchange",
+                                            null,
+                                            call -> {
+                                                attempts.incrementAndGet();
+                                                throw new SocketTimeoutException("Read timed out");
+                                            }))
+                    .isInstanceOf(SocketTimeoutException.class);
+        }
+
+        assertThatThrownBy(
+                        () ->
+                                ehrResilience.fetch(
+                                        EHR_A,
+                                        "metadata",
+                                        null,
+                                        call -> {
+                                            attempts.incrementAndGet();
+                                            return call.success("metadata");
+                                        }))
+                .isInstanceOf(EhrResilience.CallRejectedException.class);
+        assertThat(attempts).hasValue(4);
+        assertThat(breakerState("ehr-a.example", "open")).isEqualTo(1);
+
+        assertThat(ehrResilience.fetch(EHR_B, "metadata", null, call -> call.success("other")))
+                .isEqualTo("other");
+        assertThat(breakerState("ehr-b.example", "closed")).isEqualTo(1);
+    }
+
+    @Test
+    void rejectsTheCallsBeyondTheBulkheadOfTheHost() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> slow =
+                CompletableFuture.supplyAsync(
+                        () ->
+                                ehrResilience.read(
+                                        EHR_A,
+                                        "read",
+                                        "Patient",
+                                        call -> {
+                                            started.countDown();
+                                            await(release);
+                                            return call.success("slow");
+                                        }));
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThatThrownBy(() -> ehrResilience.read(EHR_A, "read", "Patient", call -> "fast"))
+                .hasCauseInstanceOf(EhrResilience.CallRejectedException.class);
+        assertThat(ehrResilience.read(EHR_B, "read", "Patient", call -> "other"))
+                .isEqualTo("other");
+
+        release.countDown();
+        assertThat(slow.get(5, TimeUnit.SECONDS)).isEqualTo("slow");
+    }
+
+    @Test
+    void adaptsTheReadTimeoutToTheLatency() throws Exception {
+        assertThat(ehrResilience.getTimeout(EHR_A, "metadata")).isEqualTo(Duration.ofSeconds(30));
+
+        for (int i = 0; i < 10; i++) {
+            ehrResilience.fetch(EHR_A, "metadata", null, call -> call.success("metadata"));
+        }
+        assertThat(ehrResilience.getTimeout(EHR_A, "metadata")).isEqualTo(Duration.ofMillis(100));
+        assertThat(ehrResilience.getTimeout(EHR_A, "batch")).isEqualTo(Duration.ofSeconds(30));
+
+        assertThatThrownBy(
+                        () ->
+                                ehrResilience.send(
+                                        EHR_A,
+                                        "metadata",
+                                        null,
+                                        call -> {
+                                            throw new SocketTimeoutException("Read timed out");
+                                        }))
+                .isInstanceOf(SocketTimeoutException.class);
+        assertThat(ehrResilience.getTimeout(EHR_A, "metadata")).isEqualTo(Duration.ofMillis(200));
+    }
+
+    /**
+     * Like the renewal of an expired token by the TokenStore, during a FHIR read.
+     */
+    private String refreshToken(AtomicInteger refreshes) {
+        try {
+            return ehrResilience.send(
+                    "https://auth.example/token",
+                    "token-refresh",
+                    null,
+                    call -> {
+                        refreshes.incrementAndGet();
+                        EhrCalls.recordExchange(1_000, 0, 10, 400);
+                        throw new IOException("invalid_grant");
+                    });
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot renew access token", e);
+        }
+    }
+
+    private double breakerState(String host, String state) {
+        return registry.get("resilience4j.circuitbreaker.state")
+                .tag("name", host)
+                .tag("state", state)
+                .gauge()
+                .value();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
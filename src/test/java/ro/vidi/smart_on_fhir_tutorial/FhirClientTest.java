@@ -0,0 +1,160 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class FhirClientTest {
+
+    private static final String LAUNCH_ID = "launch";
+
+    private static final List<String> RESOURCE_TYPES =
+            List.of("Observation", "Condition", "Encounter");
+
+    private MockEhrServer ehr;
+
+    private HttpTransport httpTransport;
+
+    private ExecutorService outboundExecutor;
+
+    private FhirClient fhirClient;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ehr = new MockEhrServer();
+
+        httpTransport = TestBeans.httpTransport();
+
+        // not the cached context, whose client factory is shared with the other tests
+        FhirContext fhirContext = FhirContext.forR4();
+        fhirContext.getRestfulClientFactory().setHttpClient(httpTransport.getHttpClient());
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EhrCalls ehrCalls = TestBeans.ehrCalls(registry);
+        EhrResilience ehrResilience = TestBeans.ehrResilience(ehrCalls, registry);
+
+        outboundExecutor = Executors.newFixedThreadPool(4);
+
+        TokenStore tokenStore = mock(TokenStore.class);
+        when(tokenStore.getAccessToken(LAUNCH_ID)).thenReturn(ehr.issueAccessToken());
+
+        FhirResourceCache resourceCache = new FhirResourceCache();
+        ReflectionTestUtils.setField(resourceCache, "fhirContext", fhirContext);
+        ReflectionTestUtils.setField(resourceCache, "maxBytes", 1024L * 1024);
+
+        fhirClient = new FhirClient();
+        ReflectionTestUtils.setField(fhirClient, "fhirContext", fhirContext);
+        ReflectionTestUtils.setField(fhirClient, "outboundExecutor", outboundExecutor);
+        ReflectionTestUtils.setField(fhirClient, "tokenStore", tokenStore);
+        ReflectionTestUtils.setField(fhirClient, "resourceCache", resourceCache);
+        ReflectionTestUtils.setField(fhirClient, "ehrCalls", ehrCalls);
+        ReflectionTestUtils.setField(fhirClient, "ehrResilience", ehrResilience);
+        ReflectionTestUtils.setField(fhirClient, "summaryResourceTypes", RESOURCE_TYPES);
+        ReflectionTestUtils.setField(fhirClient, "summaryMaxParallelSearches", 2);
+        ReflectionTestUtils.setField(
+                fhirClient, "summaryBatchRetryInterval", Duration.ofHours(1));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        outboundExecutor.shutdownNow();
+        httpTransport.close();
+        ehr.close();
+    }
+
+    @Test
+    void searchesTheSummaryInABatch() {
+        PatientSummary summary = getPatientSummary();
+
+        assertThat(summary.getFetchMode()).isEqualTo(PatientSummary.FetchMode.BATCH);
+        assertThat(summary.getSections())
+                .extracting(PatientSummary.Section::getResourceType)
+                .containsExactlyElementsOf(RESOURCE_TYPES);
+        assertThat(summary.getSections())
+                .extracting(PatientSummary.Section::getError)
+                .containsOnlyNulls();
+        assertThat(ehr.getRequests("batch")).isEqualTo(1);
+        assertThat(ehr.getRequests("search")).isZero();
+    }
+
+    @Test
+    void reportsTheFailedEntriesOfABatch() {
+        ehr.setFailingSearches("Condition");
+
+        PatientSummary summary = getPatientSummary();
+
+        assertThat(summary.getFetchMode()).isEqualTo(PatientSummary.FetchMode.BATCH);
+        assertThat(summary.getSections())
+                .extracting(PatientSummary.Section::getError)
+                .containsExactly(null, "500 Internal Server Error", null);
+    }
+
+    @Test
+    void searchesInParallelWhenTheServerHasNoBatches() {
+        ehr.setBatchStatus(405);
+        ehr.setFailingSearches("Condition");
+
+        PatientSummary first = getPatientSummary();
+        PatientSummary second = getPatientSummary();
+
+        assertThat(first.getFetchMode()).isEqualTo(PatientSummary.FetchMode.PARALLEL);
+        assertThat(second.getFetchMode()).isEqualTo(PatientSummary.FetchMode.PARALLEL);
+        assertThat(first.getSections())
+                .extracting(PatientSummary.Section::getResourceType)
+                .containsExactlyElementsOf(RESOURCE_TYPES);
+        assertThat(first.getSections().get(0).getError()).isNull();
+        assertThat(first.getSections().get(1).getError()).startsWith("500");
+        // the server is remembered as having no batches
+        assertThat(ehr.getRequests("batch")).isEqualTo(1);
+        assertThat(ehr.getRequests("search")).isEqualTo(2L * RESOURCE_TYPES.size());
+    }
+
+    @Test
+    void triesABatchAgainAfterTheRetryInterval() {
+        ReflectionTestUtils.setField(fhirClient, "summaryBatchRetryInterval", Duration.ZERO);
+        ehr.setBatchStatus(501);
+        getPatientSummary();
+
+        ehr.setBatchStatus(200);
+        PatientSummary summary = getPatientSummary();
+
+        assertThat(summary.getFetchMode()).isEqualTo(PatientSummary.FetchMode.BATCH);
+        assertThat(ehr.getRequests("batch")).isEqualTo(2);
+    }
+
+    @Test
+    void failsTheSummaryOnAnInvalidBatch() {
+        ehr.setBatchStatus(400);
+
+        assertThatThrownBy(this::getPatientSummary)
+                .isInstanceOf(BaseServerResponseException.class)
+                .satisfies(
+                        e ->
+                                assertThat(((BaseServerResponseException) e).getStatusCode())
+                                        .isEqualTo(400));
+
+        // a bad request says nothing of the batch support
+        ehr.setBatchStatus(200);
+        assertThat(getPatientSummary().getFetchMode())
+                .isEqualTo(PatientSummary.FetchMode.BATCH);
+    }
+
+    private PatientSummary getPatientSummary() {
+        return fhirClient.getPatientSummary(ehr.getBaseUrl(), LAUNCH_ID, MockEhrServer.PATIENT_ID);
+    }
+}
@@ -0,0 +1,146 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class FhirResourceCacheTest {
+
+    /**
+     * Not the cached context, as its client factory is configured by the test.
+     */
+    private FhirContext fhirContext;
+
+    private HttpServer server;
+
+    private final List<Integer> statuses = new ArrayList<>();
+
+    private volatile int version = 1;
+
+    private FhirResourceCache cache;
+
+    private IGenericClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir/Patient/1", this::readPatient);
+        server.start();
+
+        fhirContext = FhirContext.forR4();
+        cache = new FhirResourceCache();
+        ReflectionTestUtils.setField(cache, "fhirContext", fhirContext);
+        ReflectionTestUtils.setField(cache, "maxBytes", 1024L * 1024);
+
+        fhirContext
+                .getRestfulClientFactory()
+                .setServerValidationMode(ServerValidationModeEnum.NEVER);
+        client =
+                fhirContext.newRestfulGenericClient(
+                        "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir");
+        client.registerInterceptor(cache.getResponseSizeInterceptor());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void servesNotModifiedResourcesFromTheCache() {
+        Patient first = cache.read(client, "launch", Patient.class, "1");
+        Patient second = cache.read(client, "launch", Patient.class, "1");
+
+        assertThat(second).isSameAs(first);
+        assertThat(statuses).containsExactly(200, 304);
+        FhirResourceCache.Stats stats = cache.getStats();
+        assertThat(stats.hits()).isEqualTo(1);
+        assertThat(stats.misses()).isEqualTo(1);
+        assertThat(stats.bytesSaved()).isEqualTo(stats.bytes()).isPositive();
+    }
+
+    @Test
+    void recordsTheResponseSizeOfTheResources() {
+        Patient patient = cache.read(client, "launch", Patient.class, "1");
+
+        assertThat(FhirResourceCache.getResponseSize(patient))
+                .isEqualTo(cache.getStats().bytes())
+                .isPositive();
+        assertThat(FhirResourceCache.getResponseSize(new Patient())).isEqualTo(-1);
+    }
+
+    @Test
+    void replacesModifiedResources() {
+        cache.read(client, "launch", Patient.class, "1");
+        version = 2;
+
+        Patient updated = cache.read(client, "launch", Patient.class, "1");
+
+        assertThat(updated.getIdElement().getVersionIdPart()).isEqualTo("2");
+        assertThat(statuses).containsExactly(200, 200);
+        assertThat(cache.getStats().entries()).isEqualTo(1);
+    }
+
+    @Test
+    void scopesEntriesToTheLaunch() {
+        cache.read(client, "launch", Patient.class, "1");
+        cache.read(client, "other-launch", Patient.class, "1");
+
+        assertThat(statuses).containsExactly(200, 200);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedEntriesBeyondTheBudget() {
+        Patient patient = cache.read(client, "launch", Patient.class, "1");
+        long size = cache.getStats().bytes();
+        ReflectionTestUtils.setField(cache, "maxBytes", size);
+
+        cache.read(client, "other-launch", Patient.class, "1");
+
+        assertThat(cache.getStats().entries()).isEqualTo(1);
+        assertThat(cache.read(client, "launch", Patient.class, "1")).isNotSameAs(patient);
+    }
+
+    private void readPatient(HttpExchange exchange) throws IOException {
+        String etag = "W/\"" + version + "\"";
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            statuses.add(304);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        Patient patient = new Patient();
+        patient.setId("Patient/1/_history/" + version);
+        patient.addName().setFamily("Smith").addGiven("John");
+        byte[] body =
+                fhirContext
+                        .newJsonParser()
+                        .encodeResourceToString(patient)
+                        .getBytes(StandardCharsets.UTF_8);
+
+        statuses.add(200);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
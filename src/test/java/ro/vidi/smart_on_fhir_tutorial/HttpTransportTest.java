@@ -0,0 +1,185 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import org.brotli.dec.BrotliInputStream;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class HttpTransportTest {
+
+    private MockEhrServer ehr;
+
+    private SimpleMeterRegistry registry;
+
+    private EhrCalls ehrCalls;
+
+    private HttpTransport httpTransport;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ehr = new MockEhrServer();
+        ehr.setPatientContacts(50);
+
+        registry = new SimpleMeterRegistry();
+        ehrCalls = TestBeans.ehrCalls(registry);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (httpTransport != null) {
+            httpTransport.close();
+        }
+        ehr.close();
+    }
+
+    @Test
+    void receivesTheResponsesGzipped() {
+        IGenericClient client = fhirClient("gzip", "br");
+
+        Patient patient = readPatient(client, Projection.FULL);
+
+        assertThat(patient.getContact()).hasSize(50);
+        assertThat(wireBytes()).isEqualTo(ehr.getBytesSent());
+        assertThat(wireBytes()).isLessThan(responseBytes() / 4);
+    }
+
+    @Test
+    void decodesTheBrotliResponses() {
+        // over 64 KiB, sent in several meta-blocks
+        ehr.setPatientContacts(400);
+        ehr.setEncodings("br");
+        IGenericClient client = fhirClient("gzip", "br");
+
+        Patient patient = readPatient(client, Projection.FULL);
+
+        assertThat(patient.getContact()).hasSize(400);
+        assertThat(responseBytes()).isGreaterThan(65_536);
+        // stored rather than compressed by the mock EHR
+        assertThat(wireBytes()).isEqualTo(ehr.getBytesSent()).isGreaterThan(responseBytes());
+    }
+
+    @Test
+    void receivesTheResponsesUncompressedWithoutEncodings() {
+        IGenericClient client = fhirClient();
+
+        Patient patient = readPatient(client, Projection.FULL);
+
+        assertThat(patient.getContact()).hasSize(50);
+        assertThat(wireBytes()).isEqualTo(responseBytes()).isEqualTo(ehr.getBytesSent());
+    }
+
+    @Test
+    void readsTheSummaryOfAResource() {
+        IGenericClient client = fhirClient();
+
+        Patient patient = readPatient(client, Projection.summary());
+
+        assertThat(patient.getContact()).isEmpty();
+        assertThat(patient.hasName()).isTrue();
+        assertThat(patient.getMeta().getTag())
+                .extracting(Coding::getCode)
+                .containsExactly("SUBSETTED");
+        assertThat(responseBytes()).isLessThan(1_024);
+    }
+
+    @Test
+    void decodesAStoredBrotliStream() throws IOException {
+        for (int length : List.of(0, 1, 65_536, 65_537, 200_000)) {
+            byte[] bytes = "x".repeat(length).getBytes(StandardCharsets.UTF_8);
+
+            try (BrotliInputStream in =
+                    new BrotliInputStream(
+                            new ByteArrayInputStream(MockEhrServer.encodeBrotliStored(bytes)))) {
+                assertThat(in.readAllBytes()).isEqualTo(bytes);
+            }
+        }
+    }
+
+    @Test
+    void preconnectsToAHost() throws IOException {
+        fhirClient("gzip");
+
+        httpTransport.preconnect(ehr.getBaseUrl());
+
+        assertThat(httpTransport.getPoolStatsPerHost().values())
+                .singleElement()
+                .satisfies(stats -> assertThat(stats.getAvailable()).isEqualTo(1));
+    }
+
+    @Test
+    void doesNotPreconnectThroughAProxy() throws IOException {
+        ProxySelector systemProxySelector = ProxySelector.getDefault();
+        ProxySelector.setDefault(ProxySelector.of(new InetSocketAddress("localhost", 3128)));
+        try {
+            fhirClient("gzip");
+        } finally {
+            ProxySelector.setDefault(systemProxySelector);
+        }
+
+        httpTransport.preconnect(ehr.getBaseUrl());
+
+        assertThat(httpTransport.getPoolStatsPerHost()).isEmpty();
+    }
+
+    private Patient readPatient(IGenericClient client, Projection projection) {
+        try (EhrCalls.Call call = ehrCalls.start(ehr.getBaseUrl(), "read", "Patient")) {
+            return call.success(
+                    projection
+                            .applyTo(
+                                    client.read()
+                                            .resource(Patient.class)
+                                            .withId(MockEhrServer.PATIENT_ID))
+                            .execute());
+        }
+    }
+
+    private IGenericClient fhirClient(String... acceptEncoding) {
+        httpTransport =
+                TestBeans.httpTransport(
+                        transport -> {
+                            ReflectionTestUtils.setField(transport, "maxConnections", 10);
+                            ReflectionTestUtils.setField(transport, "maxConnectionsPerHost", 10);
+                            ReflectionTestUtils.setField(
+                                    transport, "readTimeout", Duration.ofSeconds(30));
+                            ReflectionTestUtils.setField(
+                                    transport, "acceptEncoding", List.of(acceptEncoding));
+                        });
+
+        // not the cached context, whose client factory is shared with the other tests
+        FhirContext fhirContext = FhirContext.forR4();
+        fhirContext.getRestfulClientFactory().setHttpClient(httpTransport.getHttpClient());
+        fhirContext
+                .getRestfulClientFactory()
+                .setServerValidationMode(ServerValidationModeEnum.NEVER);
+        IGenericClient client = fhirContext.newRestfulGenericClient(ehr.getBaseUrl());
+        client.registerInterceptor(new BearerTokenAuthInterceptor(ehr.issueAccessToken()));
+        client.registerInterceptor(ehrCalls.getFhirInterceptor());
+        return client;
+    }
+
+    private long responseBytes() {
+        return (long) registry.get("ehr.calls.response.size").summary().totalAmount();
+    }
+
+    private long wireBytes() {
+        return (long) registry.get("ehr.calls.response.wire.size").summary().totalAmount();
+    }
+}
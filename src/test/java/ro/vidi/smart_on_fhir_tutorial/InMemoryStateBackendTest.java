@@ -0,0 +1,73 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class InMemoryStateBackendTest {
+
+    private InMemoryStateBackend stateBackend;
+
+    @BeforeEach
+    void setUp() {
+        stateBackend = new InMemoryStateBackend();
+        ReflectionTestUtils.setField(stateBackend, "maxSize", 2);
+    }
+
+    @Test
+    void keepsValuesPerNamespace() {
+        stateBackend.put("a", "key", new byte[] {1}, Duration.ofMinutes(1));
+        stateBackend.put("b", "key", new byte[] {2}, Duration.ofMinutes(1));
+
+        assertThat(stateBackend.get("a", "key")).containsExactly(1);
+        assertThat(stateBackend.get("b", "key")).containsExactly(2);
+
+        stateBackend.remove("a", "key");
+
+        assertThat(stateBackend.get("a", "key")).isNull();
+    }
+
+    @Test
+    void ignoresExpiredValues() {
+        stateBackend.put("a", "key", new byte[] {1}, Duration.ofSeconds(-1));
+
+        assertThat(stateBackend.get("a", "key")).isNull();
+    }
+
+    @Test
+    void storesAbsentOrExpiredValuesOnly() {
+        assertThat(stateBackend.putIfAbsent("a", "key", new byte[] {1}, Duration.ofSeconds(-1)))
+                .isTrue();
+        assertThat(stateBackend.putIfAbsent("a", "key", new byte[] {2}, Duration.ofMinutes(1)))
+                .isTrue();
+        assertThat(stateBackend.putIfAbsent("a", "key", new byte[] {3}, Duration.ofMinutes(1)))
+                .isFalse();
+
+        assertThat(stateBackend.get("a", "key")).containsExactly(2);
+    }
+
+    @Test
+    void removesTheExpectedValuesOnly() {
+        stateBackend.put("a", "key", new byte[] {1}, Duration.ofMinutes(1));
+
+        assertThat(stateBackend.removeIfEquals("a", "key", new byte[] {2})).isFalse();
+        assertThat(stateBackend.get("a", "key")).containsExactly(1);
+        assertThat(stateBackend.removeIfEquals("a", "key", new byte[] {1})).isTrue();
+        assertThat(stateBackend.get("a", "key")).isNull();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedValues() {
+        stateBackend.put("a", "first", new byte[] {1}, Duration.ofMinutes(1));
+        stateBackend.put("a", "second", new byte[] {2}, Duration.ofMinutes(1));
+        stateBackend.get("a", "first");
+        stateBackend.put("a", "third", new byte[] {3}, Duration.ofMinutes(1));
+
+        assertThat(stateBackend.get("a", "first")).containsExactly(1);
+        assertThat(stateBackend.get("a", "second")).isNull();
+    }
+}
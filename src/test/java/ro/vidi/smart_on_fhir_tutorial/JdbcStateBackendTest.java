@@ -0,0 +1,126 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Two instances sharing an in-memory H2 database, as two application instances sharing a database.
+ */
+class JdbcStateBackendTest {
+
+    private JdbcTemplate jdbcTemplate;
+
+    private JdbcStateBackend instance1;
+
+    private JdbcStateBackend instance2;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate =
+                new JdbcTemplate(
+                        new DriverManagerDataSource("jdbc:h2:mem:state;DB_CLOSE_DELAY=-1"));
+        instance1 = backend();
+        instance2 = backend();
+    }
+
+    @AfterEach
+    void tearDown() {
+        instance1.shutdown();
+        instance2.shutdown();
+        jdbcTemplate.execute("DROP TABLE app_state");
+    }
+
+    @Test
+    void sharesValuesBetweenInstances() {
+        instance1.put("token", "launch", new byte[] {1, 2, 3}, Duration.ofMinutes(1));
+
+        assertThat(instance2.get("token", "launch")).containsExactly(1, 2, 3);
+
+        instance2.put("token", "launch", new byte[] {4}, Duration.ofMinutes(1));
+
+        assertThat(instance1.get("token", "launch")).containsExactly(4);
+
+        instance1.remove("token", "launch");
+
+        assertThat(instance2.get("token", "launch")).isNull();
+    }
+
+    @Test
+    void ignoresAndDeletesExpiredValues() {
+        instance1.put("token", "expired", new byte[] {1}, Duration.ofSeconds(-1));
+        instance1.put("token", "valid", new byte[] {2}, Duration.ofMinutes(1));
+
+        assertThat(instance2.get("token", "expired")).isNull();
+
+        instance2.deleteExpired();
+
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM app_state", Integer.class))
+                .isEqualTo(1);
+    }
+
+    @Test
+    void grantsALeaseToOneInstanceAtATime() {
+        assertThat(instance1.putIfAbsent("lease", "launch", new byte[0], Duration.ofMinutes(1)))
+                .isTrue();
+        assertThat(instance2.putIfAbsent("lease", "launch", new byte[0], Duration.ofMinutes(1)))
+                .isFalse();
+
+        instance1.remove("lease", "launch");
+
+        assertThat(instance2.putIfAbsent("lease", "launch", new byte[0], Duration.ofSeconds(-1)))
+                .isTrue();
+        // expired, so taken over
+        assertThat(instance1.putIfAbsent("lease", "launch", new byte[0], Duration.ofMinutes(1)))
+                .isTrue();
+    }
+
+    @Test
+    void releasesOnlyTheLeaseItHolds() {
+        assertThat(instance1.putIfAbsent("lease", "launch", new byte[] {1}, Duration.ofSeconds(-1)))
+                .isTrue();
+        // expired while instance 1 was still working, and taken over
+        assertThat(instance2.putIfAbsent("lease", "launch", new byte[] {2}, Duration.ofMinutes(1)))
+                .isTrue();
+
+        assertThat(instance1.removeIfEquals("lease", "launch", new byte[] {1})).isFalse();
+        assertThat(instance1.putIfAbsent("lease", "launch", new byte[] {3}, Duration.ofMinutes(1)))
+                .isFalse();
+        assertThat(instance2.removeIfEquals("lease", "launch", new byte[] {2})).isTrue();
+        assertThat(instance1.get("lease", "launch")).isNull();
+    }
+
+    @Test
+    void storesEncodedTokens() throws Exception {
+        StoredToken token = new StoredToken();
+        token.setAccessToken("access");
+        token.setRefreshToken("refresh");
+        token.setPatient("patient-1");
+        token.setExpiresAt(Instant.now().truncatedTo(ChronoUnit.MILLIS));
+        token.setTokenUrl("https://ehr.example.org/auth/token");
+        token.setClientId("smart-on-fhir-tutorial");
+
+        instance1.put("token", "launch", StateCodec.encode(token), Duration.ofMinutes(1));
+
+        assertThat(StateCodec.decodeStoredToken(instance2.get("token", "launch")))
+                .isEqualTo(token);
+    }
+
+    private JdbcStateBackend backend() {
+        JdbcStateBackend backend = new JdbcStateBackend();
+        ReflectionTestUtils.setField(backend, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(backend, "createTable", true);
+        ReflectionTestUtils.setField(backend, "cleanupInterval", Duration.ofMinutes(5));
+        backend.init();
+        return backend;
+    }
+}
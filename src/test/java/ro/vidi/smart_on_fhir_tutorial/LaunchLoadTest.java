@@ -0,0 +1,446 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Drives full standalone launches against a {@link MockEhrServer}, through the same {@link
+ * OidcClient} and {@link FhirClient} calls as the views: discovery from the {@code
+ * CapabilityStatement}, authorize URL, authorization (the browser part, done with a plain HTTP
+ * client), state resolution, token exchange and patient read.
+ *
+ * <p>Reports the throughput, the latency percentiles of a launch, the heap allocated by the
+ * application for a launch and the EHR calls recorded by {@link EhrCalls}, with their bytes
+ * received before and after decompression. Run with {@code
+ * ./gradlew loadTest}, tuned by the system properties:
+ *
+ * <ul>
+ *   <li>{@code load.launches}: measured launches, after as many warm-up launches
+ *   <li>{@code load.concurrency}: launches running at the same time
+ *   <li>{@code load.virtual-threads}: run each launch, and the EHR calls of the application, on
+ *       virtual threads, as with {@code spring.threads.virtual.enabled} (Java 21+)
+ *   <li>{@code load.outbound-threads}: platform threads of the outbound executor otherwise
+ *   <li>{@code load.latency}: latency of the mock EHR, {@code load.latency-jitter} added at random
+ *   <li>{@code load.failure-rate}: share of the mock EHR responses failing with {@code 503}
+ *   <li>{@code load.accept-encoding}: encodings accepted by the client, {@code gzip} by default,
+ *       empty for none
+ *   <li>{@code load.patient-contacts}: contacts of the patient read, to make it larger
+ * </ul>
+ */
+@Tag("load")
+class LaunchLoadTest {
+
+    private static final String CLIENT_ID = "smart-on-fhir-tutorial";
+
+    private static final Set<String> SCOPES =
+            Set.of("openid", "fhirUser", "launch/patient", "patient/*.r");
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final boolean VIRTUAL_THREADS =
+            Boolean.getBoolean("load.virtual-threads") && Runtime.version().feature() >= 21;
+
+    private MockEhrServer ehr;
+
+    private HttpTransport httpTransport;
+
+    private SimpleMeterRegistry registry;
+
+    private ExecutorService outboundExecutor;
+
+    private TokenStore tokenStore;
+
+    private OidcClient oidcClient;
+
+    private FhirClient fhirClient;
+
+    private TokenValidator tokenValidator;
+
+    /**
+     * Stands for the browser following the authorize URL, the redirect to the callback is read
+     * rather than followed.
+     */
+    private final HttpClient browser =
+            HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NEVER).build();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ehr = new MockEhrServer();
+        ehr.setLatency(
+                Duration.parse(System.getProperty("load.latency", "PT0.005S")),
+                Duration.parse(System.getProperty("load.latency-jitter", "PT0.005S")));
+        ehr.setPatientContacts(Integer.getInteger("load.patient-contacts", 0));
+
+        httpTransport =
+                TestBeans.httpTransport(
+                        transport -> {
+                            ReflectionTestUtils.setField(transport, "maxConnections", 200);
+                            ReflectionTestUtils.setField(
+                                    transport, "readTimeout", Duration.ofSeconds(30));
+                            ReflectionTestUtils.setField(
+                                    transport,
+                                    "acceptEncoding",
+                                    List.of(
+                                            System.getProperty("load.accept-encoding", "gzip")
+                                                    .split(",")));
+                        });
+
+        // not the cached context, whose client factory is shared with the other tests
+        FhirContext fhirContext = FhirContext.forR4();
+        fhirContext.getRestfulClientFactory().setHttpClient(httpTransport.getHttpClient());
+
+        registry = new SimpleMeterRegistry();
+        EhrCalls ehrCalls = TestBeans.ehrCalls(registry);
+        EhrResilience ehrResilience =
+                TestBeans.ehrResilience(
+                        ehrCalls,
+                        registry,
+                        resilience -> {
+                            ReflectionTestUtils.setField(resilience, "maxAttempts", 3);
+                            ReflectionTestUtils.setField(
+                                    resilience, "initialBackoff", Duration.ofMillis(200));
+                            ReflectionTestUtils.setField(
+                                    resilience, "maxTimeout", Duration.ofSeconds(30));
+                        });
+
+        InMemoryStateBackend stateBackend = new InMemoryStateBackend();
+        ReflectionTestUtils.setField(stateBackend, "maxSize", 100_000);
+
+        LaunchStateStore launchStateStore = new LaunchStateStore();
+        ReflectionTestUtils.setField(launchStateStore, "stateBackend", stateBackend);
+        ReflectionTestUtils.setField(launchStateStore, "mode", LaunchStateStore.Mode.OPAQUE);
+        ReflectionTestUtils.setField(launchStateStore, "ttl", Duration.ofHours(8));
+        ReflectionTestUtils.setField(launchStateStore, "hmacKey", "");
+        launchStateStore.init();
+
+        // the same executor as the application, see AppConfig
+        outboundExecutor =
+                VIRTUAL_THREADS
+                        ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                        : Executors.newFixedThreadPool(
+                                Integer.getInteger("load.outbound-threads", 64));
+
+        oidcClient = new OidcClient();
+        ReflectionTestUtils.setField(
+                oidcClient,
+                "environment",
+                new MockEnvironment().withProperty("local.server.port", "8080"));
+        ReflectionTestUtils.setField(oidcClient, "launchStateStore", launchStateStore);
+        ReflectionTestUtils.setField(oidcClient, "httpTransport", httpTransport);
+        ReflectionTestUtils.setField(oidcClient, "outboundExecutor", outboundExecutor);
+        ReflectionTestUtils.setField(oidcClient, "ehrResilience", ehrResilience);
+
+        tokenStore = new TokenStore();
+        ReflectionTestUtils.setField(tokenStore, "oidcClient", oidcClient);
+        ReflectionTestUtils.setField(tokenStore, "outboundExecutor", outboundExecutor);
+        ReflectionTestUtils.setField(tokenStore, "stateBackend", stateBackend);
+        ReflectionTestUtils.setField(tokenStore, "refreshBefore", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(tokenStore, "maxIdle", Duration.ofHours(1));
+        ReflectionTestUtils.setField(tokenStore, "maxAge", Duration.ofHours(8));
+        ReflectionTestUtils.setField(tokenStore, "refreshLease", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(tokenStore, "encryptionKey", "");
+        tokenStore.init();
+
+        FhirResourceCache resourceCache = new FhirResourceCache();
+        ReflectionTestUtils.setField(resourceCache, "fhirContext", fhirContext);
+        ReflectionTestUtils.setField(resourceCache, "maxBytes", 32L * 1024 * 1024);
+
+        fhirClient = new FhirClient();
+        ReflectionTestUtils.setField(fhirClient, "fhirContext", fhirContext);
+        ReflectionTestUtils.setField(fhirClient, "httpTransport", httpTransport);
+        ReflectionTestUtils.setField(fhirClient, "outboundExecutor", outboundExecutor);
+        ReflectionTestUtils.setField(fhirClient, "tokenStore", tokenStore);
+        ReflectionTestUtils.setField(fhirClient, "launchStateStore", launchStateStore);
+        ReflectionTestUtils.setField(fhirClient, "resourceCache", resourceCache);
+        ReflectionTestUtils.setField(fhirClient, "ehrCalls", ehrCalls);
+        ReflectionTestUtils.setField(fhirClient, "ehrResilience", ehrResilience);
+
+        DiscoveryCache discoveryCache = TestBeans.discoveryCache(VIRTUAL_THREADS);
+
+        SmartDiscovery smartDiscovery = new SmartDiscovery();
+        ReflectionTestUtils.setField(smartDiscovery, "fhirClient", fhirClient);
+        ReflectionTestUtils.setField(smartDiscovery, "oidcClient", oidcClient);
+        ReflectionTestUtils.setField(smartDiscovery, "discoveryCache", discoveryCache);
+        ReflectionTestUtils.setField(smartDiscovery, "outboundExecutor", outboundExecutor);
+        ReflectionTestUtils.setField(smartDiscovery, "virtualThreads", VIRTUAL_THREADS);
+        smartDiscovery.init();
+
+        tokenValidator =
+                TestBeans.tokenValidator(smartDiscovery, httpTransport, ehrResilience, 100_000);
+        ReflectionTestUtils.setField(tokenValidator, "outboundExecutor", outboundExecutor);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        tokenStore.shutdown();
+        outboundExecutor.shutdownNow();
+        httpTransport.close();
+        ehr.close();
+    }
+
+    @Test
+    void runsLaunchesAgainstTheMockEhr() throws Exception {
+        int launches = Integer.getInteger("load.launches", 2_000);
+        int concurrency = Integer.getInteger("load.concurrency", 16);
+        ehr.setFailureRate(Double.parseDouble(System.getProperty("load.failure-rate", "0")));
+
+        run("warm-up", launches, concurrency);
+        registry.clear();
+        Result result = run("measured", launches, concurrency);
+
+        if (ehr.getFailures() == 0) {
+            assertThat(result.errors).isEmpty();
+        }
+        assertThat(result.completed + result.failed()).isEqualTo(launches);
+    }
+
+    @Test
+    void reportsTheInjectedFailuresWithoutHanging() throws Exception {
+        ehr.setFailureRate(0.2);
+
+        Result result = run("failures", 200, 8);
+
+        assertThat(result.failed()).isPositive();
+        assertThat(result.completed).isPositive();
+        assertThat(result.completed + result.failed()).isEqualTo(200);
+        assertThat(registry.find("ehr.calls").tag("outcome", "SERVER_ERROR").timers())
+                .isNotEmpty();
+        assertThat(registry.find("ehr.calls.retries").counters()).isNotEmpty();
+    }
+
+    /**
+     * Runs {@code launches} launches, {@code concurrency} at a time, and prints the report.
+     */
+    private Result run(String name, int launches, int concurrency) throws InterruptedException {
+        long[] latencies = new long[launches];
+        long[] allocations = new long[launches];
+        AtomicInteger completed = new AtomicInteger();
+        Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+
+        ExecutorService drivers = driverExecutor(concurrency);
+        long start = System.nanoTime();
+        for (int worker = 0; worker < concurrency; worker++) {
+            drivers.execute(
+                    () -> {
+                        int launch;
+                        while ((launch = next.getAndIncrement()) < launches) {
+                            long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+                            long launchStart = System.nanoTime();
+                            try {
+                                launch();
+                                completed.incrementAndGet();
+                            } catch (Exception e) {
+                                errors.computeIfAbsent(
+                                                e.getClass().getSimpleName(),
+                                                error -> new AtomicLong())
+                                        .incrementAndGet();
+                            }
+                            latencies[launch] = System.nanoTime() - launchStart;
+                            allocations[launch] =
+                                    THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+                        }
+                    });
+        }
+        drivers.shutdown();
+        assertThat(drivers.awaitTermination(5, TimeUnit.MINUTES))
+                .as("launches finished in time")
+                .isTrue();
+        long elapsed = System.nanoTime() - start;
+
+        Result result = new Result(completed.get(), new TreeMap<>());
+        errors.forEach((error, count) -> result.errors.put(error, count.get()));
+        report(name, launches, concurrency, elapsed, latencies, allocations, result);
+        return result;
+    }
+
+    /**
+     * One launch, as a user would go through it.
+     */
+    private void launch() throws Exception {
+        String fhirServerUrl = ehr.getBaseUrl();
+        SmartMetadata smartMetadata = fhirClient.getMetadataSmartUrls(fhirServerUrl);
+
+        AppState appState = new AppState();
+        appState.setFhirServerUrl(fhirServerUrl);
+        appState.setTokenUrl(smartMetadata.getTokenUrl());
+        appState.setClientId(CLIENT_ID);
+        URI authorizationUrl =
+                oidcClient.buildAuthorizationUrl(
+                        fhirServerUrl,
+                        smartMetadata.getAuthorizeUrl(),
+                        CLIENT_ID,
+                        SCOPES,
+                        appState);
+
+        HttpResponse<Void> authorization =
+                browser.send(
+                        HttpRequest.newBuilder(authorizationUrl).build(),
+                        HttpResponse.BodyHandlers.discarding());
+        if (authorization.statusCode() != 302) {
+            throw new IOException("Authorization failed with " + authorization.statusCode());
+        }
+        Map<String, String> callback =
+                query(URI.create(authorization.headers().firstValue("Location").orElseThrow()));
+
+        AppState state = fhirClient.decodeState(callback.get("state"));
+        OIDCTokenResponse tokenResponse =
+                oidcClient.getAccessToken(
+                        state.getTokenUrl(), callback.get("code"), state.getClientId());
+        tokenValidator.validate(state.getFhirServerUrl(), state.getClientId(), tokenResponse);
+        String launchId =
+                tokenStore.put(tokenResponse, state.getTokenUrl(), state.getClientId());
+        try {
+            Patient patient =
+                    fhirClient.getPatient(
+                            state.getFhirServerUrl(),
+                            launchId,
+                            String.valueOf(tokenResponse.getCustomParameters().get("patient")));
+            if (!patient.hasName()) {
+                throw new IllegalStateException("Patient read without name");
+            }
+        } finally {
+            tokenStore.remove(launchId);
+        }
+    }
+
+    /**
+     * Platform threads by default, like the outbound executor of the application.
+     */
+    private static ExecutorService driverExecutor(int concurrency) {
+        return VIRTUAL_THREADS
+                ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(concurrency);
+    }
+
+    private void report(
+            String name,
+            int launches,
+            int concurrency,
+            long elapsedNanos,
+            long[] latencies,
+            long[] allocations,
+            Result result) {
+        Arrays.sort(latencies);
+        // not measured on virtual threads by every JDK
+        boolean allocationMeasured = Arrays.stream(allocations).allMatch(bytes -> bytes >= 0);
+
+        StringBuilder report = new StringBuilder();
+        report.append(
+                String.format(
+                        "%n%s: %d launches, %d concurrent, %s threads on Java %d%n",
+                        name,
+                        launches,
+                        concurrency,
+                        VIRTUAL_THREADS ? "virtual" : "platform",
+                        Runtime.version().feature()));
+        report.append(
+                String.format(
+                        "  throughput  %.1f launches/s, %d completed, %d failed %s%n",
+                        launches / (elapsedNanos / 1e9),
+                        result.completed,
+                        result.failed(),
+                        result.errors.isEmpty() ? "" : result.errors));
+        report.append(
+                String.format(
+                        "  latency     p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                        percentile(latencies, 0.50) / 1e6,
+                        percentile(latencies, 0.99) / 1e6,
+                        latencies[latencies.length - 1] / 1e6));
+        report.append(
+                allocationMeasured
+                        ? String.format(
+                                "  allocation  %.1f KiB per launch%n",
+                                Arrays.stream(allocations).average().orElse(0) / 1024)
+                        : String.format("  allocation  not measured%n"));
+        for (Timer timer : registry.find("ehr.calls").timers()) {
+            report.append(
+                    String.format(
+                            "  %-22s %-8s %6d calls, mean %.1f ms, max %.1f ms%n",
+                            timer.getId().getTag("operation"),
+                            timer.getId().getTag("outcome"),
+                            timer.count(),
+                            timer.mean(TimeUnit.MILLISECONDS),
+                            timer.max(TimeUnit.MILLISECONDS)));
+        }
+        for (DistributionSummary responseSize :
+                registry.find("ehr.calls.response.size").tag("outcome", "SUCCESS").summaries()) {
+            String operation = responseSize.getId().getTag("operation");
+            DistributionSummary wireSize =
+                    registry.find("ehr.calls.response.wire.size")
+                            .tag("outcome", "SUCCESS")
+                            .tag("operation", operation)
+                            .summary();
+            Timer parse =
+                    registry.find("ehr.calls.parse")
+                            .tag("outcome", "SUCCESS")
+                            .tag("operation", operation)
+                            .timer();
+            report.append(
+                    String.format(
+                            "  %-22s %7.0f bytes, %7.0f on the wire, parsed in %.2f ms%n",
+                            operation,
+                            responseSize.mean(),
+                            wireSize != null ? wireSize.mean() : Double.NaN,
+                            parse != null ? parse.mean(TimeUnit.MILLISECONDS) : Double.NaN));
+        }
+        System.out.print(report);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.ceil(percentile * sorted.length) - 1];
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : uri.getRawQuery().split("&")) {
+            int separator = parameter.indexOf('=');
+            parameters.put(
+                    parameter.substring(0, separator),
+                    URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private record Result(int completed, Map<String, Long> errors) {
+
+        long failed() {
+            return errors.values().stream().mapToLong(Long::longValue).sum();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class LaunchStateStoreTest {
+
+    private AppState appState;
+
+    @BeforeEach
+    void setUp() {
+        appState = new AppState();
+        appState.setTokenUrl("https://ehr.example.org/auth/token");
+        appState.setClientId("smart-on-fhir-tutorial");
+        appState.setFhirServerUrl("https://ehr.example.org/fhir");
+    }
+
+    @Test
+    void resolvesOpaqueStates() throws Exception {
+        LaunchStateStore store = store(LaunchStateStore.Mode.OPAQUE, Duration.ofHours(1), "");
+
+        String state = store.issue(appState);
+
+        assertThat(state).hasSize(22);
+        assertThat(store.resolve(state)).isEqualTo(appState).isNotSameAs(appState);
+        assertThatThrownBy(() -> store.resolve("AAAAAAAAAAAAAAAAAAAAAA"))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedOpaqueStates() throws Exception {
+        LaunchStateStore store = store(LaunchStateStore.Mode.OPAQUE, Duration.ofHours(1), "");
+        ReflectionTestUtils.setField(
+                ReflectionTestUtils.getField(store, "stateBackend"), "maxSize", 2);
+
+        String first = store.issue(appState);
+        String second = store.issue(appState);
+        store.resolve(first);
+        store.issue(appState);
+
+        assertThat(store.resolve(first)).isEqualTo(appState);
+        assertThatThrownBy(() -> store.resolve(second)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void rejectsExpiredOpaqueStates() throws Exception {
+        LaunchStateStore store = store(LaunchStateStore.Mode.OPAQUE, Duration.ofSeconds(-1), "");
+
+        String state = store.issue(appState);
+
+        assertThatThrownBy(() -> store.resolve(state)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void resolvesSignedStatesWithAnotherInstanceSharingTheKey() throws Exception {
+        String key = "c2VjcmV0LWtleS1vZi10aGUtbGF1bmNoLXN0YXRlLXN0b3Jl";
+        LaunchStateStore store = store(LaunchStateStore.Mode.SIGNED, Duration.ofHours(1), key);
+
+        String state = store.issue(appState);
+
+        assertThat(store(LaunchStateStore.Mode.SIGNED, Duration.ofHours(1), key).resolve(state))
+                .isEqualTo(appState);
+    }
+
+    @Test
+    void issuesUniqueSignedStates() throws Exception {
+        LaunchStateStore store = store(LaunchStateStore.Mode.SIGNED, Duration.ofHours(1), "");
+
+        String first = store.issue(appState);
+        String second = store.issue(appState);
+
+        assertThat(first).isNotEqualTo(second);
+        assertThat(store.resolve(first)).isEqualTo(store.resolve(second));
+    }
+
+    @Test
+    void rejectsTamperedSignedStates() throws Exception {
+        LaunchStateStore store = store(LaunchStateStore.Mode.SIGNED, Duration.ofHours(1), "");
+        String state = store.issue(appState);
+        String tampered = (state.charAt(0) == 'A' ? 'B' : 'A') + state.substring(1);
+
+        assertThatThrownBy(() -> store.resolve(tampered)).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> store.resolve("not-a-state")).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void rejectsExpiredSignedStates() throws Exception {
+        LaunchStateStore store = store(LaunchStateStore.Mode.SIGNED, Duration.ofSeconds(-1), "");
+
+        String state = store.issue(appState);
+
+        assertThatThrownBy(() -> store.resolve(state))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Expired");
+    }
+
+    private static LaunchStateStore store(LaunchStateStore.Mode mode, Duration ttl, String key)
+            throws Exception {
+        InMemoryStateBackend stateBackend = new InMemoryStateBackend();
+        ReflectionTestUtils.setField(stateBackend, "maxSize", 100);
+
+        LaunchStateStore store = new LaunchStateStore();
+        ReflectionTestUtils.setField(store, "stateBackend", stateBackend);
+        ReflectionTestUtils.setField(store, "mode", mode);
+        ReflectionTestUtils.setField(store, "ttl", ttl);
+        ReflectionTestUtils.setField(store, "hmacKey", key);
+        store.init();
+        return store;
+    }
+}
@@ -0,0 +1,175 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class LaunchTracingTest {
+
+    private final InMemorySpanExporter spanExporter = InMemorySpanExporter.create();
+
+    private OpenTelemetrySdk openTelemetry;
+
+    private HttpServer server;
+
+    private volatile String receivedTraceParent;
+
+    private HttpTransport httpTransport;
+
+    private EhrCalls ehrCalls;
+
+    private LaunchTracing launchTracing;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        openTelemetry =
+                OpenTelemetrySdk.builder()
+                        .setTracerProvider(
+                                SdkTracerProvider.builder()
+                                        .addSpanProcessor(SimpleSpanProcessor.create(spanExporter))
+                                        .build())
+                        .setPropagators(
+                                ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+                        .build();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(
+                "/token",
+                exchange -> {
+                    receivedTraceParent = exchange.getRequestHeaders().getFirst("traceparent");
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                });
+        server.start();
+
+        httpTransport =
+                TestBeans.httpTransport(
+                        transport ->
+                                ReflectionTestUtils.setField(
+                                        transport, "openTelemetry", openTelemetry));
+
+        ehrCalls = TestBeans.ehrCalls(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(ehrCalls, "openTelemetry", openTelemetry);
+
+        launchTracing = new LaunchTracing();
+        ReflectionTestUtils.setField(launchTracing, "openTelemetry", openTelemetry);
+
+        executor = Context.taskWrapping(Executors.newFixedThreadPool(2));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        executor.shutdownNow();
+        httpTransport.close();
+        server.stop(0);
+        openTelemetry.close();
+    }
+
+    @Test
+    void followsTheLaunchThroughTheStateUpToTheEhr() throws Exception {
+        Span launch = launchTracing.startLaunch();
+        AppState appState = new AppState();
+        appState.setFhirServerUrl("http://127.0.0.1/fhir");
+        appState.setTraceParent(launchTracing.getTraceParent(launch));
+        launch.end();
+
+        // the state comes back in another request, possibly to another instance
+        AppState resolved = StateCodec.decodeAppState(StateCodec.encode(appState));
+
+        String tokenUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/token";
+        launchTracing
+                .traceAsync(
+                        "smart.launch.callback",
+                        resolved,
+                        () -> CompletableFuture.supplyAsync(() -> exchange(tokenUrl), executor))
+                .join();
+
+        List<SpanData> spans = spanExporter.getFinishedSpanItems();
+        SpanData root = span(spans, "smart.launch");
+        SpanData callback = span(spans, "smart.launch.callback");
+        SpanData tokenExchange = span(spans, "ehr.token-exchange");
+
+        assertThat(spans)
+                .extracting(SpanData::getTraceId)
+                .containsOnly(root.getTraceId());
+        assertThat(callback.getParentSpanId()).isEqualTo(root.getSpanId());
+        assertThat(tokenExchange.getParentSpanId()).isEqualTo(callback.getSpanId());
+        assertThat(tokenExchange.getKind()).isEqualTo(SpanKind.CLIENT);
+        assertThat(receivedTraceParent)
+                .isEqualTo("00-" + root.getTraceId() + "-" + tokenExchange.getSpanId() + "-01");
+    }
+
+    @Test
+    void startsANewTraceForAStateWithoutTraceParent() throws Exception {
+        AppState appState = new AppState();
+        appState.setFhirServerUrl("http://127.0.0.1/fhir");
+        byte[] encoded = StateCodec.encode(appState);
+        // version 1 had no trace parent, the last field of version 2
+        byte[] version1 = Arrays.copyOf(encoded, encoded.length - Integer.BYTES);
+        version1[0] = 1;
+
+        AppState resolved = StateCodec.decodeAppState(version1);
+        assertThat(resolved.getFhirServerUrl()).isEqualTo("http://127.0.0.1/fhir");
+        assertThat(resolved.getTraceParent()).isNull();
+
+        launchTracing.trace("smart.launch.search", resolved, () -> "rows");
+
+        SpanData search = span(spanExporter.getFinishedSpanItems(), "smart.launch.search");
+        assertThat(search.getParentSpanContext().isValid()).isFalse();
+    }
+
+    @Test
+    void sendsNoTraceContextWhenTracingIsDisabled() {
+        LaunchTracing disabled = new LaunchTracing();
+        ReflectionTestUtils.setField(disabled, "openTelemetry", OpenTelemetry.noop());
+
+        assertThat(disabled.getTraceParent(disabled.startLaunch())).isNull();
+    }
+
+    private String exchange(String tokenUrl) {
+        try (EhrCalls.Call call = ehrCalls.start(tokenUrl, "token-exchange", null)) {
+            return call.success(
+                    httpTransport
+                            .send(new HTTPRequest(HTTPRequest.Method.GET, new URL(tokenUrl)))
+                            .getContent());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static SpanData span(List<SpanData> spans, String name) {
+        return spans.stream()
+                .filter(span -> span.getName().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new AssertionError("No span " + name + " in " + spans));
+    }
+}
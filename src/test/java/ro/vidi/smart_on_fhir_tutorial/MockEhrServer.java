@@ -0,0 +1,681 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for a SMART enabled EHR, so launches can be run without {@code
+ * launch.smarthealthit.org}:
+ *
+ * <ul>
+ *   <li>{@code /fhir/metadata}, {@code /fhir/.well-known/smart-configuration} and {@code
+ *       /fhir/.well-known/openid-configuration} advertise the endpoints below
+ *   <li>{@code /auth/authorize} approves every request, redirecting at once to the {@code
+ *       redirect_uri} with a code
+ *   <li>{@code /auth/token} exchanges the codes and refresh tokens for access tokens of the
+ *       patient {@link #PATIENT_ID}, with an ID token signed by a key of {@code /auth/jwks}
+ *   <li>{@code /fhir/Patient/[id]} returns the patient to the holders of an access token,
+ *       answering {@code 304} to the conditional reads of the current version, and applying the
+ *       {@code _summary} and {@code _elements} parameters
+ *   <li>{@code /fhir/[type]} searches and {@code batch} Bundles posted to {@code /fhir} find no
+ *       resources, see {@link #setBatchStatus} and {@link #setFailingSearches}
+ * </ul>
+ *
+ * Every response is delayed by {@link #setLatency latency}, and a share of them fails with {@code
+ * 503}, see {@link #setFailureRate}. The responses are compressed with the first of the {@link
+ * #setEncodings encodings} accepted by the client.
+ *
+ * <p>Run {@code ./gradlew mockEhr} to start it on port 8090, for instance to use it from the app
+ * or from the Bruno collection in {@code api/SmartOnFHIR}.
+ */
+class MockEhrServer implements AutoCloseable {
+
+    static final String PATIENT_ID = "mock-patient";
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Set<String> codes = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> accessTokens = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> refreshTokens = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private volatile Duration latency = Duration.ZERO;
+
+    private volatile Duration latencyJitter = Duration.ZERO;
+
+    private volatile double failureRate;
+
+    private volatile List<String> encodings = List.of("gzip");
+
+    private volatile int patientContacts;
+
+    private volatile boolean openIdConfigurationPublished = true;
+
+    private volatile int batchStatus = 200;
+
+    private volatile Set<String> failingSearches = Set.of();
+
+    /**
+     * Signing key first, followed by the previous key still published after a {@link #rotateKey}.
+     */
+    private volatile List<RSAKey> keys = List.of(newKey());
+
+    MockEhrServer() throws IOException {
+        this(0);
+    }
+
+    MockEhrServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/fhir/metadata", handler("metadata", this::metadata));
+        server.createContext(
+                "/fhir/.well-known/smart-configuration",
+                handler("smart-configuration", this::smartConfiguration));
+        server.createContext(
+                "/fhir/.well-known/openid-configuration",
+                handler("openid-configuration", this::openIdConfiguration));
+        server.createContext("/fhir/Patient/", handler("patient", this::patient));
+        HttpHandler batch = handler("batch", this::batch);
+        HttpHandler search = handler("search", this::search);
+        server.createContext(
+                "/fhir",
+                exchange ->
+                        ("POST".equals(exchange.getRequestMethod()) ? batch : search)
+                                .handle(exchange));
+        server.createContext("/auth/authorize", handler("authorize", this::authorize));
+        server.createContext("/auth/token", handler("token", this::token));
+        server.createContext("/auth/jwks", handler("jwks", this::jwks));
+        server.start();
+    }
+
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    /**
+     * Delays each response by {@code latency} plus a random duration up to {@code jitter}.
+     */
+    void setLatency(Duration latency, Duration jitter) {
+        this.latency = latency;
+        this.latencyJitter = jitter;
+    }
+
+    /**
+     * @param failureRate share of the requests answered with {@code 503}, from 0 to 1
+     */
+    void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @param encodings content encodings used for the responses, by preference, among {@code gzip}
+     *     and {@code br}; none to always send them uncompressed
+     */
+    void setEncodings(String... encodings) {
+        this.encodings = List.of(encodings);
+    }
+
+    /**
+     * @param patientContacts contacts added to the patient, to make it larger; they are left out
+     *     by {@code _summary=true}
+     */
+    void setPatientContacts(int patientContacts) {
+        this.patientContacts = patientContacts;
+    }
+
+    /**
+     * @param published false to answer {@code 404} to {@code .well-known/openid-configuration}, as
+     *     the SMART servers not supporting OpenID discovery
+     */
+    void setOpenIdConfigurationPublished(boolean published) {
+        this.openIdConfigurationPublished = published;
+    }
+
+    /**
+     * @param batchStatus status answered to the {@code batch} Bundles, {@code 200} to run their
+     *     searches
+     */
+    void setBatchStatus(int batchStatus) {
+        this.batchStatus = batchStatus;
+    }
+
+    /**
+     * @param resourceTypes resource types whose searches fail with {@code 500}, alone or as an
+     *     entry of a batch
+     */
+    void setFailingSearches(String... resourceTypes) {
+        this.failingSearches = Set.of(resourceTypes);
+    }
+
+    /**
+     * @return bytes of the response bodies sent, once compressed
+     */
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    long getRequests(String endpoint) {
+        AtomicLong count = requests.get(endpoint);
+        return count != null ? count.get() : 0;
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Signs the next ID tokens with a new key, publishing the current one as well.
+     */
+    void rotateKey() {
+        keys = List.of(newKey(), keys.get(0));
+    }
+
+    /**
+     * @return an ID token of {@link #PATIENT_ID} for the client, signed with the current key
+     */
+    String issueIdToken(String clientId) {
+        return issueIdToken(clientId, keys.get(0));
+    }
+
+    String issueIdToken(String clientId, RSAKey key) {
+        return sign(
+                new JWTClaimsSet.Builder()
+                        .issuer(getBaseUrl())
+                        .subject(PATIENT_ID)
+                        .audience(clientId)
+                        .issueTime(new Date())
+                        .expirationTime(new Date(System.currentTimeMillis() + 3_600_000))
+                        .claim("fhirUser", "Patient/" + PATIENT_ID)
+                        .build(),
+                key);
+    }
+
+    /**
+     * @return an access token in the JWT format, for the audience, signed with the current key
+     */
+    String issueJwtAccessToken(String audience) {
+        return issueJwtAccessToken(audience, keys.get(0));
+    }
+
+    String issueJwtAccessToken(String audience, RSAKey key) {
+        return sign(
+                new JWTClaimsSet.Builder()
+                        .issuer(getBaseUrl())
+                        .subject(PATIENT_ID)
+                        .audience(audience)
+                        .issueTime(new Date())
+                        .expirationTime(new Date(System.currentTimeMillis() + 3_600_000))
+                        .claim("scope", "launch/patient patient/*.read")
+                        .build(),
+                key);
+    }
+
+    private static String sign(JWTClaimsSet claims, RSAKey key) {
+        SignedJWT jwt =
+                new SignedJWT(
+                        new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(),
+                        claims);
+        try {
+            jwt.sign(new RSASSASigner(key));
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+        return jwt.serialize();
+    }
+
+    /**
+     * @return an access token granted without going through the authorization
+     */
+    String issueAccessToken() {
+        String accessToken = UUID.randomUUID().toString();
+        accessTokens.add(accessToken);
+        return accessToken;
+    }
+
+    static RSAKey newKey() {
+        try {
+            return new RSAKeyGenerator(2048).keyID(UUID.randomUUID().toString()).generate();
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private HttpHandler handler(String endpoint, HttpHandler handler) {
+        return exchange -> {
+            requests.computeIfAbsent(endpoint, e -> new AtomicLong()).incrementAndGet();
+            try {
+                delay();
+                if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                    failures.incrementAndGet();
+                    send(exchange, 503, "application/fhir+json", OPERATION_OUTCOME);
+                    return;
+                }
+                handler.handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private void delay() throws InterruptedException {
+        long nanos = latency.toNanos();
+        if (!latencyJitter.isZero()) {
+            nanos += ThreadLocalRandom.current().nextLong(latencyJitter.toNanos());
+        }
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+    private void metadata(HttpExchange exchange) throws IOException {
+        String capabilityStatement =
+                """
+                {"resourceType":"CapabilityStatement","status":"active","kind":"instance",\
+                "fhirVersion":"4.0.1","format":["json"],"rest":[{"mode":"server",\
+                "security":{"extension":[{"url":"%s","extension":[\
+                {"url":"authorize","valueUri":"%s"},{"url":"token","valueUri":"%s"}]}]},\
+                "resource":[{"type":"Patient","interaction":[{"code":"read"}]}]}]}"""
+                        .formatted(
+                                SmartExtensionExtractor.OAUTH_URIS_EXTENSION_URL,
+                                authorizeUrl(),
+                                tokenUrl());
+        send(exchange, 200, "application/fhir+json", capabilityStatement);
+    }
+
+    private void smartConfiguration(HttpExchange exchange) throws IOException {
+        send(
+                exchange,
+                200,
+                "application/json",
+                """
+                {"issuer":"%s","jwks_uri":"%s","authorization_endpoint":"%s",\
+                "token_endpoint":"%s","capabilities":["launch-standalone","client-public"]}"""
+                        .formatted(getBaseUrl(), jwksUrl(), authorizeUrl(), tokenUrl()));
+    }
+
+    private void openIdConfiguration(HttpExchange exchange) throws IOException {
+        if (!openIdConfigurationPublished) {
+            send(exchange, 404, "text/plain", "Not found");
+            return;
+        }
+        send(
+                exchange,
+                200,
+                "application/json",
+                """
+                {"issuer":"%s","authorization_endpoint":"%s","token_endpoint":"%s",\
+                "jwks_uri":"%s","response_types_supported":["code"],\
+                "subject_types_supported":["public"],\
+                "id_token_signing_alg_values_supported":["RS256"]}"""
+                        .formatted(
+                                getBaseUrl(),
+                                authorizeUrl(),
+                                tokenUrl(),
+                                jwksUrl()));
+    }
+
+    private void authorize(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+        String redirectUri = query.get("redirect_uri");
+        if (redirectUri == null || !"code".equals(query.get("response_type"))) {
+            send(exchange, 400, "text/plain", "Invalid authorization request");
+            return;
+        }
+
+        String code = UUID.randomUUID().toString();
+        codes.add(code);
+        String location = redirectUri + (redirectUri.contains("?") ? "&" : "?") + "code=" + code;
+        if (query.get("state") != null) {
+            location += "&state=" + URLEncoder.encode(query.get("state"), StandardCharsets.UTF_8);
+        }
+        exchange.getResponseHeaders().add("Location", location);
+        exchange.sendResponseHeaders(302, -1);
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        Map<String, String> form =
+                parseForm(
+                        new String(
+                                exchange.getRequestBody().readAllBytes(),
+                                StandardCharsets.UTF_8));
+        boolean granted =
+                switch (String.valueOf(form.get("grant_type"))) {
+                    case "authorization_code" -> codes.remove(form.get("code"));
+                    case "refresh_token" -> refreshTokens.remove(form.get("refresh_token"));
+                    default -> false;
+                };
+        if (!granted) {
+            send(exchange, 400, "application/json", "{\"error\":\"invalid_grant\"}");
+            return;
+        }
+
+        String accessToken = UUID.randomUUID().toString();
+        String refreshToken = UUID.randomUUID().toString();
+        accessTokens.add(accessToken);
+        refreshTokens.add(refreshToken);
+        String idToken = issueIdToken(form.get("client_id"));
+        send(
+                exchange,
+                200,
+                "application/json",
+                """
+                {"access_token":"%s","token_type":"Bearer","expires_in":3600,\
+                "refresh_token":"%s","id_token":"%s",\
+                "scope":"openid fhirUser launch/patient patient/*.r","patient":"%s"}"""
+                        .formatted(accessToken, refreshToken, idToken, PATIENT_ID));
+    }
+
+    private void jwks(HttpExchange exchange) throws IOException {
+        List<JWK> publicKeys = keys.stream().map(key -> (JWK) key.toPublicJWK()).toList();
+        send(exchange, 200, "application/json", new JWKSet(publicKeys).toString());
+    }
+
+    private void patient(HttpExchange exchange) throws IOException {
+        if (!isAuthorized(exchange)) {
+            send(exchange, 401, "application/fhir+json", OPERATION_OUTCOME);
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        String id = path.substring(path.lastIndexOf('/') + 1);
+        if (!PATIENT_ID.equals(id)) {
+            send(exchange, 404, "application/fhir+json", OPERATION_OUTCOME);
+            return;
+        }
+
+        exchange.getResponseHeaders().add("ETag", "W/\"1\"");
+        if ("W/\"1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        send(exchange, 200, "application/fhir+json", patientJson(exchange));
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        if (!isAuthorized(exchange)) {
+            send(exchange, 401, "application/fhir+json", OPERATION_OUTCOME);
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (failingSearches.contains(path.substring(path.lastIndexOf('/') + 1))) {
+            send(exchange, 500, "application/fhir+json", OPERATION_OUTCOME);
+            return;
+        }
+        send(exchange, 200, "application/fhir+json", EMPTY_SEARCH_SET);
+    }
+
+    /**
+     * Answers each search of the batch in an entry, in the order of the request entries.
+     */
+    private void batch(HttpExchange exchange) throws IOException {
+        if (!isAuthorized(exchange)) {
+            send(exchange, 401, "application/fhir+json", OPERATION_OUTCOME);
+            return;
+        }
+        if (batchStatus != 200) {
+            send(exchange, batchStatus, "application/fhir+json", OPERATION_OUTCOME);
+            return;
+        }
+
+        String bundle =
+                new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        List<String> entries = new ArrayList<>();
+        Matcher url = BATCH_ENTRY_URL.matcher(bundle);
+        while (url.find()) {
+            entries.add(
+                    failingSearches.contains(url.group(1))
+                            ? "{\"response\":{\"status\":\"500 Internal Server Error\","
+                                    + "\"outcome\":"
+                                    + OPERATION_OUTCOME
+                                    + "}}"
+                            : "{\"resource\":"
+                                    + EMPTY_SEARCH_SET
+                                    + ",\"response\":{\"status\":\"200 OK\"}}");
+        }
+        send(
+                exchange,
+                200,
+                "application/fhir+json",
+                "{\"resourceType\":\"Bundle\",\"type\":\"batch-response\",\"entry\":["
+                        + String.join(",", entries)
+                        + "]}");
+    }
+
+    private boolean isAuthorized(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        return authorization != null
+                && accessTokens.contains(authorization.substring("Bearer ".length()));
+    }
+
+    /**
+     * The patient, with the elements picked by the {@code _summary} and {@code _elements}
+     * parameters if any. The elements left out are reported by a {@code SUBSETTED} tag.
+     */
+    private String patientJson(HttpExchange exchange) {
+        Map<String, String> elements = new LinkedHashMap<>();
+        elements.put("name", "[{\"family\":\"Mock\",\"given\":[\"Patient\"]}]");
+        elements.put("gender", "\"unknown\"");
+        elements.put("birthDate", "\"1970-01-01\"");
+        if (patientContacts > 0) {
+            String contact =
+                    """
+                    {"relationship":[{"coding":[{"system":\
+                    "http://terminology.hl7.org/CodeSystem/v2-0131","code":"N"}]}],\
+                    "name":{"family":"Contact","given":["Mock"]},\
+                    "telecom":[{"system":"phone","value":"+1-555-0100","use":"home"}],\
+                    "address":{"line":["1 Main Street"],"city":"Springfield","country":"US"}}""";
+            elements.put(
+                    "contact",
+                    Collections.nCopies(patientContacts, contact).stream()
+                            .collect(Collectors.joining(",", "[", "]")));
+        }
+
+        Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+        Set<String> kept = elements.keySet();
+        if ("true".equals(query.get("_summary"))) {
+            kept = Set.of("name", "gender", "birthDate");
+        } else if (query.get("_elements") != null) {
+            kept = Set.copyOf(Arrays.asList(query.get("_elements").split(",")));
+        }
+        boolean subsetted = !kept.containsAll(elements.keySet());
+
+        StringBuilder patient = new StringBuilder();
+        patient.append(
+                """
+                {"resourceType":"Patient","id":"%s",\
+                "meta":{"versionId":"1","lastUpdated":"2024-01-01T00:00:00.000+00:00"%s}"""
+                        .formatted(
+                                PATIENT_ID,
+                                subsetted ? ",\"tag\":[" + SUBSETTED_TAG + "]" : ""));
+        for (Map.Entry<String, String> element : elements.entrySet()) {
+            if (kept.contains(element.getKey())) {
+                patient.append(",\"")
+                        .append(element.getKey())
+                        .append("\":")
+                        .append(element.getValue());
+            }
+        }
+        return patient.append('}').toString();
+    }
+
+    private String authorizeUrl() {
+        return getBaseUrl().replace("/fhir", "/auth/authorize");
+    }
+
+    private String tokenUrl() {
+        return getBaseUrl().replace("/fhir", "/auth/token");
+    }
+
+    private String jwksUrl() {
+        return getBaseUrl().replace("/fhir", "/auth/jwks");
+    }
+
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> parameters = new HashMap<>();
+        if (form == null || form.isEmpty()) {
+            return parameters;
+        }
+        for (String parameter : form.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(
+                        URLDecoder.decode(
+                                parameter.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(
+                                parameter.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+        String encoding =
+                negotiateEncoding(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        if (encoding != null) {
+            bytes = "br".equals(encoding) ? encodeBrotliStored(bytes) : gzip(bytes);
+            exchange.getResponseHeaders().add("Content-Encoding", encoding);
+        }
+        bytesSent.addAndGet(bytes.length);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return the first of the {@link #encodings} accepted by the client, null for none
+     */
+    private String negotiateEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Set<String> accepted =
+                Arrays.stream(acceptEncoding.split(","))
+                        .filter(coding -> !coding.replace(" ", "").endsWith(";q=0"))
+                        .map(coding -> coding.split(";")[0].trim().toLowerCase())
+                        .collect(Collectors.toSet());
+        return encodings.stream().filter(accepted::contains).findFirst().orElse(null);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 32);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Encodes the bytes as a Brotli stream of uncompressed meta-blocks, valid for any decoder but
+     * not smaller: no Brotli encoder is at hand in the JDK, and the tests are about decoding.
+     */
+    static byte[] encodeBrotliStored(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 16);
+        // the bits of the headers, written from the least significant one; WBITS 16 is a 0 bit
+        int bits = 0;
+        int bitCount = 1;
+        for (int offset = 0; offset < bytes.length; offset += 65536) {
+            int length = Math.min(65536, bytes.length - offset);
+            // ISLAST 0, MNIBBLES 0 for 4 nibbles, MLEN - 1 on 16 bits, ISUNCOMPRESSED 1
+            bits |= ((length - 1) << 3 | 1 << 19) << bitCount;
+            bitCount += 20;
+            // the uncompressed data starts on the next byte
+            for (; bitCount > 0; bitCount -= 8, bits >>>= 8) {
+                out.write(bits & 0xff);
+            }
+            bits = 0;
+            bitCount = 0;
+            out.write(bytes, offset, length);
+        }
+        // ISLAST 1, ISLASTEMPTY 1
+        bits |= 0b11 << bitCount;
+        bitCount += 2;
+        for (; bitCount > 0; bitCount -= 8, bits >>>= 8) {
+            out.write(bits & 0xff);
+        }
+        return out.toByteArray();
+    }
+
+    private static final String SUBSETTED_TAG =
+            "{\"system\":\"http://terminology.hl7.org/CodeSystem/v3-ObservationValue\","
+                    + "\"code\":\"SUBSETTED\"}";
+
+    private static final String EMPTY_SEARCH_SET =
+            "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":0}";
+
+    /**
+     * Resource type searched by an entry of a {@code batch} Bundle.
+     */
+    private static final Pattern BATCH_ENTRY_URL =
+            Pattern.compile("\"url\"\\s*:\\s*\"(\\w+)\\?");
+
+    private static final String OPERATION_OUTCOME =
+            "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\","
+                    + "\"code\":\"transient\"}]}";
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        MockEhrServer server =
+                new MockEhrServer(args.length > 0 ? Integer.parseInt(args[0]) : 8090);
+        System.out.println("Mock EHR listening at " + server.getBaseUrl());
+    }
+}
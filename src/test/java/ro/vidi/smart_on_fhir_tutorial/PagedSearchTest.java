@@ -0,0 +1,141 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+
+class PagedSearchTest {
+
+    private final List<String> requestedUrls = new ArrayList<>();
+
+    /**
+     * 25 results in pages of 10, linked by {@code next} URLs of the form {@code page-N}.
+     */
+    private Bundle loadPage(String url) {
+        requestedUrls.add(url);
+        int page = url.startsWith("page-") ? Integer.parseInt(url.substring(5)) : 0;
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(25);
+        for (int i = page * 10; i < Math.min(25, page * 10 + 10); i++) {
+            Observation observation = new Observation();
+            observation.setId("obs-" + i);
+            bundle.addEntry().setResource(observation);
+        }
+        if (page < 2) {
+            bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("page-" + (page + 1));
+        }
+        return bundle;
+    }
+
+    /**
+     * The same 25 results, in pages of 4 although 10 were asked for.
+     */
+    private Bundle loadShortPage(String url) {
+        requestedUrls.add(url);
+        int page = url.startsWith("page-") ? Integer.parseInt(url.substring(5)) : 0;
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        for (int i = page * 4; i < Math.min(25, page * 4 + 4); i++) {
+            Observation observation = new Observation();
+            observation.setId("obs-" + i);
+            bundle.addEntry().setResource(observation);
+        }
+        if (page < 6) {
+            bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("page-" + (page + 1));
+        }
+        return bundle;
+    }
+
+    @Test
+    void requestsNothingUntilRowsAreFetched() {
+        new PagedSearch("Observation?patient=1", 10, 2, this::loadPage);
+
+        assertThat(requestedUrls).isEmpty();
+    }
+
+    @Test
+    void fetchesRowsAcrossPages() {
+        PagedSearch search = new PagedSearch("Observation?patient=1", 10, 2, this::loadPage);
+
+        List<PagedSearch.Row> rows = search.fetch(8, 5);
+
+        assertThat(rows)
+                .extracting(PagedSearch.Row::id)
+                .containsExactly("obs-8", "obs-9", "obs-10", "obs-11", "obs-12");
+        assertThat(requestedUrls).containsExactly("Observation?patient=1&_count=10", "page-1");
+        assertThat(search.getTotal()).isEqualTo(25);
+    }
+
+    @Test
+    void stopsAtTheLastPage() {
+        PagedSearch search = new PagedSearch("Observation?patient=1", 10, 2, this::loadPage);
+
+        assertThat(search.fetch(20, 10)).hasSize(5);
+        assertThat(search.fetch(30, 10)).isEmpty();
+        assertThat(requestedUrls).hasSize(3);
+    }
+
+    @Test
+    void prefetchesThePageOfTheNextRows() {
+        PagedSearch search = new PagedSearch("Observation?patient=1", 10, 2, this::loadPage);
+        search.fetch(0, 10);
+
+        search.prefetch(10);
+        search.prefetch(10);
+        List<PagedSearch.Row> rows = search.fetch(10, 10);
+
+        assertThat(rows).extracting(PagedSearch.Row::id).startsWith("obs-10").hasSize(10);
+        assertThat(requestedUrls).containsExactly("Observation?patient=1&_count=10", "page-1");
+        // past the end, the last page is only read to find where the results end
+        search.prefetch(30);
+        assertThat(requestedUrls).hasSize(3);
+    }
+
+    @Test
+    void reloadsEvictedPages() {
+        PagedSearch search = new PagedSearch("Observation?patient=1", 10, 2, this::loadPage);
+
+        search.fetch(0, 10);
+        search.fetch(10, 10);
+        search.fetch(0, 10);
+        search.fetch(20, 10);
+        search.fetch(10, 10);
+
+        assertThat(requestedUrls)
+                .containsExactly(
+                        "Observation?patient=1&_count=10", "page-1", "page-2", "page-1");
+    }
+
+    @Test
+    void followsPagesSmallerThanRequested() {
+        PagedSearch search = new PagedSearch("Observation?patient=1", 10, 2, this::loadShortPage);
+
+        assertThat(search.fetch(0, 10))
+                .extracting(PagedSearch.Row::id)
+                .containsExactly(
+                        "obs-0", "obs-1", "obs-2", "obs-3", "obs-4", "obs-5", "obs-6", "obs-7",
+                        "obs-8", "obs-9");
+        assertThat(search.fetch(10, 10))
+                .extracting(PagedSearch.Row::id)
+                .startsWith("obs-10")
+                .endsWith("obs-19")
+                .hasSize(10);
+        assertThat(search.fetch(20, 10))
+                .extracting(PagedSearch.Row::id)
+                .containsExactly("obs-20", "obs-21", "obs-22", "obs-23", "obs-24");
+        assertThat(search.fetch(5, 2))
+                .extracting(PagedSearch.Row::id)
+                .containsExactly("obs-5", "obs-6");
+        assertThat(requestedUrls)
+                .startsWith("Observation?patient=1&_count=10", "page-1", "page-2")
+                .contains("page-6");
+    }
+}
@@ -0,0 +1,81 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import java.util.List;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.junit.jupiter.api.Test;
+
+class ResourceNodeTest {
+
+    @Test
+    void showsTheElementsOfAResource() {
+        Patient patient = new Patient();
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.addName().setFamily("Chalmers").addGiven("Peter").addGiven("James");
+
+        ResourceNode root = ResourceNode.of(patient);
+        List<ResourceNode> children = root.children();
+
+        assertThat(children).extracting(ResourceNode::name).containsExactly("name", "gender");
+        assertThat(children.get(1).value()).isEqualTo("female");
+        assertThat(children.get(1).hasChildren()).isFalse();
+
+        ResourceNode names = children.get(0);
+        assertThat(names.value()).isEqualTo("[1]");
+        ResourceNode name = names.children().get(0);
+        assertThat(name.path()).isEqualTo("Patient.name[0]");
+        assertThat(name.value()).isEqualTo("HumanName");
+
+        ResourceNode given = name.children().get(1);
+        assertThat(given.path()).isEqualTo("Patient.name[0].given");
+        assertThat(given.children())
+                .extracting(ResourceNode::value)
+                .containsExactly("Peter", "James");
+    }
+
+    @Test
+    void namesTheChoiceElementsByType() {
+        Observation observation = new Observation();
+        observation.setValue(new Quantity(72).setUnit("kg"));
+
+        ResourceNode value =
+                ResourceNode.of(observation).children().stream()
+                        .filter(node -> node.name().startsWith("value"))
+                        .findFirst()
+                        .orElseThrow();
+
+        assertThat(value.name()).isEqualTo("valueQuantity");
+        assertThat(value.children())
+                .extracting(ResourceNode::name)
+                .containsExactly("value", "unit");
+    }
+
+    @Test
+    void showsTheElementsOfAJsonDocument() throws Exception {
+        ResourceNode root =
+                ResourceNode.parse(
+                        "metadata",
+                        """
+                        {
+                          "authorization_endpoint": "https://ehr.example/authorize",
+                          "capabilities": ["launch-ehr", "client-public"]
+                        }
+                        """);
+
+        assertThat(root.childCount()).isEqualTo(2);
+        ResourceNode capabilities = root.children().get(1);
+        assertThat(capabilities.path()).isEqualTo("metadata.capabilities");
+        assertThat(capabilities.value()).isEqualTo("[2]");
+        assertThat(capabilities.children())
+                .extracting(ResourceNode::path, ResourceNode::value)
+                .containsExactly(
+                        tuple("metadata.capabilities[0]", "launch-ehr"),
+                        tuple("metadata.capabilities[1]", "client-public"));
+    }
+}
@@ -0,0 +1,88 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class SessionFootprintTest {
+
+    private SimpleMeterRegistry registry;
+
+    private SessionFootprint sessionFootprint;
+
+    private final List<String> dropped = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        sessionFootprint = new SessionFootprint();
+        ReflectionTestUtils.setField(sessionFootprint, "meterRegistry", registry);
+        ReflectionTestUtils.setField(sessionFootprint, "maxBytes", 1_000L);
+        sessionFootprint.init();
+    }
+
+    @Test
+    void dropsTheOldestPayloadsOverTheBudget() {
+        SessionFootprint.Ledger ledger = sessionFootprint.open();
+        retain(ledger, "metadata", 600);
+        retain(ledger, "token", 100);
+        retain(ledger, "patient", 500);
+
+        assertThat(dropped).containsExactly("metadata");
+        assertThat(ledger.getBytes()).isEqualTo(600);
+        assertThat(registry.get("session.footprint.dropped").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void keepsAPayloadLargerThanTheBudget() {
+        SessionFootprint.Ledger ledger = sessionFootprint.open();
+        retain(ledger, "token", 100);
+        retain(ledger, "metadata", 5_000);
+
+        assertThat(dropped).containsExactly("token");
+        assertThat(ledger.getBytes()).isEqualTo(5_000);
+    }
+
+    @Test
+    void forgetsTheReleasedPayloads() {
+        SessionFootprint.Ledger ledger = sessionFootprint.open();
+        SessionFootprint.Ledger.Retained metadata = retain(ledger, "metadata", 600);
+        metadata.release();
+        retain(ledger, "patient", 600);
+
+        assertThat(dropped).isEmpty();
+        assertThat(ledger.getBytes()).isEqualTo(600);
+    }
+
+    @Test
+    void recordsThePeakOfEachSessionOnceClosed() {
+        SessionFootprint.Ledger first = sessionFootprint.open();
+        retain(first, "metadata", 600).release();
+        retain(first, "patient", 200);
+        SessionFootprint.Ledger second = sessionFootprint.open();
+        retain(second, "token", 100);
+
+        assertThat(registry.get("session.footprint.live").gauge().value()).isEqualTo(300);
+        assertThat(registry.get("session.footprint.sessions").gauge().value()).isEqualTo(2);
+
+        first.close();
+        first.close();
+
+        DistributionSummary footprints = registry.get("session.footprint").summary();
+        assertThat(footprints.count()).isEqualTo(1);
+        assertThat(footprints.max()).isEqualTo(600);
+        assertThat(registry.get("session.footprint.live").gauge().value()).isEqualTo(100);
+    }
+
+    private SessionFootprint.Ledger.Retained retain(
+            SessionFootprint.Ledger ledger, String name, long size) {
+        return ledger.retain(name, size, () -> dropped.add(name));
+    }
+}
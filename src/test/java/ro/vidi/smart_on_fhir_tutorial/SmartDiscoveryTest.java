@@ -0,0 +1,150 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class SmartDiscoveryTest {
+
+    private static final String EHR = "https://ehr.example.org/fhir";
+
+    private FhirClient fhirClient;
+
+    private OidcClient oidcClient;
+
+    private DiscoveryCache discoveryCache;
+
+    private SmartDiscovery smartDiscovery;
+
+    /**
+     * Completed to let the slow sources answer.
+     */
+    private final CompletableFuture<Void> release = new CompletableFuture<>();
+
+    @BeforeEach
+    void setUp() {
+        fhirClient = mock(FhirClient.class);
+        oidcClient = mock(OidcClient.class);
+        discoveryCache = TestBeans.discoveryCache(false);
+
+        smartDiscovery = new SmartDiscovery();
+        ReflectionTestUtils.setField(smartDiscovery, "fhirClient", fhirClient);
+        ReflectionTestUtils.setField(smartDiscovery, "oidcClient", oidcClient);
+        ReflectionTestUtils.setField(smartDiscovery, "discoveryCache", discoveryCache);
+        ReflectionTestUtils.setField(
+                smartDiscovery,
+                "autoOrder",
+                List.of(
+                        DiscoveryMethod.SMART_CONFIGURATION,
+                        DiscoveryMethod.FHIR_METADATA,
+                        DiscoveryMethod.OIDC_CONFIGURATION));
+        ReflectionTestUtils.setField(smartDiscovery, "autoTimeout", Duration.ofSeconds(5));
+        smartDiscovery.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.complete(null);
+        smartDiscovery.shutdown();
+        discoveryCache.shutdown();
+    }
+
+    @Test
+    void returnsTheFirstSourceAnsweringWithoutWaitingForTheOthers() throws Exception {
+        when(oidcClient.getSmartConfiguration(EHR)).thenAnswer(invocation -> smartUrls());
+        when(fhirClient.getMetadataSmartUrls(EHR)).thenAnswer(invocation -> slowSmartUrls());
+        when(oidcClient.getWellKnownInfo(EHR)).thenAnswer(invocation -> slowSmartUrls());
+
+        SmartMetadata smartMetadata = smartDiscovery.discover(EHR, DiscoveryMethod.AUTO);
+
+        assertThat(smartMetadata.getDiscoveryMethod())
+                .isEqualTo(DiscoveryMethod.SMART_CONFIGURATION);
+    }
+
+    @Test
+    void fallsBackToTheNextSourcesWhenTheFirstOnesFail() throws Exception {
+        when(oidcClient.getSmartConfiguration(EHR)).thenThrow(new IOException("404"));
+        // answers without SMART URLs
+        when(fhirClient.getMetadataSmartUrls(EHR)).thenReturn(new SmartMetadata());
+        when(oidcClient.getWellKnownInfo(EHR)).thenAnswer(invocation -> smartUrls());
+
+        SmartMetadata smartMetadata = smartDiscovery.discover(EHR, DiscoveryMethod.AUTO);
+
+        assertThat(smartMetadata.getDiscoveryMethod())
+                .isEqualTo(DiscoveryMethod.OIDC_CONFIGURATION);
+    }
+
+    @Test
+    void queriesOnlyTheSourcesOfTheOrder() throws Exception {
+        ReflectionTestUtils.setField(
+                smartDiscovery, "autoOrder", List.of(DiscoveryMethod.FHIR_METADATA));
+        when(fhirClient.getMetadataSmartUrls(EHR)).thenAnswer(invocation -> smartUrls());
+
+        SmartMetadata smartMetadata = smartDiscovery.discover(EHR, DiscoveryMethod.AUTO);
+
+        assertThat(smartMetadata.getDiscoveryMethod()).isEqualTo(DiscoveryMethod.FHIR_METADATA);
+        verify(oidcClient, never()).getSmartConfiguration(EHR);
+        verify(oidcClient, never()).getWellKnownInfo(EHR);
+    }
+
+    @Test
+    void givesUpAfterTheTimeout() throws Exception {
+        ReflectionTestUtils.setField(smartDiscovery, "autoTimeout", Duration.ofMillis(200));
+        when(oidcClient.getSmartConfiguration(EHR)).thenAnswer(invocation -> slowSmartUrls());
+        when(fhirClient.getMetadataSmartUrls(EHR)).thenAnswer(invocation -> slowSmartUrls());
+        when(oidcClient.getWellKnownInfo(EHR)).thenThrow(new IOException("404"));
+
+        assertThatThrownBy(() -> smartDiscovery.discover(EHR, DiscoveryMethod.AUTO))
+                .isInstanceOf(IOException.class)
+                .hasMessage("No SMART discovery source answered for " + EHR)
+                .satisfies(
+                        e ->
+                                assertThat(e.getSuppressed())
+                                        .extracting(Throwable::getMessage)
+                                        .contains("Timed out after PT0.2S"));
+    }
+
+    @Test
+    void cachesTheSourcesLeftRunning() throws Exception {
+        when(oidcClient.getSmartConfiguration(EHR)).thenAnswer(invocation -> smartUrls());
+        when(fhirClient.getMetadataSmartUrls(EHR)).thenAnswer(invocation -> slowSmartUrls());
+        when(oidcClient.getWellKnownInfo(EHR)).thenAnswer(invocation -> smartUrls());
+        smartDiscovery.discover(EHR, DiscoveryMethod.AUTO);
+
+        // the source still running is not interrupted, and its load is shared
+        release.complete(null);
+        SmartMetadata smartMetadata = smartDiscovery.discover(EHR, DiscoveryMethod.FHIR_METADATA);
+
+        assertThat(smartMetadata.getAuthorizeUrl()).isNotNull();
+        verify(fhirClient, times(1)).getMetadataSmartUrls(EHR);
+    }
+
+    private static SmartMetadata smartUrls() {
+        SmartMetadata smartMetadata = new SmartMetadata();
+        smartMetadata.setAuthorizeUrl(EHR + "/auth/authorize");
+        smartMetadata.setTokenUrl(EHR + "/auth/token");
+        return smartMetadata;
+    }
+
+    /**
+     * Waits for {@link #release}, failing if interrupted meanwhile.
+     */
+    private SmartMetadata slowSmartUrls() throws Exception {
+        release.get();
+        return smartUrls();
+    }
+}
@@ -0,0 +1,56 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.jupiter.api.Test;
+
+class SmartExtensionExtractorTest {
+
+    @Test
+    void extractsOauthUrisWhenUrlFollowsNestedExtensions() throws IOException {
+        byte[] capabilityStatement;
+        try (InputStream in =
+                getClass().getResourceAsStream("/fixtures/capability-statement.json")) {
+            capabilityStatement = in.readAllBytes();
+        }
+
+        SmartMetadata smartMetadata = SmartExtensionExtractor.extract(capabilityStatement);
+
+        assertThat(smartMetadata.getAuthorizeUrl())
+                .isEqualTo("https://launch.smarthealthit.org/v/r4/auth/authorize");
+        assertThat(smartMetadata.getTokenUrl())
+                .isEqualTo("https://launch.smarthealthit.org/v/r4/auth/token");
+    }
+
+    @Test
+    void ignoresOtherSecurityExtensions() throws IOException {
+        SmartMetadata smartMetadata =
+                SmartExtensionExtractor.extract(
+                        """
+                        {
+                          "resourceType": "CapabilityStatement",
+                          "rest": [{
+                            "security": {
+                              "extension": [{
+                                "url": "http://example.org/other",
+                                "extension": [{ "url": "token", "valueUri": "https://other" }]
+                              }]
+                            }
+                          }]
+                        }
+                        """);
+
+        assertThat(smartMetadata.getAuthorizeUrl()).isNull();
+        assertThat(smartMetadata.getTokenUrl()).isNull();
+    }
+
+    @Test
+    void rejectsNonObjectContent() {
+        assertThatThrownBy(() -> SmartExtensionExtractor.extract("[]"))
+                .isInstanceOf(IOException.class);
+    }
+}
@@ -0,0 +1,41 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class StateCipherTest {
+
+    private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private final StateCipher cipher = new StateCipher(KEY);
+
+    @Test
+    void decryptsTheValuesItEncrypted() throws Exception {
+        byte[] value = "access-token".getBytes(StandardCharsets.UTF_8);
+
+        byte[] encrypted = cipher.encrypt("launch", value);
+
+        assertThat(new String(encrypted, StandardCharsets.ISO_8859_1))
+                .doesNotContain("access-token");
+        assertThat(cipher.encrypt("launch", value)).isNotEqualTo(encrypted);
+        assertThat(new StateCipher(KEY).decrypt("launch", encrypted)).isEqualTo(value);
+    }
+
+    @Test
+    void rejectsValuesOfAnotherKey() {
+        byte[] encrypted = cipher.encrypt("launch", new byte[] {1, 2, 3});
+
+        assertThatThrownBy(() -> cipher.decrypt("other-launch", encrypted))
+                .isInstanceOf(IOException.class);
+        assertThatThrownBy(
+                        () ->
+                                new StateCipher("fedcba9876543210fedcba9876543210".getBytes())
+                                        .decrypt("launch", encrypted))
+                .isInstanceOf(IOException.class);
+    }
+}
@@ -0,0 +1,174 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class TenantRegistryTest {
+
+    @TempDir private Path directory;
+
+    private Path file;
+
+    private int writes;
+
+    private MockEhrServer ehr;
+
+    private MockEhrServer otherEhr;
+
+    private HttpTransport httpTransport;
+
+    private ExecutorService outboundExecutor;
+
+    private SmartDiscovery smartDiscovery;
+
+    private FhirClient fhirClient;
+
+    private TenantRegistry tenantRegistry;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ehr = new MockEhrServer();
+        otherEhr = new MockEhrServer();
+        file = directory.resolve("tenants.json");
+
+        httpTransport = TestBeans.httpTransport();
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EhrCalls ehrCalls = TestBeans.ehrCalls(registry);
+        EhrResilience ehrResilience = TestBeans.ehrResilience(ehrCalls, registry);
+
+        outboundExecutor = Executors.newFixedThreadPool(4);
+
+        OidcClient oidcClient = new OidcClient();
+        ReflectionTestUtils.setField(oidcClient, "httpTransport", httpTransport);
+        ReflectionTestUtils.setField(oidcClient, "ehrResilience", ehrResilience);
+
+        fhirClient = new FhirClient();
+        ReflectionTestUtils.setField(fhirClient, "fhirContext", FhirContext.forR4Cached());
+        ReflectionTestUtils.setField(fhirClient, "resourceCache", new FhirResourceCache());
+        ReflectionTestUtils.setField(fhirClient, "ehrCalls", ehrCalls);
+
+        DiscoveryCache discoveryCache = TestBeans.discoveryCache(false);
+
+        smartDiscovery = new SmartDiscovery();
+        ReflectionTestUtils.setField(smartDiscovery, "fhirClient", fhirClient);
+        ReflectionTestUtils.setField(smartDiscovery, "oidcClient", oidcClient);
+        ReflectionTestUtils.setField(smartDiscovery, "discoveryCache", discoveryCache);
+        smartDiscovery.init();
+
+        TokenValidator tokenValidator =
+                TestBeans.tokenValidator(smartDiscovery, httpTransport, ehrResilience, 100);
+
+        tenantRegistry = new TenantRegistry();
+        ReflectionTestUtils.setField(tenantRegistry, "fhirClient", fhirClient);
+        ReflectionTestUtils.setField(tenantRegistry, "smartDiscovery", smartDiscovery);
+        ReflectionTestUtils.setField(tenantRegistry, "tokenValidator", tokenValidator);
+        ReflectionTestUtils.setField(tenantRegistry, "httpTransport", httpTransport);
+        ReflectionTestUtils.setField(tenantRegistry, "outboundExecutor", outboundExecutor);
+        ReflectionTestUtils.setField(tenantRegistry, "file", file.toString());
+        ReflectionTestUtils.setField(tenantRegistry, "warmUpEnabled", true);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        tenantRegistry.shutdown();
+        outboundExecutor.shutdownNow();
+        httpTransport.close();
+        ehr.close();
+        otherEhr.close();
+    }
+
+    @Test
+    void warmsUpTheTenantsBeforeTheirFirstLaunch() throws Exception {
+        writeTenants(tenant("ehr", ehr));
+
+        tenantRegistry.reload().join();
+
+        assertThat(tenantRegistry.getTenants()).extracting(Tenant::id).containsExactly("ehr");
+        assertThat(ehr.getRequests("smart-configuration")).isEqualTo(1);
+        // the issuer is read from the SMART configuration
+        assertThat(ehr.getRequests("openid-configuration")).isZero();
+        assertThat(ehr.getRequests("jwks")).isEqualTo(1);
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(fhirClient, "genericClients"))
+                .containsKey(ehr.getBaseUrl());
+
+        SmartMetadata smartMetadata =
+                smartDiscovery.discover(ehr.getBaseUrl(), DiscoveryMethod.SMART_CONFIGURATION);
+        assertThat(smartMetadata.getTokenUrl()).endsWith("/auth/token");
+        assertThat(ehr.getRequests("smart-configuration")).isEqualTo(1);
+    }
+
+    @Test
+    void warmsUpOnlyTheTenantsAddedOnReload() throws Exception {
+        writeTenants(tenant("ehr", ehr));
+        tenantRegistry.reload().join();
+
+        writeTenants(tenant("ehr", ehr), tenant("other", otherEhr));
+        tenantRegistry.reload().join();
+        tenantRegistry.reload().join();
+
+        assertThat(tenantRegistry.getTenants())
+                .extracting(Tenant::id)
+                .containsExactly("ehr", "other");
+        assertThat(tenantRegistry.getTenant("other").discoveryMethod())
+                .isEqualTo(DiscoveryMethod.SMART_CONFIGURATION);
+        assertThat(ehr.getRequests("smart-configuration")).isEqualTo(1);
+        assertThat(otherEhr.getRequests("smart-configuration")).isEqualTo(1);
+        assertThat(otherEhr.getRequests("jwks")).isEqualTo(1);
+    }
+
+    @Test
+    void keepsTheTenantsWhenTheFileIsInvalid() throws Exception {
+        writeTenants(tenant("ehr", ehr));
+        tenantRegistry.reload().join();
+
+        writeTenants("{\"id\":\"other\"}");
+        tenantRegistry.reload().join();
+
+        assertThat(tenantRegistry.getTenants()).extracting(Tenant::id).containsExactly("ehr");
+    }
+
+    @Test
+    void readsTheFileAgainUntilItIsValid() throws Exception {
+        writeTenants("{\"id\":\"ehr\"");
+        FileTime partlyWritten = Files.getLastModifiedTime(file);
+        tenantRegistry.reload().join();
+
+        Files.writeString(file, "[" + tenant("ehr", ehr) + "]");
+        Files.setLastModifiedTime(file, partlyWritten);
+        tenantRegistry.reload().join();
+
+        assertThat(tenantRegistry.getTenants()).extracting(Tenant::id).containsExactly("ehr");
+    }
+
+    private static String tenant(String id, MockEhrServer server) {
+        return """
+                {"id":"%s","fhirServerUrl":"%s","clientId":"smart-on-fhir-tutorial",\
+                "scopes":["openid","launch/patient"],"discoveryMethod":"SMART_CONFIGURATION"}"""
+                .formatted(id, server.getBaseUrl());
+    }
+
+    /**
+     * Writes the file with a later modification time on each call.
+     */
+    private void writeTenants(String... tenants) throws IOException {
+        Files.writeString(file, "[" + String.join(",", tenants) + "]");
+        Files.setLastModifiedTime(
+                file, FileTime.fromMillis(System.currentTimeMillis() + 1_000L * ++writes));
+    }
+}
@@ -0,0 +1,99 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.function.Consumer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * The beans calling the EHRs, wired as the tests share them. Each factory takes the settings a
+ * test changes, applied before the bean is initialized.
+ */
+class TestBeans {
+
+    /**
+     * @return a transport of 20 connections with 5 s timeouts, to be closed by the test
+     */
+    static HttpTransport httpTransport() {
+        return httpTransport(httpTransport -> {});
+    }
+
+    static HttpTransport httpTransport(Consumer<HttpTransport> settings) {
+        HttpTransport httpTransport = new HttpTransport();
+        ReflectionTestUtils.setField(httpTransport, "maxConnections", 20);
+        ReflectionTestUtils.setField(httpTransport, "maxConnectionsPerHost", 20);
+        ReflectionTestUtils.setField(httpTransport, "connectTimeout", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(httpTransport, "readTimeout", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(httpTransport, "poolTimeout", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(httpTransport, "idleTimeout", Duration.ofMinutes(1));
+        settings.accept(httpTransport);
+        httpTransport.init();
+        return httpTransport;
+    }
+
+    static EhrCalls ehrCalls(MeterRegistry registry) {
+        EhrCalls ehrCalls = new EhrCalls();
+        ReflectionTestUtils.setField(ehrCalls, "meterRegistry", registry);
+        return ehrCalls;
+    }
+
+    /**
+     * @return calls of a single attempt, 20 at a time per EHR
+     */
+    static EhrResilience ehrResilience(EhrCalls ehrCalls, MeterRegistry registry) {
+        return ehrResilience(ehrCalls, registry, ehrResilience -> {});
+    }
+
+    static EhrResilience ehrResilience(
+            EhrCalls ehrCalls, MeterRegistry registry, Consumer<EhrResilience> settings) {
+        EhrResilience ehrResilience = new EhrResilience();
+        ReflectionTestUtils.setField(ehrResilience, "ehrCalls", ehrCalls);
+        ReflectionTestUtils.setField(ehrResilience, "meterRegistry", registry);
+        ReflectionTestUtils.setField(ehrResilience, "maxConcurrentCalls", 20);
+        ReflectionTestUtils.setField(ehrResilience, "maxWait", Duration.ofSeconds(1));
+        ReflectionTestUtils.setField(ehrResilience, "failureRateThreshold", 50f);
+        ReflectionTestUtils.setField(ehrResilience, "slidingWindowSize", 20);
+        ReflectionTestUtils.setField(ehrResilience, "openDuration", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(ehrResilience, "maxAttempts", 1);
+        ReflectionTestUtils.setField(ehrResilience, "initialBackoff", Duration.ofMillis(1));
+        ReflectionTestUtils.setField(ehrResilience, "minTimeout", Duration.ofSeconds(2));
+        ReflectionTestUtils.setField(ehrResilience, "maxTimeout", Duration.ofSeconds(5));
+        settings.accept(ehrResilience);
+        ehrResilience.init();
+        return ehrResilience;
+    }
+
+    static DiscoveryCache discoveryCache(boolean virtualThreads) {
+        DiscoveryCache discoveryCache = new DiscoveryCache();
+        ReflectionTestUtils.setField(discoveryCache, "ttl", Duration.ofMinutes(5));
+        ReflectionTestUtils.setField(discoveryCache, "staleTtl", Duration.ofHours(1));
+        ReflectionTestUtils.setField(discoveryCache, "maxSize", 16);
+        ReflectionTestUtils.setField(discoveryCache, "virtualThreads", virtualThreads);
+        discoveryCache.init();
+        return discoveryCache;
+    }
+
+    /**
+     * @return a validator of the tokens of the EHRs discovered by {@code smartDiscovery}, keeping
+     *     up to {@code maxValidated} validated tokens
+     */
+    static TokenValidator tokenValidator(
+            SmartDiscovery smartDiscovery,
+            HttpTransport httpTransport,
+            EhrResilience ehrResilience,
+            int maxValidated) {
+        TokenValidator tokenValidator = new TokenValidator();
+        ReflectionTestUtils.setField(tokenValidator, "smartDiscovery", smartDiscovery);
+        ReflectionTestUtils.setField(tokenValidator, "httpTransport", httpTransport);
+        ReflectionTestUtils.setField(tokenValidator, "ehrResilience", ehrResilience);
+        ReflectionTestUtils.setField(tokenValidator, "enabled", true);
+        ReflectionTestUtils.setField(tokenValidator, "jwksTtl", Duration.ofHours(1));
+        ReflectionTestUtils.setField(
+                tokenValidator, "jwksMinRefreshInterval", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(tokenValidator, "jwksRefreshTimeout", Duration.ofSeconds(15));
+        ReflectionTestUtils.setField(tokenValidator, "maxClockSkew", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(tokenValidator, "maxValidated", maxValidated);
+        return tokenValidator;
+    }
+}
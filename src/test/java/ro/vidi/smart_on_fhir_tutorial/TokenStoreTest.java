@@ -0,0 +1,188 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.nimbusds.oauth2.sdk.AccessTokenResponse;
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.oauth2.sdk.token.RefreshToken;
+import com.nimbusds.oauth2.sdk.token.Tokens;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class TokenStoreTest {
+
+    private static final String TOKEN_URL = "https://ehr.example.org/auth/token";
+
+    private static final String CLIENT_ID = "smart-on-fhir-tutorial";
+
+    private OidcClient oidcClient;
+
+    private ExecutorService outboundExecutor;
+
+    private TokenStore tokenStore;
+
+    @BeforeEach
+    void setUp() {
+        oidcClient = mock(OidcClient.class);
+        outboundExecutor = Executors.newFixedThreadPool(4);
+
+        InMemoryStateBackend stateBackend = new InMemoryStateBackend();
+        ReflectionTestUtils.setField(stateBackend, "maxSize", 100);
+
+        tokenStore = new TokenStore();
+        ReflectionTestUtils.setField(tokenStore, "oidcClient", oidcClient);
+        ReflectionTestUtils.setField(tokenStore, "outboundExecutor", outboundExecutor);
+        ReflectionTestUtils.setField(tokenStore, "stateBackend", stateBackend);
+        ReflectionTestUtils.setField(tokenStore, "refreshBefore", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(tokenStore, "maxIdle", Duration.ofHours(1));
+        ReflectionTestUtils.setField(tokenStore, "maxAge", Duration.ofHours(8));
+        ReflectionTestUtils.setField(tokenStore, "refreshLease", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(tokenStore, "encryptionKey", "");
+        tokenStore.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        tokenStore.shutdown();
+        outboundExecutor.shutdownNow();
+    }
+
+    @Test
+    void returnsTheTokenUntilItIsAboutToExpire() throws Exception {
+        String launchId = put("first", 3600, "refresh");
+
+        assertThat(tokenStore.getAccessToken(launchId)).isEqualTo("first");
+        verify(oidcClient, never()).refreshAccessToken(any(), any(), any());
+    }
+
+    @Test
+    void refreshesTheTokenBeforeItExpires() throws Exception {
+        when(oidcClient.refreshAccessToken(TOKEN_URL, "refresh", CLIENT_ID))
+                .thenReturn(tokenResponse("second", 3600, null));
+
+        // expiring within smart.token-store.refresh-before, so renewed in the background
+        String launchId = put("first", 30, "refresh");
+
+        verify(oidcClient, timeout(5_000)).refreshAccessToken(TOKEN_URL, "refresh", CLIENT_ID);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!"second".equals(tokenStore.get(launchId).getAccessToken())) {
+            assertThat(System.nanoTime() - deadline).isNegative();
+            Thread.sleep(10);
+        }
+        // the refresh token is kept when the server does not rotate it
+        assertThat(tokenStore.get(launchId).getRefreshToken()).isEqualTo("refresh");
+    }
+
+    @Test
+    void refreshesOnceForConcurrentCallers() throws Exception {
+        // a token without expires_in expires after max-age, here at once
+        ReflectionTestUtils.setField(tokenStore, "maxAge", Duration.ZERO);
+        when(oidcClient.refreshAccessToken(TOKEN_URL, "refresh", CLIENT_ID))
+                .thenAnswer(
+                        invocation -> {
+                            Thread.sleep(100);
+                            return tokenResponse("second", 3600, "refresh-2");
+                        });
+        String launchId = put("first", 0, "refresh");
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tokens.add(
+                        callers.submit(
+                                () -> {
+                                    start.await();
+                                    return tokenStore.getAccessToken(launchId);
+                                }));
+            }
+            start.countDown();
+
+            for (Future<String> token : tokens) {
+                assertThat(token.get(5, TimeUnit.SECONDS)).isEqualTo("second");
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        verify(oidcClient, times(1)).refreshAccessToken(any(), any(), any());
+    }
+
+    @Test
+    void reportsAFailedRefresh() throws Exception {
+        ReflectionTestUtils.setField(tokenStore, "maxAge", Duration.ZERO);
+        when(oidcClient.refreshAccessToken(TOKEN_URL, "refresh", CLIENT_ID))
+                .thenThrow(new IOException("invalid_grant"));
+        String launchId = put("first", 0, "refresh");
+
+        assertThatThrownBy(() -> tokenStore.getAccessToken(launchId))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("Cannot renew access token")
+                .hasRootCauseMessage("invalid_grant");
+        // the launch is kept, and the next call tries again
+        assertThat(tokenStore.get(launchId).getAccessToken()).isEqualTo("first");
+        assertThatThrownBy(() -> tokenStore.getAccessToken(launchId))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void rejectsExpiredTokensWithoutRefreshToken() {
+        ReflectionTestUtils.setField(tokenStore, "maxAge", Duration.ZERO);
+        String launchId = put("first", 0, null);
+
+        assertThatThrownBy(() -> tokenStore.getAccessToken(launchId))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageEndingWith("expired");
+    }
+
+    @Test
+    void rebuildsTheTokenResponseOfTheLaunch() {
+        String launchId = put("first", 3600, "refresh");
+        Instant now = Instant.now();
+
+        AccessTokenResponse response = tokenStore.get(launchId).toTokenResponse(now);
+
+        assertThat(response.getTokens().getAccessToken().getValue()).isEqualTo("first");
+        assertThat(response.getTokens().getAccessToken().getLifetime()).isBetween(3590L, 3600L);
+        assertThat(response.getTokens().getRefreshToken().getValue()).isEqualTo("refresh");
+    }
+
+    /**
+     * Stores the tokens of a new launch.
+     *
+     * @return the id of the launch
+     */
+    private String put(String accessToken, long lifetime, String refreshToken) {
+        return tokenStore.put(
+                tokenResponse(accessToken, lifetime, refreshToken), TOKEN_URL, CLIENT_ID);
+    }
+
+    private static AccessTokenResponse tokenResponse(
+            String accessToken, long lifetime, String refreshToken) {
+        return new AccessTokenResponse(
+                new Tokens(
+                        new BearerAccessToken(accessToken, lifetime, null),
+                        refreshToken != null ? new RefreshToken(refreshToken) : null));
+    }
+}
@@ -0,0 +1,186 @@
+/* (C)2024 */
+package ro.vidi.smart_on_fhir_tutorial;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.nimbusds.oauth2.sdk.token.BearerAccessToken;
+import com.nimbusds.openid.connect.sdk.OIDCTokenResponse;
+import com.nimbusds.openid.connect.sdk.token.OIDCTokens;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.UUID;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class TokenValidatorTest {
+
+    private static final String CLIENT_ID = "smart-on-fhir-tutorial";
+
+    private MockEhrServer ehr;
+
+    private HttpTransport httpTransport;
+
+    private TokenValidator tokenValidator;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ehr = new MockEhrServer();
+
+        httpTransport = TestBeans.httpTransport();
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EhrCalls ehrCalls = TestBeans.ehrCalls(registry);
+        EhrResilience ehrResilience = TestBeans.ehrResilience(ehrCalls, registry);
+
+        OidcClient oidcClient = new OidcClient();
+        ReflectionTestUtils.setField(oidcClient, "httpTransport", httpTransport);
+        ReflectionTestUtils.setField(oidcClient, "ehrResilience", ehrResilience);
+
+        DiscoveryCache discoveryCache = TestBeans.discoveryCache(false);
+
+        SmartDiscovery smartDiscovery = new SmartDiscovery();
+        ReflectionTestUtils.setField(smartDiscovery, "oidcClient", oidcClient);
+        ReflectionTestUtils.setField(smartDiscovery, "discoveryCache", discoveryCache);
+        smartDiscovery.init();
+
+        tokenValidator =
+                TestBeans.tokenValidator(smartDiscovery, httpTransport, ehrResilience, 100);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        httpTransport.close();
+        ehr.close();
+    }
+
+    @Test
+    void validatesTheIdTokenOnceWithTheIssuerKeys() throws Exception {
+        OIDCTokenResponse response = tokenResponse(ehr.issueIdToken(CLIENT_ID), opaqueToken());
+
+        assertThat(tokenValidator.validate(ehr.getBaseUrl(), CLIENT_ID, response))
+                .isSameAs(response);
+        tokenValidator.validate(ehr.getBaseUrl(), CLIENT_ID, response);
+
+        assertThat(ehr.getRequests("smart-configuration")).isEqualTo(1);
+        assertThat(ehr.getRequests("jwks")).isEqualTo(1);
+    }
+
+    @Test
+    void fetchesTheKeysAgainWhenTheyRotate() throws Exception {
+        tokenValidator.validate(
+                ehr.getBaseUrl(),
+                CLIENT_ID,
+                tokenResponse(ehr.issueIdToken(CLIENT_ID), opaqueToken()));
+        ehr.rotateKey();
+        tokenValidator.validate(
+                ehr.getBaseUrl(),
+                CLIENT_ID,
+                tokenResponse(ehr.issueIdToken(CLIENT_ID), opaqueToken()));
+
+        assertThat(ehr.getRequests("jwks")).isEqualTo(2);
+    }
+
+    @Test
+    void rejectsTheIdTokensOfAnotherClient() {
+        OIDCTokenResponse response = tokenResponse(ehr.issueIdToken("other-client"), opaqueToken());
+
+        assertThatThrownBy(() -> tokenValidator.validate(ehr.getBaseUrl(), CLIENT_ID, response))
+                .isInstanceOf(IOException.class)
+                .hasMessageStartingWith("Invalid ID token");
+    }
+
+    @Test
+    void limitsTheKeyFetchesForUnknownKeys() {
+        String forged = ehr.issueIdToken(CLIENT_ID, MockEhrServer.newKey());
+
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(
+                            () ->
+                                    tokenValidator.validate(
+                                            ehr.getBaseUrl(),
+                                            CLIENT_ID,
+                                            tokenResponse(forged, opaqueToken())))
+                    .isInstanceOf(IOException.class);
+        }
+
+        // the first fetch, and a single refresh looking for the unknown key
+        assertThat(ehr.getRequests("jwks")).isEqualTo(2);
+    }
+
+    @Test
+    void validatesTheAccessTokensSignedByTheIssuer() throws Exception {
+        tokenValidator.validate(
+                ehr.getBaseUrl(),
+                CLIENT_ID,
+                tokenResponse(
+                        ehr.issueIdToken(CLIENT_ID), ehr.issueJwtAccessToken(ehr.getBaseUrl())));
+
+        OIDCTokenResponse forged =
+                tokenResponse(
+                        ehr.issueIdToken(CLIENT_ID),
+                        ehr.issueJwtAccessToken(ehr.getBaseUrl(), MockEhrServer.newKey()));
+        assertThatThrownBy(() -> tokenValidator.validate(ehr.getBaseUrl(), CLIENT_ID, forged))
+                .isInstanceOf(IOException.class)
+                .hasMessageStartingWith("Invalid access token");
+    }
+
+    @Test
+    void rejectsTheAccessTokensOfAnotherFhirServer() {
+        OIDCTokenResponse response =
+                tokenResponse(
+                        ehr.issueIdToken(CLIENT_ID),
+                        ehr.issueJwtAccessToken("https://other-ehr.example/fhir"));
+
+        assertThatThrownBy(() -> tokenValidator.validate(ehr.getBaseUrl(), CLIENT_ID, response))
+                .isInstanceOf(IOException.class)
+                .hasMessageStartingWith("Invalid access token");
+    }
+
+    @Test
+    void readsTheIssuerOfServersWithoutOpenIdConfiguration() throws Exception {
+        ehr.setOpenIdConfigurationPublished(false);
+        OIDCTokenResponse response = tokenResponse(ehr.issueIdToken(CLIENT_ID), opaqueToken());
+
+        assertThat(tokenValidator.validate(ehr.getBaseUrl(), CLIENT_ID, response))
+                .isSameAs(response);
+        OIDCTokenResponse forged =
+                tokenResponse(ehr.issueIdToken(CLIENT_ID, MockEhrServer.newKey()), opaqueToken());
+        assertThatThrownBy(() -> tokenValidator.validate(ehr.getBaseUrl(), CLIENT_ID, forged))
+                .isInstanceOf(IOException.class)
+                .hasMessageStartingWith("Invalid ID token");
+    }
+
+    @Test
+    void acceptsTheTokensOfServersPublishingNoKeys() throws Exception {
+        SmartMetadata withoutKeys = new SmartMetadata();
+        withoutKeys.setIssuer(ehr.getBaseUrl());
+        SmartDiscovery smartDiscovery =
+                new SmartDiscovery() {
+                    @Override
+                    public SmartMetadata discover(String fhirServerUrl, DiscoveryMethod method) {
+                        return withoutKeys;
+                    }
+                };
+        ReflectionTestUtils.setField(tokenValidator, "smartDiscovery", smartDiscovery);
+        OIDCTokenResponse response =
+                tokenResponse(
+                        ehr.issueIdToken(CLIENT_ID, MockEhrServer.newKey()),
+                        ehr.issueJwtAccessToken(ehr.getBaseUrl()));
+
+        assertThat(tokenValidator.validate(ehr.getBaseUrl(), CLIENT_ID, response))
+                .isSameAs(response);
+        assertThat(ehr.getRequests("jwks")).isZero();
+    }
+
+    private static OIDCTokenResponse tokenResponse(String idToken, String accessToken) {
+        return new OIDCTokenResponse(
+                new OIDCTokens(idToken, new BearerAccessToken(accessToken), null));
+    }
+
+    private static String opaqueToken() {
+        return UUID.randomUUID().toString();
+    }
+}